@@ -3,27 +3,70 @@ import java.awt.datatransfer.DataFlavor;
 import java.awt.datatransfer.StringSelection;
 import java.awt.datatransfer.Transferable;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.swing.*;
 
-public class FloorPlanner extends JFrame {
-    private JPanel canvas;
+// The editor itself is a panel, so it can be built and painted without a window;
+// main puts it in one
+public class FloorPlanner extends JPanel {
+    private DrawingCanvas canvas;
     private JPanel controlPanel;
     private JPanel propertiesPanel;
     private ArrayList<Room> rooms;
     private static final Color GRID_COLOR = Color.BLACK;
+    private static final Color CANVAS_BACKGROUND = new Color(204, 204, 204);
     private static final int GRID_SIZE = 20;
+    private static final SpriteCache SPRITES = new SpriteCache(64);
+    // Failures no dialog can show: background threads, sprites and the export command
+    private static final java.util.logging.Logger LOG = java.util.logging.Logger.getLogger("FloorPlanner");
+    private static final int INDEX_CELL_SIZE = GRID_SIZE * 4;
+    // Side of the square rooms may occupy, in model pixels: 200 m unless set in metres
+    private static final int PLAN_EXTENT = Integer.getInteger("floorplanner.planMetres", 200) * GRID_SIZE * 2;
+    // Keep a columnar SceneStore beside the object model, for very large plans
+    private static final boolean SCENE_STORE = Boolean.getBoolean("floorplanner.sceneStore");
     private Room selectedRoom;
+    private PlanIndex index = new PlanIndex();
     private int nextRoomX = GRID_SIZE;
     private int nextRoomY = GRID_SIZE;
-    private JFileChooser fileChooser; // New field for file operations
+    private JFileChooser fileChooser; // Created on first save or open; see fileChooser()
+    private PlanTask<?> planTask; // Save, load or auto-furnish currently running in the background
+    private final PlanJournal journal; // Autosave of every edit since the last save or load
+    private static final long UNDO_MEMORY_LIMIT = Long.getLong("floorplanner.undoMemoryLimit", 4L * 1024 * 1024);
+    private final EditHistory history = new EditHistory(UNDO_MEMORY_LIMIT);
+    private static final File TEMPLATE_FOLDER = new File(System.getProperty("floorplanner.templates", "templates"));
+    private TemplateLibrary templates; // Room types, fixtures and furniture offered by the panels
+    private JScrollPane controlScroller; // Shows the control panel once finishStartup has built it
+    private long firstPaintNanos; // When the canvas first painted, or 0; read by the startup benchmark
+    private long startupFinishedNanos; // When the side panels were ready, or 0
+    private static final int STARTUP_FALLBACK_MILLIS = 500;
+    private JButton undoButton;
+    private JButton redoButton;
     private JComboBox<String> directionComboBox; // New field for direction selection
     private JButton deleteRoomButton; // New field for delete button
     private JPanel fixturesPanel;
@@ -38,9 +81,16 @@ public class FloorPlanner extends JFrame {
     private JPanel furniturePanel;
     private ArrayList<Door> doors = new ArrayList<>();
     private ArrayList<Window> windows = new ArrayList<>();
+    // The area rooms may occupy. It belongs to the plan, not the view, so zooming or
+    // panning never changes where a room may go; a loaded plan that reaches further widens it.
+    private int planWidth = PLAN_EXTENT;
+    private int planHeight = PLAN_EXTENT;
     private boolean addingDoor = false;
     private boolean addingWindow = false;
     private static final int DOOR_WIDTH = GRID_SIZE * 2;
+    // How far from a wall a click may land and still place a door or window on it
+    private static final int WALL_SNAP_DISTANCE = GRID_SIZE;
+    private EgressMap egress; // Shown as a heatmap while not null
     private Point firstRoomClick = null;
     private Room firstSelectedRoom = null;
 
@@ -70,6 +120,53 @@ public class FloorPlanner extends JFrame {
             return start.distance(window.position) < DOOR_WIDTH ||
                    end.distance(window.position) < DOOR_WIDTH;
         }
+
+        public boolean isHorizontal() {
+            return start.y == end.y;
+        }
+
+        public boolean isAttachedTo(Room room) {
+            return room != null && (room1 == room || room2 == room);
+        }
+
+        public Rectangle getBounds() {
+            Rectangle bounds = new Rectangle(start);
+            bounds.add(end);
+            bounds.grow(5, 5);
+            return bounds;
+        }
+
+        // A gap in the wall in room1's colour and, when detailed, the door leaf hinged at
+        // start with its swing into room1
+        public void draw(Graphics2D g, boolean detailed) {
+            g.setStroke(GAP_STROKE);
+            g.setColor(room1.color);
+            g.drawLine(start.x, start.y, end.x, end.y);
+            if (!detailed) {
+                return;
+            }
+            int width = (int) Math.round(start.distance(end));
+            Point leaf = leafEnd();
+            // Arc angles count anticlockwise from three o'clock, with y pointing up
+            int closed = (int) Math.round(Math.toDegrees(Math.atan2(start.y - end.y, end.x - start.x)));
+            int open = (int) Math.round(Math.toDegrees(Math.atan2(start.y - leaf.y, leaf.x - start.x)));
+            g.setStroke(LEAF_STROKE);
+            g.setColor(DOOR_COLOR);
+            g.drawLine(start.x, start.y, leaf.x, leaf.y);
+            g.drawArc(start.x - width, start.y - width, 2 * width, 2 * width,
+                    closed, Math.floorMod(open - closed + 180, 360) - 180);
+        }
+        // Where the free edge of the leaf is with the door standing open into room1
+        public Point leafEnd() {
+            int width = (int) Math.round(start.distance(end));
+            if (isHorizontal()) {
+                return new Point(start.x, start.y + (room1.bounds.y < start.y ? -width : width));
+            }
+            return new Point(start.x + (room1.bounds.x < start.x ? -width : width), start.y);
+        }
+        private static final BasicStroke GAP_STROKE = new BasicStroke(4);
+        private static final BasicStroke LEAF_STROKE = new BasicStroke(1);
+        private static final Color DOOR_COLOR = new Color(139, 69, 19);
     }
 
     private static class Window implements Serializable {
@@ -91,6 +188,24 @@ public class FloorPlanner extends JFrame {
                 return new Rectangle(position.x - 5, position.y - DOOR_WIDTH/2, 10, DOOR_WIDTH);
             }
         }
+
+        public boolean overlaps(Window other) {
+            return getBounds().intersects(other.getBounds());
+        }
+
+        public void draw(Graphics2D g) {
+            Rectangle bounds = getBounds();
+            g.setColor(WINDOW_FILL);
+            g.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
+            g.setColor(Color.BLACK);
+            g.drawRect(bounds.x, bounds.y, bounds.width, bounds.height);
+            if (isHorizontal) {
+                g.drawLine(bounds.x, position.y, bounds.x + bounds.width, position.y);
+            } else {
+                g.drawLine(position.x, bounds.y, position.x, bounds.y + bounds.height);
+            }
+        }
+        private static final Color WINDOW_FILL = new Color(173, 216, 230);
     }
 
 
@@ -98,14 +213,11 @@ public class FloorPlanner extends JFrame {
         furniturePanel = new JPanel();
         furniturePanel.setLayout(new BoxLayout(furniturePanel, BoxLayout.Y_AXIS));
         furniturePanel.setBorder(BorderFactory.createTitledBorder("Furniture"));
-        String[][] furnitureTypes = {
-            {"Bed", "images/bed.png"}, {"Chair", "images/chair.png"}, {"Table", "images/table.png"}, {"Sofa", "images/sofa.png"}, {"Dining Set", "images/dining set.png"}
-        };
-        for (String[] furnitureType : furnitureTypes) {
-            JButton furnitureButton = new JButton(furnitureType[0]);
+        for (TemplateLibrary.ItemTemplate furnitureType : templates.furniture()) {
+            JButton furnitureButton = new JButton(furnitureType.name);
             furnitureButton.setMaximumSize(new Dimension(Integer.MAX_VALUE, 
                 furnitureButton.getPreferredSize().height));
-            furnitureButton.setTransferHandler(new FurnitureTransferHandler(furnitureType[0], furnitureType[1]));
+            furnitureButton.setTransferHandler(new FurnitureTransferHandler(furnitureType.name, furnitureType.imagePath));
             furnitureButton.addMouseListener(new MouseAdapter() {
                 public void mousePressed(MouseEvent e) {
                     JButton button = (JButton) e.getSource();
@@ -120,19 +232,120 @@ public class FloorPlanner extends JFrame {
         rotateFurnitureButton.addActionListener(e -> rotateSelectedFurniture());
         JButton deleteFurnitureButton = new JButton("Delete");
         deleteFurnitureButton.addActionListener(e -> deleteSelectedFurniture());
+        JButton autoFurnishButton = new JButton("Auto-Furnish Room...");
+        autoFurnishButton.addActionListener(e -> autoFurnishSelectedRoom());
         furniturePanel.add(rotateFurnitureButton);
         furniturePanel.add(deleteFurnitureButton);
+        furniturePanel.add(Box.createVerticalStrut(5));
+        furniturePanel.add(autoFurnishButton);
         return furniturePanel;
     }
+    private void autoFurnishSelectedRoom() {
+        if (selectedRoom == null) {
+            JOptionPane.showMessageDialog(this,
+                    "Select a room to furnish first.",
+                    "Auto-Furnish",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        if (isPlanTaskRunning()) {
+            return;
+        }
+        List<TemplateLibrary.ItemTemplate> types = templates.furniture();
+        JPanel panel = new JPanel(new GridLayout(0, 2, 5, 5));
+        JSpinner[] counts = new JSpinner[types.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new JSpinner(new SpinnerNumberModel(0, 0, 99, 1));
+            panel.add(new JLabel(types.get(i).name + ":"));
+            panel.add(counts[i]);
+        }
+        JSpinner seconds = new JSpinner(new SpinnerNumberModel(2.0, 0.1, 60.0, 0.5));
+        panel.add(new JLabel("Time limit (s):"));
+        panel.add(seconds);
+        int result = JOptionPane.showConfirmDialog(this, panel,
+                "Furnish " + selectedRoom.type, JOptionPane.OK_CANCEL_OPTION);
+        if (result != JOptionPane.OK_OPTION) {
+            return;
+        }
+        Room room = selectedRoom;
+        int[] requested = new int[types.size()];
+        int[] sizes = new int[types.size()];
+        java.util.Arrays.fill(sizes, Furniture.FURNITURE_SIZE);
+        int total = 0;
+        for (int i = 0; i < requested.length; i++) {
+            requested[i] = (Integer) counts[i].getValue();
+            total += requested[i];
+        }
+        if (total == 0) {
+            return;
+        }
+        // The solver works on a copy of the room taken here on the EDT; if the plan is
+        // edited before it finishes, its answer may no longer fit and is thrown away
+        FurnitureSolver solver = new FurnitureSolver(room.bounds,
+                FurnitureSolver.obstaclesIn(room, index.openings.attachedTo(room)), sizes, sizes, requested);
+        long budget = (long) ((Double) seconds.getValue() * 1e9);
+        long editsAtCapture = journal.editCount();
+        int wanted = total;
+        planTask = new PlanTask<FurnitureSolver.Result>("Furnishing " + room.type + "...") {
+            @Override
+            protected FurnitureSolver.Result doInBackground() throws IOException {
+                return solver.solve(budget, this);
+            }
+            @Override
+            void succeeded(FurnitureSolver.Result result) {
+                if (journal.editCount() != editsAtCapture || !rooms.contains(room)) {
+                    JOptionPane.showMessageDialog(FloorPlanner.this,
+                            "The plan changed while furnishing; nothing was placed.",
+                            "Auto-Furnish",
+                            JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+                List<Object> placed = new ArrayList<>();
+                for (FurnitureSolver.Placement placement : result.placements) {
+                    TemplateLibrary.ItemTemplate type = types.get(placement.type);
+                    Furniture furniture = new Furniture(type.name, placement.position, type.imagePath, room);
+                    furniture.setRotation(placement.rotation);
+                    addItemToPlan(furniture);
+                    placed.add(furniture);
+                }
+                if (!placed.isEmpty()) {
+                    recordEdit(new AddItemsCommand(placed));
+                    canvas.repaint();
+                }
+                if (!result.complete) {
+                    JOptionPane.showMessageDialog(FloorPlanner.this,
+                            "Placed " + placed.size() + " of " + wanted + " pieces"
+                                    + (result.timedOut ? " before the time limit ran out." : "; the rest do not fit."),
+                            "Auto-Furnish",
+                            JOptionPane.INFORMATION_MESSAGE);
+                }
+            }
+            @Override
+            void failed(Throwable error) {
+                JOptionPane.showMessageDialog(FloorPlanner.this,
+                        "Error furnishing room: " + error.getMessage(),
+                        "Error",
+                        JOptionPane.ERROR_MESSAGE);
+            }
+        };
+        planTask.execute();
+    }
     private void rotateSelectedFurniture() {
-        if (selectedFurniture != null) {
-            selectedFurniture.rotate();
+        if (!selection.isEmpty()) {
+            rotateSelection();
+        } else if (selectedFurniture != null) {
+            rotateItemBy(selectedFurniture, 90);
+            recordEdit(new RotateItemCommand(selectedFurniture, 90));
             canvas.repaint();
         }
     }
     private void deleteSelectedFurniture() {
-        if (selectedFurniture != null && selectedFurniture.getParentRoom() != null) {
-            selectedFurniture.getParentRoom().removeFurniture(selectedFurniture);
+        if (!selection.isEmpty()) {
+            deleteSelection();
+        } else if (selectedFurniture != null && selectedFurniture.getParentRoom() != null) {
+            Furniture furniture = selectedFurniture;
+            removeItemFromPlan(furniture);
+            recordEdit(new DeleteItemCommand(furniture));
             selectedFurniture = null;
             canvas.repaint();
         }
@@ -155,13 +368,10 @@ public class FloorPlanner extends JFrame {
         fixturesPanel = new JPanel();
         fixturesPanel.setLayout(new BoxLayout(fixturesPanel, BoxLayout.Y_AXIS));
         fixturesPanel.setBorder(BorderFactory.createTitledBorder("Fixtures"));
-        String[][] fixtureTypes = {
-            {"Commode", "images/commode.png"}, {"Washbasin", "images/washbasin.png"}, {"Shower", "images/shower.png"}, {"Kitchen Sink", "images/kitchen sink.png"}, {"Stove", "images/stove.png"}, {"Door", "images/door.png"}, {"Window", "images/window.png"}
-        };
-        for (String[] fixtureType : fixtureTypes) {
-            JButton fixtureButton = new JButton(fixtureType[0]);
+        for (TemplateLibrary.ItemTemplate fixtureType : templates.fixtures()) {
+            JButton fixtureButton = new JButton(fixtureType.name);
             fixtureButton.setMaximumSize(new Dimension(Integer.MAX_VALUE, fixtureButton.getPreferredSize().height));
-            fixtureButton.setTransferHandler(new FixtureTransferHandler(fixtureType[0], fixtureType[1]));
+            fixtureButton.setTransferHandler(new FixtureTransferHandler(fixtureType.name, fixtureType.imagePath));
             fixtureButton.addMouseListener(new MouseAdapter() {
                 public void mousePressed(MouseEvent e) {
                     JButton button = (JButton) e.getSource();
@@ -187,33 +397,106 @@ public class FloorPlanner extends JFrame {
         }
         @Override
         protected Transferable createTransferable(JComponent c) {
-            return new StringSelection("FURNITURE:" + fixtureType + "," + imagePath);
+            return new StringSelection("FIXTURE:" + fixtureType + "," + imagePath);
         }
     }
     private Room draggedRoom;
     private Point dragStart;
     private Rectangle originalBounds;
+    // Rooms, fixtures and furniture picked by shift-click or rubber band. Only used
+    // while it has a member; the single selected* fields are cleared meanwhile.
+    private final Set<Object> selection = java.util.Collections.newSetFromMap(new IdentityHashMap<>());
+    private Point groupDragStart; // Model point where a drag of the selection began, or null
+    private int groupDx, groupDy; // How far the selection has been dragged so far
+    private List<Room> groupRooms; // What the drag moves: the selected rooms, and the
+    private List<Object> groupItems; // selected items not already carried by one of them
+    private List<Room> clipboard = List.of(); // Copies of the rooms last copied, outside the plan
     public FloorPlanner() {
-        super("Floor Plan Builder");
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         rooms = new ArrayList<>();
-        fileChooser = new JFileChooser(); // Initialize file chooser
+        journal = new PlanJournal(rooms, doors, windows);
+        journal.startFrom(null);
         initializeUI();
-        setExtendedState(JFrame.MAXIMIZED_BOTH);
-        setVisible(true);
+        // The canvas's first paint calls finishStartup for everything else
     }
+    // Shows a new editor in a maximized window
+    static FloorPlanner showInWindow() {
+        FloorPlanner planner = new FloorPlanner();
+        JFrame frame = new JFrame("Floor Plan Builder");
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                planner.journal.close();
+            }
+        });
+        frame.setContentPane(planner);
+        frame.setExtendedState(JFrame.MAXIMIZED_BOTH);
+        frame.setVisible(true);
+        // A window that starts minimized never paints its canvas, so startup is also
+        // finished shortly after the window opens, whichever comes first
+        Timer fallback = new Timer(STARTUP_FALLBACK_MILLIS, e -> planner.finishStartup());
+        fallback.setRepeats(false);
+        fallback.start();
+        return planner;
+    }
+    // Only the toolbar and canvas are built before the window shows; the side panels
+    // wait for finishStartup, behind an empty scroll pane that already has their place
     private void initializeUI() {
         setLayout(new BorderLayout());
         JToolBar toolbar = createToolbar();
         add(toolbar, BorderLayout.NORTH);
         JSplitPane splitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT);
         canvas = new DrawingCanvas();
-        controlPanel = createControlPanel();
-        splitPane.setLeftComponent(new JScrollPane(canvas));
-        splitPane.setRightComponent(new JScrollPane(controlPanel));
+        controlScroller = new JScrollPane();
+        controlScroller.setPreferredSize(new Dimension(250, 600));
+        splitPane.setLeftComponent(canvas); // Scrolling is replaced by panning the view
+        splitPane.setRightComponent(controlScroller);
         splitPane.setResizeWeight(0.75);
         add(splitPane, BorderLayout.CENTER);
     }
+    // Runs once, just after the canvas first paints or the window's fallback fires: reads
+    // the template library, builds the side panels, starts warming the palette's sprites
+    // and offers any autosave
+    private void finishStartup() {
+        if (controlPanel != null) {
+            return; // Already done
+        }
+        templates = TemplateLibrary.load(TEMPLATE_FOLDER);
+        controlPanel = createControlPanel();
+        controlScroller.setViewportView(controlPanel);
+        controlScroller.revalidate();
+        updatePropertiesPanel(selectedRoom); // Something may have been selected already
+        warmSprites();
+        startupFinishedNanos = System.nanoTime();
+        if (!templates.problems().isEmpty()) {
+            showProblems("Template Problems", templates.problems().size() + " template(s) in "
+                    + TEMPLATE_FOLDER.getAbsolutePath() + " were skipped:\n", templates.problems());
+        }
+        offerRecovery(null);
+    }
+    // Decodes the palette's sprites on a background thread, so the first drop of each
+    // type does not stall the EDT. Stops at half the cache, since filling it would only
+    // evict the sprites of the plan on screen.
+    private void warmSprites() {
+        List<TemplateLibrary.ItemTemplate> palette = templates.fixtures();
+        palette.addAll(templates.furniture());
+        int count = Math.min(palette.size(), SPRITES.capacity() / 2);
+        Thread warmer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                TemplateLibrary.ItemTemplate type = palette.get(i);
+                SPRITES.get(type.imagePath, type.fixture ? Fixture.FIXTURE_SIZE : Furniture.FURNITURE_SIZE);
+            }
+        }, "Sprite warmer");
+        warmer.setDaemon(true);
+        warmer.setPriority(Thread.MIN_PRIORITY);
+        warmer.start();
+    }
+    private JFileChooser fileChooser() {
+        if (fileChooser == null) {
+            fileChooser = new JFileChooser();
+        }
+        return fileChooser;
+    }
     private JToolBar createToolbar() {
         JToolBar toolbar = new JToolBar();
         toolbar.setFloatable(false);
@@ -224,6 +507,53 @@ public class FloorPlanner extends JFrame {
         openBtn.addActionListener(e -> loadFloorPlan());
         toolbar.add(openBtn);
         toolbar.add(saveBtn);
+        undoButton = new JButton("Undo");
+        redoButton = new JButton("Redo");
+        undoButton.addActionListener(e -> undo());
+        redoButton.addActionListener(e -> redo());
+        toolbar.addSeparator();
+        toolbar.add(undoButton);
+        toolbar.add(redoButton);
+        updateUndoButtons();
+        JToggleButton egressButton = new JToggleButton("Egress Map");
+        egressButton.setToolTipText("Shade every walkable cell by its walking distance to the nearest outside door");
+        egressButton.addActionListener(e -> toggleEgress(egressButton.isSelected()));
+        toolbar.addSeparator();
+        toolbar.add(egressButton);
+        // Ctrl+Z / Ctrl+Y (Cmd on macOS) work wherever focus is in the window
+        // The toolkit will not say without a display, when only the benchmarks build the editor
+        int shortcut = GraphicsEnvironment.isHeadless() ? InputEvent.CTRL_DOWN_MASK
+                : Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+        InputMap keys = getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW);
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_Z, shortcut), "undo");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_Y, shortcut), "redo");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_Z, shortcut | InputEvent.SHIFT_DOWN_MASK), "redo");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_C, shortcut), "copy");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_V, shortcut), "paste");
+        getActionMap().put("undo", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                undo();
+            }
+        });
+        getActionMap().put("redo", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                redo();
+            }
+        });
+        getActionMap().put("copy", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                copyRooms();
+            }
+        });
+        getActionMap().put("paste", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                pasteRooms();
+            }
+        });
         return toolbar;
     }
     private JPanel createControlPanel() {
@@ -232,18 +562,12 @@ public class FloorPlanner extends JFrame {
     JPanel roomsPanel = new JPanel();
     roomsPanel.setLayout(new BoxLayout(roomsPanel, BoxLayout.Y_AXIS));
     roomsPanel.setBorder(BorderFactory.createTitledBorder("Rooms"));
-    String[][] roomTypes = {
-            { "Add Bedroom", "GREEN" },
-            { "Add Kitchen", "RED" },
-            { "Add Drawing Room", "YELLOW" },
-            { "Add Bathroom", "BLUE" }
-    };
-    for (String[] roomType : roomTypes) {
-        JButton button = new JButton(roomType[0]);
+    for (TemplateLibrary.RoomTemplate roomType : templates.rooms()) {
+        JButton button = new JButton(roomType.roomType());
         button.setMaximumSize(new Dimension(Integer.MAX_VALUE, button.getPreferredSize().height));
         button.setAlignmentX(Component.CENTER_ALIGNMENT);
         button.addActionListener(e -> {
-            addRoom(roomType[0], Color.decode(getColorHex(roomType[1])));
+            addRoom(roomType);
             directionComboBox.setSelectedItem("None"); // Reset direction after adding room
         });
         roomsPanel.add(button);
@@ -256,6 +580,18 @@ public class FloorPlanner extends JFrame {
     deleteRoomButton.addActionListener(e -> deleteSelectedRoom());
     roomsPanel.add(Box.createVerticalStrut(10));
     roomsPanel.add(deleteRoomButton);
+    JButton copyButton = new JButton("Copy Rooms");
+    JButton pasteButton = new JButton("Paste Rooms");
+    JButton arrayButton = new JButton("Duplicate as Array...");
+    copyButton.addActionListener(e -> copyRooms());
+    pasteButton.addActionListener(e -> pasteRooms());
+    arrayButton.addActionListener(e -> duplicateAsArray());
+    for (JButton button : new JButton[] { copyButton, pasteButton, arrayButton }) {
+        button.setMaximumSize(new Dimension(Integer.MAX_VALUE, button.getPreferredSize().height));
+        button.setAlignmentX(Component.CENTER_ALIGNMENT);
+        roomsPanel.add(Box.createVerticalStrut(5));
+        roomsPanel.add(button);
+    }
     JPanel directionPanel = new JPanel();
     directionPanel.setLayout(new BoxLayout(directionPanel, BoxLayout.Y_AXIS));
     directionPanel.setBorder(BorderFactory.createTitledBorder("Placement Direction"));
@@ -278,24 +614,27 @@ public class FloorPlanner extends JFrame {
     panel.add(roomsPanel);
     panel.add(Box.createVerticalStrut(10));
     
+    // While either mode is on, clicks near a wall place a door or window and clicks on
+    // an existing one remove it
     JButton addDoorButton = new JButton("Add Door");
         addDoorButton.setMaximumSize(new Dimension(Integer.MAX_VALUE, addDoorButton.getPreferredSize().height));
         addDoorButton.setAlignmentX(Component.CENTER_ALIGNMENT);
+        JButton addWindowButton = new JButton("Add Window");
+        addWindowButton.setMaximumSize(new Dimension(Integer.MAX_VALUE, addWindowButton.getPreferredSize().height));
+        addWindowButton.setAlignmentX(Component.CENTER_ALIGNMENT);
         addDoorButton.addActionListener(e -> {
             addingDoor = !addingDoor;
             addingWindow = false;
             addDoorButton.setBackground(addingDoor ? Color.LIGHT_GRAY : null);
+            addWindowButton.setBackground(null);
             firstRoomClick = null;
             firstSelectedRoom = null;
         });
-
-        JButton addWindowButton = new JButton("Add Window");
-        addWindowButton.setMaximumSize(new Dimension(Integer.MAX_VALUE, addWindowButton.getPreferredSize().height));
-        addWindowButton.setAlignmentX(Component.CENTER_ALIGNMENT);
         addWindowButton.addActionListener(e -> {
             addingWindow = !addingWindow;
             addingDoor = false;
             addWindowButton.setBackground(addingWindow ? Color.LIGHT_GRAY : null);
+            addDoorButton.setBackground(null);
         });
 
     
@@ -305,10 +644,10 @@ public class FloorPlanner extends JFrame {
     panel.add(Box.createVerticalStrut(10)); panel.add(directionPanel); panel.add(Box.createVerticalStrut(10)); panel.add(propertiesPanel);
     
 
-    // fixturesPanel.add(addDoorButton);
-    // fixturesPanel.add(Box.createVerticalStrut(5));
-    // fixturesPanel.add(addWindowButton);
-    // fixturesPanel.add(Box.createVerticalStrut(5));
+    fixturesPanel.add(addDoorButton);
+    fixturesPanel.add(Box.createVerticalStrut(5));
+    fixturesPanel.add(addWindowButton);
+    fixturesPanel.add(Box.createVerticalStrut(5));
 
 
     return panel;
@@ -316,22 +655,17 @@ public class FloorPlanner extends JFrame {
 
 
 private void deleteSelectedRoom() {
-        if (selectedRoom != null) {
-            rooms.remove(selectedRoom);
+        if (!selection.isEmpty()) {
+            deleteSelection();
+        } else if (selectedRoom != null) {
+            Room room = selectedRoom;
+            recordEdit(new DeleteRoomCommand(room, removeRoomFromPlan(room)));
             selectedRoom = null;
             selectedFixture = null; // Clear selected fixture as well
             updatePropertiesPanel(null);
             deleteRoomButton.setEnabled(false);
             canvas.repaint();
         }
-    }   private String getColorHex(String colorName) {
-        return switch (colorName) {
-            case "GREEN" -> "#90EE90";
-            case "RED" -> "#FFB6C1";
-            case "YELLOW" -> "#FFFFE0";
-            case "BLUE" -> "#ADD8E6";
-            default -> "#FFFFFF";
-        };
     } private Point findAvailableSpace(int width, int height) {
         if (selectedRoom == null || directionComboBox.getSelectedItem().equals("None")) {
             // Use existing logic for default placement
@@ -350,14 +684,12 @@ private void deleteSelectedRoom() {
                 return null;
             }
             // Then check for overlaps
-            for (Room room : rooms) {
-                if (room.bounds.intersects(candidateRect)) {
-                    JOptionPane.showMessageDialog(this,
-                            "Cannot place room in " + direction + " direction - overlap detected!",
-                            "Overlap Error",
-                            JOptionPane.ERROR_MESSAGE);
-                    return null;
-                }
+            if (index.roomOverlaps.overlapsAny(candidateRect, null)) {
+                JOptionPane.showMessageDialog(this,
+                        "Cannot place room in " + direction + " direction - overlap detected!",
+                        "Overlap Error",
+                        JOptionPane.ERROR_MESSAGE);
+                return null;
             }
         }
         return position;
@@ -365,8 +697,8 @@ private void deleteSelectedRoom() {
     private boolean isWithinCanvas(Rectangle rect) {
         return rect.x >= 0 &&
                 rect.y >= 0 &&
-                rect.x + rect.width <= canvas.getWidth() &&
-                rect.y + rect.height <= canvas.getHeight();
+                rect.x + rect.width <= canvas.getPlanWidth() &&
+                rect.y + rect.height <= canvas.getPlanHeight();
     }
     // New helper method for directional placement
     private Point calculatePositionInDirection(Rectangle reference, int width, int height, String direction) {
@@ -380,58 +712,26 @@ private void deleteSelectedRoom() {
     }
     private Point findDefaultAvailableSpace(int width, int height) {
         // First check if the room is too big for the canvas
-        if (width > canvas.getWidth() || height > canvas.getHeight()) {
+        if (width > canvas.getPlanWidth() || height > canvas.getPlanHeight()) {
             JOptionPane.showMessageDialog(this,
                     "Room dimensions are too large for the canvas!",
                     "Size Error",
                     JOptionPane.ERROR_MESSAGE);
             return null;
         }
-        Point candidate = new Point(GRID_SIZE, GRID_SIZE);
-        boolean foundSpace = false;
-        int maxAttempts = 1000;
-        int attempts = 0;
-        while (!foundSpace && attempts < maxAttempts) {
-            Rectangle candidateRect = new Rectangle(candidate.x, candidate.y, width, height);
-            boolean hasOverlap = false;
-            // Check if the candidate position is within canvas bounds
-            if (!isWithinCanvas(candidateRect)) {
-                JOptionPane.showMessageDialog(this,
-                        "Not enough space on the canvas to add this room!",
-                        "Space Error",
-                        JOptionPane.ERROR_MESSAGE);
-                return null;
-            }
-            for (Room room : rooms) {
-                if (room.bounds.intersects(candidateRect)) {
-                    hasOverlap = true;
-                    break;
-                }
-            }
-            if (!hasOverlap) {
-                foundSpace = true;
-            } else {
-                candidate.x += GRID_SIZE;
-                if (candidate.x + width > canvas.getWidth()) {
-                    candidate.x = GRID_SIZE;
-                    candidate.y += GRID_SIZE;
-                }
-                if (candidate.y + height > canvas.getHeight()) {
-                    // Instead of automatically expanding canvas, show error
-                    JOptionPane.showMessageDialog(this,
-                            "Not enough space on the canvas to add this room!",
-                            "Space Error",
-                            JOptionPane.ERROR_MESSAGE);
-                    return null;
-                }
-            }
-            attempts++;
+        Point candidate = FreeSpaceFinder.findFirstFit(rooms, canvas.getPlanWidth(), canvas.getPlanHeight(), width, height);
+        if (candidate == null) {
+            JOptionPane.showMessageDialog(this,
+                    "Not enough space on the canvas to add this room!",
+                    "Space Error",
+                    JOptionPane.ERROR_MESSAGE);
         }
         return candidate;
     }
-    private void addRoom(String roomType, Color color) {
-        JTextField widthField = new JTextField(5);
-        JTextField heightField = new JTextField(5);
+    private void addRoom(TemplateLibrary.RoomTemplate template) {
+        String roomType = template.roomType();
+        JTextField widthField = new JTextField(template.width > 0 ? formatMetres(template.width) : "", 5);
+        JTextField heightField = new JTextField(template.height > 0 ? formatMetres(template.height) : "", 5);
         JPanel panel = new JPanel();
         panel.add(new JLabel("Width (m):"));
         panel.add(widthField);
@@ -448,8 +748,10 @@ private void deleteSelectedRoom() {
                 Point availableSpace = findAvailableSpace(width, height);
 
                 if (availableSpace != null) {
-                    Room newRoom = new Room(availableSpace.x, availableSpace.y, width, height, color, roomType);
-                    rooms.add(newRoom);
+                    Room newRoom = new Room(availableSpace.x, availableSpace.y, width, height, template.color, roomType);
+                    furnish(newRoom, template.furnishing);
+                    addRoomToPlan(newRoom);
+                    recordEdit(new AddRoomCommand(newRoom));
                     canvas.repaint();
                 }
             } catch (NumberFormatException ex) {
@@ -460,7 +762,39 @@ private void deleteSelectedRoom() {
             }
         }
     }
+    private static String formatMetres(double metres) {
+        return metres == Math.rint(metres) ? String.valueOf((long) metres) : String.valueOf(metres);
+    }
+    // Puts a template's furnishing into a room that is not yet on the plan, so adding
+    // the room journals and undoes it in one step. Pieces the library does not know,
+    // or that would leave the room or overlap, are left out.
+    private void furnish(Room room, List<TemplateLibrary.Placement> furnishing) {
+        for (TemplateLibrary.Placement placement : furnishing) {
+            TemplateLibrary.ItemTemplate type = templates.item(placement.item);
+            if (type == null) {
+                continue;
+            }
+            Point position = new Point(room.bounds.x + (int) Math.round(placement.x * 2) * GRID_SIZE,
+                    room.bounds.y + (int) Math.round(placement.y * 2) * GRID_SIZE);
+            if (type.fixture) {
+                Fixture fixture = new Fixture(type.name, position, type.imagePath, room);
+                fixture.setRotation(placement.rotation);
+                if (PlanValidator.canPlaceItem(room, fixture.getBounds(), null)) {
+                    room.addFixture(fixture);
+                }
+            } else {
+                Furniture furniture = new Furniture(type.name, position, type.imagePath, room);
+                furniture.setRotation(placement.rotation);
+                if (PlanValidator.canPlaceItem(room, furniture.getBounds(), null)) {
+                    room.addFurniture(furniture);
+                }
+            }
+        }
+    }
     private void updatePropertiesPanel(Room room) {
+        if (propertiesPanel == null) {
+            return; // Not built yet; finishStartup shows the selection when it is
+        }
         propertiesPanel.removeAll();
         if (room != null) {
             double xMeters = room.bounds.x * 0.5 / GRID_SIZE;
@@ -479,8 +813,39 @@ private void deleteSelectedRoom() {
             propertiesPanel.add(dimensionsLabel);
             propertiesPanel.add(Box.createVerticalStrut(5));
             propertiesPanel.add(areaLabel);
+            // Shared walls, e.g. "Kitchen (2.00 m), Bathroom (1.50 m)"
+            StringBuilder neighbours = new StringBuilder();
+            for (Room neighbour : index.adjacency.neighbours(room)) {
+                if (neighbours.length() > 0) {
+                    neighbours.append(", ");
+                }
+                neighbours.append(String.format("%s (%.2f m)", neighbour.getLabel(),
+                        index.adjacency.sharedWallLength(room, neighbour) * 0.5 / GRID_SIZE));
+            }
+            propertiesPanel.add(Box.createVerticalStrut(5));
+            propertiesPanel.add(new JLabel("Shares walls with: " + (neighbours.length() > 0 ? neighbours : "none")));
+            if (egress != null) {
+                int furthest = egress.furthestInRoom(room);
+                propertiesPanel.add(Box.createVerticalStrut(5));
+                propertiesPanel.add(new JLabel(furthest == EgressMap.UNREACHABLE
+                        ? "Egress: part of the room has no route to an exit"
+                        : furthest < 0 ? "Egress: no free floor"
+                        : String.format("Egress: at most %.2f m to an exit", furthest * 0.5)));
+            }
             // Enable delete button when a room is selected
             deleteRoomButton.setEnabled(true);
+        } else if (!selection.isEmpty()) {
+            int roomCount = 0;
+            for (Object member : selection) {
+                if (member instanceof Room) {
+                    roomCount++;
+                }
+            }
+            propertiesPanel.add(new JLabel(String.format("Selected: %d room(s), %d item(s)",
+                    roomCount, selection.size() - roomCount)));
+            propertiesPanel.add(Box.createVerticalStrut(5));
+            propertiesPanel.add(new JLabel("Drag any of them to move all; shift-click to add or remove"));
+            deleteRoomButton.setEnabled(true);
         } else {
             propertiesPanel.add(new JLabel("Select a room to view properties"));
             // Disable delete button when no room is selected
@@ -491,706 +856,6865 @@ private void deleteSelectedRoom() {
     }
     // New method to save the floor plan
     private void saveFloorPlan() {
-        fileChooser
+        if (isPlanTaskRunning()) {
+            return;
+        }
+        fileChooser()
                 .setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("Floor Plan Files (*.fpl)", "fpl"));
-        int result = fileChooser.showSaveDialog(this);
+        int result = fileChooser().showSaveDialog(this);
         if (result == JFileChooser.APPROVE_OPTION) {
-            File file = fileChooser.getSelectedFile();
+            File selected = fileChooser().getSelectedFile();
             // Add .fpl extension if not present
-            if (!file.getName().toLowerCase().endsWith(".fpl")) {
-                file = new File(file.getPath() + ".fpl");
-            }
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file))) {
-                // Create a serializable data structure to store room information
-                ArrayList<RoomData> roomDataList = new ArrayList<>();
-                for (Room room : rooms) {
-                    RoomData roomData = new RoomData(
-                            room.bounds.x,
-                            room.bounds.y,
-                            room.bounds.width,
-                            room.bounds.height,
-                            room.color,
-                            room.type);
-                    roomDataList.add(roomData);
-                }
-
-                oos.writeObject(roomDataList);
-                JOptionPane.showMessageDialog(this,
-                        "Floor plan saved successfully!",
-                        "Success",
-                        JOptionPane.INFORMATION_MESSAGE);
-
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(this,
-                        "Error saving floor plan: " + ex.getMessage(),
-                        "Error",
-                        JOptionPane.ERROR_MESSAGE);
-            }
+            File file = selected.getName().toLowerCase().endsWith(".fpl")
+                    ? selected
+                    : new File(selected.getPath() + ".fpl");
+            // Captured here on the EDT, so edits made while the file is written cannot tear it
+            PlanFile.Snapshot snapshot = PlanFile.capture(rooms, doors, windows);
+            long editsAtCapture = journal.editCount();
+            planTask = new PlanTask<Void>("Saving floor plan...") {
+                @Override
+                protected Void doInBackground() throws IOException {
+                    // Write beside the target and swap it in, so a failed or cancelled
+                    // save never leaves a half-written plan behind
+                    File temp = new File(file.getPath() + ".tmp");
+                    try (OutputStream out = new FileOutputStream(temp)) {
+                        PlanFile.write(out, snapshot, this);
+                    } catch (IOException ex) {
+                        temp.delete();
+                        throw ex;
+                    }
+                    try {
+                        try {
+                            Files.move(temp.toPath(), file.toPath(),
+                                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        } catch (AtomicMoveNotSupportedException ex) {
+                            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                        }
+                    } catch (IOException ex) {
+                        temp.delete(); // The plan on disk is untouched; don't leave the copy beside it
+                        throw ex;
+                    }
+                    return null;
+                }
+                @Override
+                void succeeded(Void result) {
+                    // The journal only has to cover what the file does not: nothing, unless
+                    // the plan was edited while it was being written
+                    if (journal.editCount() == editsAtCapture) {
+                        journal.startFrom(file);
+                    } else {
+                        journal.startFromSnapshot(file);
+                    }
+                    JOptionPane.showMessageDialog(FloorPlanner.this,
+                            "Floor plan saved successfully!",
+                            "Success",
+                            JOptionPane.INFORMATION_MESSAGE);
+                }
+                @Override
+                void failed(Throwable error) {
+                    JOptionPane.showMessageDialog(FloorPlanner.this,
+                            "Error saving floor plan: " + error.getMessage(),
+                            "Error",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+            };
+            planTask.execute();
         }
     }
 
     // New method to load the floor plan
     private void loadFloorPlan() {
-        fileChooser
+        if (isPlanTaskRunning()) {
+            return;
+        }
+        fileChooser()
                 .setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("Floor Plan Files (*.fpl)", "fpl"));
-        int result = fileChooser.showOpenDialog(this);
+        int result = fileChooser().showOpenDialog(this);
 
         if (result == JFileChooser.APPROVE_OPTION) {
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(fileChooser.getSelectedFile()))) {
-                // Read the room data list
-                ArrayList<RoomData> roomDataList = (ArrayList<RoomData>) ois.readObject();
-
-                // Clear existing rooms
-                rooms.clear();
-
-                // Recreate rooms from the loaded data
-                for (RoomData roomData : roomDataList) {
-                    Room room = new Room(
-                            roomData.x,
-                            roomData.y,
-                            roomData.width,
-                            roomData.height,
-                            roomData.color,
-                            roomData.type);
-                    rooms.add(room);
-                }
-                // Reset selection and repaint
-                selectedRoom = null;
-                updatePropertiesPanel(null);
-                canvas.repaint();
-                JOptionPane.showMessageDialog(this,
-                        "Floor plan loaded successfully!",
-                        "Success",
-                        JOptionPane.INFORMATION_MESSAGE);
-            } catch (IOException | ClassNotFoundException ex) {
-                JOptionPane.showMessageDialog(this,
-                        "Error loading floor plan: " + ex.getMessage(),
-                        "Error",
-                        JOptionPane.ERROR_MESSAGE);
+            File file = fileChooser().getSelectedFile();
+            if (!offerRecovery(file)) {
+                planTask = new PlanTask<LoadedPlan>("Loading floor plan...") {
+                    @Override
+                    protected LoadedPlan doInBackground() throws IOException {
+                        return new LoadedPlan(PlanFile.read(file, this));
+                    }
+                    @Override
+                    void succeeded(LoadedPlan loaded) {
+                        installPlan(loaded);
+                        journal.startFrom(file);
+                        JOptionPane.showMessageDialog(FloorPlanner.this,
+                                "Floor plan loaded successfully!",
+                                "Success",
+                                JOptionPane.INFORMATION_MESSAGE);
+                    }
+                    @Override
+                    void failed(Throwable error) {
+                        JOptionPane.showMessageDialog(FloorPlanner.this,
+                                "Error loading floor plan: " + error.getMessage(),
+                                "Error",
+                                JOptionPane.ERROR_MESSAGE);
+                    }
+                };
+                planTask.execute();
             }
         }
     }
-
-    class Furniture implements Serializable {
-        private static final long serialVersionUID = 1L;
-        private Point position;
-        private ImageIcon image;
-        private String type;
-        private int rotation; // 0, 90, 180, 270 degrees
-        private Rectangle bounds;
-        private Room parentRoom;
-        private static final int FURNITURE_SIZE = 40; // 3 grid cells (20px * 3) - larger than fixtures
-        
-        public Furniture(String type, Point position, String imagePath, Room parentRoom) {
-            this.type = type;
-            this.position = position;
-            this.rotation = 0;
-            this.parentRoom = parentRoom;
-            try {
-                ImageIcon originalIcon = new ImageIcon(imagePath);
-                Image scaledImage = originalIcon.getImage().getScaledInstance(FURNITURE_SIZE, FURNITURE_SIZE, Image.SCALE_SMOOTH);
-                this.image = new ImageIcon(scaledImage);
-            } catch (Exception e) {
-                e.printStackTrace();
+    // Offers to restore the autosaved changes for a plan file (or for the untitled plan
+    // when file is null). Returns true if a recovery was started.
+    private boolean offerRecovery(File file) {
+        journal.sync();
+        File journalFile = file == null ? PlanJournal.untitledJournal() : PlanJournal.journalFor(file);
+        if (!PlanJournal.hasRecoverableChanges(journalFile)) {
+            return false;
+        }
+        int answer = JOptionPane.showConfirmDialog(this,
+                file == null
+                        ? "An unsaved floor plan was found from a previous session. Recover it?"
+                        : "There are unsaved changes to " + file.getName() + " from a previous session. Recover them?",
+                "Recover Floor Plan",
+                JOptionPane.YES_NO_OPTION);
+        if (answer != JOptionPane.YES_OPTION) {
+            journalFile.delete();
+            return false;
+        }
+        planTask = new PlanTask<LoadedPlan>("Recovering floor plan...") {
+            @Override
+            protected LoadedPlan doInBackground() throws IOException {
+                return new LoadedPlan(PlanJournal.replay(journalFile));
             }
-            updateBounds();
+            @Override
+            void succeeded(LoadedPlan loaded) {
+                installPlan(loaded);
+                // The recovered plan exists nowhere but in the journal, so rebase it on a snapshot
+                journal.startFromSnapshot(file);
+            }
+            @Override
+            void failed(Throwable error) {
+                JOptionPane.showMessageDialog(FloorPlanner.this,
+                        "Error recovering floor plan: " + error.getMessage(),
+                        "Error",
+                        JOptionPane.ERROR_MESSAGE);
+            }
+        };
+        planTask.execute();
+        return true;
+    }
+    // Replaces the current plan with one read in the background
+    private void installPlan(LoadedPlan loaded) {
+        rooms.clear();
+        rooms.addAll(loaded.plan.rooms);
+        doors.clear();
+        doors.addAll(loaded.plan.doors);
+        windows.clear();
+        windows.addAll(loaded.plan.windows);
+        index = loaded.index;
+        planWidth = PLAN_EXTENT;
+        planHeight = PLAN_EXTENT;
+        for (Room room : rooms) {
+            planWidth = Math.max(planWidth, room.bounds.x + room.bounds.width);
+            planHeight = Math.max(planHeight, room.bounds.y + room.bounds.height);
         }
-    
-        public void updatePosition(int dx, int dy) {
-            this.position.x += dx;
-            this.position.y += dy;
-            updateBounds();
+        if (egress != null) {
+            egress = EgressMap.build(index, rooms);
         }
-    
-        private void updateBounds() {
-            this.bounds = new Rectangle(position.x, position.y, FURNITURE_SIZE, FURNITURE_SIZE);
+        history.clear();
+        updateUndoButtons();
+        // Reset selection and any drag that was in progress, then repaint
+        selectedRoom = null;
+        selectedFixture = null;
+        selectedFurniture = null;
+        selection.clear();
+        draggedRoom = null;
+        draggedFixture = null;
+        draggedFurniture = null;
+        groupDragStart = null;
+        updatePropertiesPanel(null);
+        canvas.repaint();
+        if (!loaded.violations.isEmpty()) {
+            showViolations(loaded.violations);
         }
-    
-        public void setPosition(Point position) {
-            this.position = position;
-            updateBounds();
+    }
+    // Lists what is wrong with a plan, up to a screenful
+    private void showViolations(List<PlanValidator.Violation> violations) {
+        showProblems("Plan Problems", "This floor plan has " + violations.size() + " problem(s):\n", violations);
+    }
+    private void showProblems(String title, String heading, List<?> problems) {
+        final int shown = 20;
+        StringBuilder message = new StringBuilder(heading);
+        for (Object problem : problems.subList(0, Math.min(shown, problems.size()))) {
+            message.append("\n- ").append(problem);
         }
-    
-        public void rotate() {
-            rotation = (rotation + 90) % 360;
+        if (problems.size() > shown) {
+            message.append("\n... and ").append(problems.size() - shown).append(" more");
         }
-    
-        public void draw(Graphics g) {
-            if (image != null) {
-                Graphics2D g2d = (Graphics2D) g;
-                g2d.translate(position.x + FURNITURE_SIZE/2, position.y + FURNITURE_SIZE/2);
-                g2d.rotate(Math.toRadians(rotation));
-                g2d.drawImage(image.getImage(), -FURNITURE_SIZE/2, -FURNITURE_SIZE/2, null);
-                g2d.rotate(-Math.toRadians(rotation));
-                g2d.translate(-(position.x + FURNITURE_SIZE/2), -(position.y + FURNITURE_SIZE/2));
-            }
+        JOptionPane.showMessageDialog(this, message.toString(), title, JOptionPane.WARNING_MESSAGE);
+    }
+    private boolean isPlanTaskRunning() {
+        if (planTask != null && !planTask.isDone()) {
+            JOptionPane.showMessageDialog(this,
+                    "Please wait for the current task to finish.",
+                    "Busy",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return true;
         }
-    
-        public boolean intersects(Furniture other) {
-            return bounds.intersects(other.bounds);
+        return false;
+    }
+    // Model changes shared by direct edits and by undo/redo. Each keeps the indexes, the
+    // autosave journal and the selection in step with the plan.
+    private void addRoomToPlan(Room room) {
+        rooms.add(room);
+        index.indexRoom(room);
+        journal.roomAdded(room);
+        planChanged(room.bounds);
+    }
+    // Returns the doors and windows that went with the room
+    private List<Object> removeRoomFromPlan(Room room) {
+        List<Object> openings = index.openings.attachedTo(room);
+        rooms.remove(room);
+        index.unindexRoom(room);
+        journal.roomDeleted(room);
+        for (Object opening : openings) {
+            dropOpening(opening);
         }
-    
-        public boolean intersectsFixture(Fixture fixture) {
-            return bounds.intersects(fixture.getBounds());
+        planChanged(room.bounds);
+        if (selectedRoom == room) {
+            selectedRoom = null;
+            updatePropertiesPanel(null);
         }
-    
-        public Rectangle getBounds() {
-            return bounds;
+        if (selection.remove(room)) {
+            updatePropertiesPanel(selectedRoom);
         }
-    
-        public Room getParentRoom() {
-            return parentRoom;
+        if (selectedFixture != null && selectedFixture.getParentRoom() == room) {
+            selectedFixture = null;
         }
-    
-        public void setParentRoom(Room room) {
-            this.parentRoom = room;
+        if (selectedFurniture != null && selectedFurniture.getParentRoom() == room) {
+            selectedFurniture = null;
         }
-    
-        public String getType() {
-            return type;
+        return openings;
+    }
+    // Returns the doors into neighbours that the move left behind
+    private List<Door> moveRoomBy(Room room, int dx, int dy) {
+        Rectangle before = new Rectangle(room.bounds);
+        room.bounds.translate(dx, dy);
+        room.updateFixturePositions(dx, dy);
+        room.updateFurniturePositions(dx, dy);
+        index.indexRoom(room);
+        journal.roomMoved(room);
+        List<Door> detached = moveOpeningsWith(room, dx, dy);
+        planChanged(before.union(room.bounds));
+        if (room == selectedRoom) {
+            updatePropertiesPanel(room);
         }
+        return detached;
     }
-
-    class Fixture implements Serializable {
-        private static final long serialVersionUID = 1L;
-        private Point position;
-        private ImageIcon image;
-        private String type;
-        private int rotation; private Rectangle bounds;private Room parentRoom;private static final int FIXTURE_SIZE = 40; // 2 grid cells (20px * 2)
-        public Fixture(String type, Point position, String imagePath, Room parentRoom) {
-            this.type = type;
-            this.position = position;
-            this.rotation = 0;
-            this.parentRoom = parentRoom;
-            try {
-                ImageIcon originalIcon = new ImageIcon(imagePath);
-                Image scaledImage = originalIcon.getImage().getScaledInstance(FIXTURE_SIZE, FIXTURE_SIZE, Image.SCALE_SMOOTH);
-                this.image = new ImageIcon(scaledImage);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            updateBounds();
+    // Follows up a room that has moved by dx, dy and is already journaled as moved
+    private List<Door> moveOpeningsWith(Room room, int dx, int dy) {
+        List<Object> attached = index.openings.attachedTo(room);
+        List<Door> detached = Openings.moveWithRoom(room, dx, dy, attached);
+        for (Object opening : attached) {
+            index.openings.insert(opening);
         }
-        public void updatePosition(int dx, int dy) {
-            this.position.x += dx;
+        for (Door door : detached) {
+            dropOpening(door);
+        }
+        return detached;
+    }
+    // Openings are a Door or a Window
+    private void addOpeningToPlan(Object opening) {
+        if (opening instanceof Door door) {
+            doors.add(door);
+        } else {
+            windows.add((Window) opening);
+        }
+        index.openings.insert(opening);
+        journal.openingAdded(opening);
+        planChanged(Openings.bounds(opening));
+    }
+    private void removeOpeningFromPlan(Object opening) {
+        journal.openingDeleted(opening);
+        dropOpening(opening);
+    }
+    // Takes an opening out without a journal record, for when the room record that
+    // caused it already implies the removal
+    private void dropOpening(Object opening) {
+        if (opening instanceof Door door) {
+            doors.remove(door);
+        } else {
+            windows.remove((Window) opening);
+        }
+        index.openings.remove(opening);
+        journal.openingForgotten(opening);
+        planChanged(Openings.bounds(opening));
+    }
+    // Items are a Fixture or a Furniture, which share no supertype
+    private void addItemToPlan(Object item) {
+        if (item instanceof Fixture fixture) {
+            fixture.getParentRoom().addFixture(fixture);
+            index.indexItem(fixture);
+            journal.itemAdded(fixture);
+        } else if (item instanceof Furniture furniture) {
+            furniture.getParentRoom().addFurniture(furniture);
+            index.indexItem(furniture);
+            journal.itemAdded(furniture);
+        }
+        planChanged(itemBounds(item));
+    }
+    private void removeItemFromPlan(Object item) {
+        journal.itemDeleted(item);
+        if (item instanceof Fixture fixture) {
+            index.unindexItem(fixture);
+            fixture.getParentRoom().removeFixture(fixture);
+            if (selectedFixture == fixture) {
+                selectedFixture = null;
+            }
+        } else if (item instanceof Furniture furniture) {
+            index.unindexItem(furniture);
+            furniture.getParentRoom().removeFurniture(furniture);
+            if (selectedFurniture == furniture) {
+                selectedFurniture = null;
+            }
+        }
+        planChanged(itemBounds(item));
+        if (selection.remove(item)) {
+            updatePropertiesPanel(selectedRoom);
+        }
+    }
+    private void moveItemBy(Object item, int dx, int dy) {
+        Rectangle before = new Rectangle(itemBounds(item));
+        if (item instanceof Fixture fixture) {
+            fixture.updatePosition(dx, dy);
+            index.indexItem(fixture);
+            journal.itemMoved(fixture);
+        } else if (item instanceof Furniture furniture) {
+            furniture.updatePosition(dx, dy);
+            index.indexItem(furniture);
+            journal.itemMoved(furniture);
+        }
+        planChanged(before.union(itemBounds(item)));
+    }
+    private static Rectangle itemBounds(Object item) {
+        return item instanceof Fixture fixture ? fixture.getBounds() : ((Furniture) item).getBounds();
+    }
+    private static Room parentOf(Object item) {
+        return item instanceof Fixture fixture ? fixture.getParentRoom() : ((Furniture) item).getParentRoom();
+    }
+    // Multi-selection. An item whose room is selected goes wherever the room goes,
+    // so the bulk edits below leave it to the room.
+    private void toggleSelected(Object entity) {
+        extendSingleSelection();
+        if (!selection.remove(entity)) {
+            selection.add(entity);
+        }
+        updatePropertiesPanel(null);
+    }
+    // Shift-clicks and rubber bands add to whatever was selected on its own
+    private void extendSingleSelection() {
+        Object single = selectedFurniture != null ? selectedFurniture
+                : selectedFixture != null ? selectedFixture : selectedRoom;
+        if (single != null) {
+            selection.add(single);
+        }
+        selectedRoom = null;
+        selectedFixture = null;
+        selectedFurniture = null;
+    }
+    private void clearSelection() {
+        if (!selection.isEmpty()) {
+            selection.clear();
+            updatePropertiesPanel(selectedRoom);
+        }
+    }
+    private List<Room> selectedRooms() {
+        ArrayList<Room> selected = new ArrayList<>();
+        for (Object member : selection) {
+            if (member instanceof Room room) {
+                selected.add(room);
+            }
+        }
+        return selected;
+    }
+    private List<Object> looseSelectedItems() {
+        ArrayList<Object> loose = new ArrayList<>();
+        for (Object member : selection) {
+            if (!(member instanceof Room) && !selection.contains(parentOf(member))) {
+                loose.add(member);
+            }
+        }
+        return loose;
+    }
+    // Turns every selected fixture and piece of furniture a quarter turn, as one undo step
+    private void rotateSelection() {
+        ArrayList<EditHistory.Command> commands = new ArrayList<>();
+        for (Object member : selection) {
+            if (!(member instanceof Room)) {
+                rotateItemBy(member, 90);
+                commands.add(new RotateItemCommand(member, 90));
+            }
+        }
+        if (!commands.isEmpty()) {
+            recordEdit(new BatchCommand(commands));
+            canvas.repaint();
+        }
+    }
+    // Deletes the selected rooms, with their contents and openings, and the other
+    // selected items, as one undo step
+    private void deleteSelection() {
+        ArrayList<EditHistory.Command> commands = new ArrayList<>();
+        List<Room> selectedRooms = selectedRooms();
+        List<Object> loose = looseSelectedItems();
+        // Emptied first so the removals below need not update it one by one
+        selection.clear();
+        for (Room room : selectedRooms) {
+            commands.add(new DeleteRoomCommand(room, removeRoomFromPlan(room)));
+        }
+        for (Object item : loose) {
+            removeItemFromPlan(item);
+            commands.add(new DeleteItemCommand(item));
+        }
+        updatePropertiesPanel(null);
+        if (!commands.isEmpty()) {
+            recordEdit(new BatchCommand(commands));
+        }
+        canvas.repaint();
+    }
+    // Checks a group already moved live against everything outside it. Group members
+    // are still indexed where they were, so index hits on them are skipped; the group
+    // moved rigidly, so its members cannot have run into each other. Returns what is
+    // wrong, or null.
+    private String findGroupMoveProblem(List<Room> movedRooms, List<Object> movedItems) {
+        for (Room room : movedRooms) {
+            if (!isWithinCanvas(room.bounds)) {
+                return "Cannot place " + room.getLabel() + " outside the canvas boundaries!";
+            }
+            for (Room other : index.roomOverlaps.findAllOverlaps(room.bounds, room)) {
+                if (!selection.contains(other)) {
+                    return String.format("Cannot place %s here - it overlaps with %s!",
+                            room.getLabel(), other.getLabel());
+                }
+            }
+        }
+        for (Object item : movedItems) {
+            Rectangle bounds = itemBounds(item);
+            if (!parentOf(item).bounds.contains(bounds)) {
+                return "Cannot move items out of their room!";
+            }
+            for (Fixture fixture : index.fixtures.findAll(bounds)) {
+                if (!selection.contains(fixture)) {
+                    return "Cannot place items here - overlap detected!";
+                }
+            }
+            for (Furniture furniture : index.furniture.findAll(bounds)) {
+                if (!selection.contains(furniture)) {
+                    return "Cannot place items here - overlap detected!";
+                }
+            }
+        }
+        return null;
+    }
+    // Files a group that was dragged live by dx, dy, as one undo step
+    private void commitGroupMove(List<Room> movedRooms, List<Object> movedItems, int dx, int dy) {
+        ArrayList<EditHistory.Command> commands = new ArrayList<>();
+        Rectangle changed = null;
+        for (Room room : movedRooms) {
+            index.indexRoom(room);
+            journal.roomMoved(room);
+            commands.add(new MoveRoomCommand(room, dx, dy, moveOpeningsWith(room, dx, dy)));
+            changed = union(changed, room.bounds);
+        }
+        for (Object item : movedItems) {
+            index.indexItem(item);
+            if (item instanceof Fixture fixture) {
+                journal.itemMoved(fixture);
+            } else {
+                journal.itemMoved((Furniture) item);
+            }
+            commands.add(new MoveItemCommand(item, dx, dy));
+            changed = union(changed, itemBounds(item));
+        }
+        if (changed != null) {
+            Rectangle before = new Rectangle(changed);
+            before.translate(-dx, -dy);
+            planChanged(changed.union(before));
+            recordEdit(new BatchCommand(commands));
+        }
+    }
+    // Copy, paste and array duplicates work on the selected rooms, or the one selected room
+    private List<Room> roomsToCopy() {
+        List<Room> selected = selectedRooms();
+        if (selected.isEmpty() && selectedRoom != null) {
+            selected = List.of(selectedRoom);
+        }
+        return selected;
+    }
+    private void copyRooms() {
+        List<Room> source = roomsToCopy();
+        if (source.isEmpty()) {
+            return;
+        }
+        ArrayList<Room> copies = new ArrayList<>();
+        for (Room room : source) {
+            copies.add(room.duplicate(0, 0));
+        }
+        clipboard = copies;
+    }
+    // Pastes at the first place the copied rooms fit as a block, found with one search
+    private void pasteRooms() {
+        if (clipboard.isEmpty() || isDragging()) {
+            return;
+        }
+        Rectangle block = null;
+        for (Room room : clipboard) {
+            block = union(block, room.bounds);
+        }
+        Point free = FreeSpaceFinder.findFirstFit(rooms, canvas.getPlanWidth(), canvas.getPlanHeight(),
+                block.width, block.height);
+        if (free == null) {
+            JOptionPane.showMessageDialog(this,
+                    "Not enough space on the canvas to paste these rooms!",
+                    "Space Error",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        ArrayList<Room> copies = new ArrayList<>();
+        for (Room room : clipboard) {
+            copies.add(room.duplicate(free.x - block.x, free.y - block.y));
+        }
+        placeCopies(copies);
+    }
+    // Repeats the rooms to copy over a rows x columns array, the original in the top-left
+    // corner and each copy one block plus the spacing from its neighbours
+    private void duplicateAsArray() {
+        List<Room> source = roomsToCopy();
+        if (source.isEmpty()) {
+            JOptionPane.showMessageDialog(this,
+                    "Select the rooms to duplicate first.",
+                    "Duplicate as Array",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        if (isDragging()) {
+            return;
+        }
+        JSpinner rowsSpinner = new JSpinner(new SpinnerNumberModel(1, 1, 100, 1));
+        JSpinner columnsSpinner = new JSpinner(new SpinnerNumberModel(2, 1, 100, 1));
+        JSpinner spacingSpinner = new JSpinner(new SpinnerNumberModel(0.0, 0.0, 50.0, 0.5));
+        JPanel panel = new JPanel(new GridLayout(0, 2, 5, 5));
+        panel.add(new JLabel("Rows:"));
+        panel.add(rowsSpinner);
+        panel.add(new JLabel("Columns:"));
+        panel.add(columnsSpinner);
+        panel.add(new JLabel("Spacing (m):"));
+        panel.add(spacingSpinner);
+        int result = JOptionPane.showConfirmDialog(this, panel, "Duplicate as Array", JOptionPane.OK_CANCEL_OPTION);
+        if (result != JOptionPane.OK_OPTION) {
+            return;
+        }
+        int rows = (Integer) rowsSpinner.getValue();
+        int columns = (Integer) columnsSpinner.getValue();
+        // Half-metre steps keep the copies on the grid
+        int spacing = (int) Math.round((Double) spacingSpinner.getValue() * 2) * GRID_SIZE;
+        Rectangle block = null;
+        for (Room room : source) {
+            block = union(block, room.bounds);
+        }
+        ArrayList<Room> copies = new ArrayList<>();
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                if (row == 0 && column == 0) {
+                    continue;
+                }
+                int dx = column * (block.width + spacing);
+                int dy = row * (block.height + spacing);
+                for (Room room : source) {
+                    copies.add(room.duplicate(dx, dy));
+                }
+            }
+        }
+        placeCopies(copies);
+    }
+    // Adds copies laid out by paste or duplicate, all or none, as one undo step. The
+    // layouts repeat rooms that did not overlap each other, so the copies need only be
+    // checked against the canvas and the rooms already in the plan - one pass through
+    // the overlap index.
+    private void placeCopies(List<Room> copies) {
+        int outside = 0, overlapping = 0;
+        for (Room copy : copies) {
+            if (!isWithinCanvas(copy.bounds)) {
+                outside++;
+            } else if (index.roomOverlaps.overlapsAny(copy.bounds, null)) {
+                overlapping++;
+            }
+        }
+        if (outside > 0 || overlapping > 0) {
+            JOptionPane.showMessageDialog(this,
+                    String.format("Cannot place %d room(s): %d would be outside the canvas and %d would overlap "
+                            + "existing rooms!", copies.size(), outside, overlapping),
+                    "Placement Error",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        ArrayList<EditHistory.Command> commands = new ArrayList<>();
+        for (Room copy : copies) {
+            addRoomToPlan(copy);
+            commands.add(new AddRoomCommand(copy));
+        }
+        recordEdit(new BatchCommand(commands));
+        // The copies become the selection, ready to be dragged into place
+        selectedRoom = null;
+        selectedFixture = null;
+        selectedFurniture = null;
+        selection.clear();
+        selection.addAll(copies);
+        updatePropertiesPanel(null);
+        canvas.repaint();
+    }
+    private static Rectangle union(Rectangle total, Rectangle bounds) {
+        if (total == null) {
+            return new Rectangle(bounds);
+        }
+        total.add(bounds);
+        return total;
+    }
+    // Keeps the egress heatmap, when shown, in step with an edit inside the area
+    private void planChanged(Rectangle area) {
+        if (egress != null && !egress.update(index, area)) {
+            egress = EgressMap.build(index, rooms);
+        }
+    }
+    private void toggleEgress(boolean shown) {
+        egress = shown ? EgressMap.build(index, rooms) : null;
+        updatePropertiesPanel(selectedRoom);
+        canvas.repaint();
+    }
+    private void rotateItemBy(Object item, int degrees) {
+        if (item instanceof Fixture fixture) {
+            fixture.setRotation(fixture.getRotation() + degrees);
+            journal.itemRotated(fixture);
+        } else if (item instanceof Furniture furniture) {
+            furniture.setRotation(furniture.getRotation() + degrees);
+            journal.itemRotated(furniture);
+        }
+        index.indexItem(item);
+    }
+
+    // Records a change that has already been applied to the plan
+    // Every user-level edit ends here, undo and redo included, so it is also where the
+    // autosave journal may compact
+    private void recordEdit(EditHistory.Command command) {
+        history.push(command);
+        journal.compactIfDue();
+        updateUndoButtons();
+    }
+    private void undo() {
+        if (!isDragging() && history.undo()) {
+            journal.compactIfDue();
+            canvas.repaint();
+        }
+        updateUndoButtons();
+    }
+    private void redo() {
+        if (!isDragging() && history.redo()) {
+            journal.compactIfDue();
+            canvas.repaint();
+        }
+        updateUndoButtons();
+    }
+    private boolean isDragging() {
+        return draggedRoom != null || draggedFixture != null || draggedFurniture != null || groupDragStart != null;
+    }
+    private void updateUndoButtons() {
+        undoButton.setEnabled(history.canUndo());
+        redoButton.setEnabled(history.canRedo());
+    }
+    // Undo and redo stacks of small commands, each holding only what is needed to reverse
+    // its own change, so undoing or redoing costs as much as the change did. Once the
+    // commands' estimated footprint passes the limit the oldest undo steps are dropped.
+    private static class EditHistory {
+        interface Command {
+            void undo();
+            void redo();
+            // Rough number of heap bytes the command keeps reachable
+            long footprint();
+        }
+        private final java.util.ArrayDeque<Command> undoStack = new java.util.ArrayDeque<>();
+        private final java.util.ArrayDeque<Command> redoStack = new java.util.ArrayDeque<>();
+        private final long maxBytes;
+        private long bytes;
+
+        public EditHistory(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+        public void push(Command command) {
+            for (Command undone : redoStack) {
+                bytes -= undone.footprint();
+            }
+            redoStack.clear();
+            undoStack.push(command);
+            bytes += command.footprint();
+            while (bytes > maxBytes && !undoStack.isEmpty()) {
+                bytes -= undoStack.removeLast().footprint();
+            }
+        }
+        public boolean undo() {
+            Command command = undoStack.poll();
+            if (command == null) {
+                return false;
+            }
+            command.undo();
+            redoStack.push(command);
+            return true;
+        }
+        public boolean redo() {
+            Command command = redoStack.poll();
+            if (command == null) {
+                return false;
+            }
+            command.redo();
+            undoStack.push(command);
+            return true;
+        }
+        public boolean canUndo() {
+            return !undoStack.isEmpty();
+        }
+        public boolean canRedo() {
+            return !redoStack.isEmpty();
+        }
+        public void clear() {
+            undoStack.clear();
+            redoStack.clear();
+            bytes = 0;
+        }
+        public long footprint() {
+            return bytes;
+        }
+    }
+    // Estimated sizes behind Command.footprint: a command object with its references, and
+    // the entities only a command still holds once they are deleted
+    private static final int COMMAND_BYTES = 32;
+    private static final int ROOM_BYTES = 200;
+    private static final int ITEM_BYTES = 120;
+
+    private class AddRoomCommand implements EditHistory.Command {
+        private final Room room;
+        AddRoomCommand(Room room) {
+            this.room = room;
+        }
+        public void undo() {
+            removeRoomFromPlan(room);
+        }
+        public void redo() {
+            addRoomToPlan(room);
+        }
+        public long footprint() {
+            return COMMAND_BYTES;
+        }
+    }
+    private class DeleteRoomCommand implements EditHistory.Command {
+        private final Room room;
+        private final List<Object> openings;
+        private final long footprint;
+        DeleteRoomCommand(Room room, List<Object> openings) {
+            this.room = room;
+            this.openings = openings;
+            this.footprint = COMMAND_BYTES + ROOM_BYTES + (long) ITEM_BYTES
+                    * (room.getFixtures().size() + room.getFurniture().size() + openings.size());
+        }
+        public void undo() {
+            addRoomToPlan(room);
+            for (Object opening : openings) {
+                addOpeningToPlan(opening);
+            }
+        }
+        public void redo() {
+            removeRoomFromPlan(room);
+        }
+        public long footprint() {
+            return footprint;
+        }
+    }
+    private class MoveRoomCommand implements EditHistory.Command {
+        private final Room room;
+        private final int dx, dy;
+        private final List<Door> detached; // Doors into neighbours that the move removed
+        MoveRoomCommand(Room room, int dx, int dy, List<Door> detached) {
+            this.room = room;
+            this.dx = dx;
+            this.dy = dy;
+            this.detached = detached;
+        }
+        public void undo() {
+            moveRoomBy(room, -dx, -dy);
+            for (Door door : detached) {
+                addOpeningToPlan(door);
+            }
+        }
+        public void redo() {
+            moveRoomBy(room, dx, dy);
+        }
+        public long footprint() {
+            return COMMAND_BYTES + (long) ITEM_BYTES * detached.size();
+        }
+    }
+    private class AddOpeningCommand implements EditHistory.Command {
+        private final Object opening;
+        AddOpeningCommand(Object opening) {
+            this.opening = opening;
+        }
+        public void undo() {
+            removeOpeningFromPlan(opening);
+        }
+        public void redo() {
+            addOpeningToPlan(opening);
+        }
+        public long footprint() {
+            return COMMAND_BYTES;
+        }
+    }
+    private class DeleteOpeningCommand implements EditHistory.Command {
+        private final Object opening;
+        DeleteOpeningCommand(Object opening) {
+            this.opening = opening;
+        }
+        public void undo() {
+            addOpeningToPlan(opening);
+        }
+        public void redo() {
+            removeOpeningFromPlan(opening);
+        }
+        public long footprint() {
+            return COMMAND_BYTES + ITEM_BYTES;
+        }
+    }
+    private class AddItemCommand implements EditHistory.Command {
+        private final Object item;
+        AddItemCommand(Object item) {
+            this.item = item;
+        }
+        public void undo() {
+            removeItemFromPlan(item);
+        }
+        public void redo() {
+            addItemToPlan(item);
+        }
+        public long footprint() {
+            return COMMAND_BYTES;
+        }
+    }
+    // Commands applied together, such as a bulk edit of a selection, undone and redone as one step
+    private class BatchCommand implements EditHistory.Command {
+        private final List<EditHistory.Command> commands;
+        BatchCommand(List<EditHistory.Command> commands) {
+            this.commands = commands;
+        }
+        public void undo() {
+            for (int i = commands.size() - 1; i >= 0; i--) {
+                commands.get(i).undo();
+            }
+        }
+        public void redo() {
+            for (EditHistory.Command command : commands) {
+                command.redo();
+            }
+        }
+        public long footprint() {
+            long bytes = COMMAND_BYTES;
+            for (EditHistory.Command command : commands) {
+                bytes += command.footprint();
+            }
+            return bytes;
+        }
+    }
+    // Items placed together, such as by auto-furnish, undone as one step
+    private class AddItemsCommand implements EditHistory.Command {
+        private final List<Object> items;
+        AddItemsCommand(List<Object> items) {
+            this.items = items;
+        }
+        public void undo() {
+            for (Object item : items) {
+                removeItemFromPlan(item);
+            }
+        }
+        public void redo() {
+            for (Object item : items) {
+                addItemToPlan(item);
+            }
+        }
+        public long footprint() {
+            return COMMAND_BYTES + (long) items.size() * 8;
+        }
+    }
+    private class DeleteItemCommand implements EditHistory.Command {
+        private final Object item;
+        DeleteItemCommand(Object item) {
+            this.item = item;
+        }
+        public void undo() {
+            addItemToPlan(item);
+        }
+        public void redo() {
+            removeItemFromPlan(item);
+        }
+        public long footprint() {
+            return COMMAND_BYTES + ITEM_BYTES;
+        }
+    }
+    private class MoveItemCommand implements EditHistory.Command {
+        private final Object item;
+        private final int dx, dy;
+        MoveItemCommand(Object item, int dx, int dy) {
+            this.item = item;
+            this.dx = dx;
+            this.dy = dy;
+        }
+        public void undo() {
+            moveItemBy(item, -dx, -dy);
+        }
+        public void redo() {
+            moveItemBy(item, dx, dy);
+        }
+        public long footprint() {
+            return COMMAND_BYTES;
+        }
+    }
+    private class RotateItemCommand implements EditHistory.Command {
+        private final Object item;
+        private final int degrees;
+        RotateItemCommand(Object item, int degrees) {
+            this.item = item;
+            this.degrees = degrees;
+        }
+        public void undo() {
+            rotateItemBy(item, -degrees);
+        }
+        public void redo() {
+            rotateItemBy(item, degrees);
+        }
+        public long footprint() {
+            return COMMAND_BYTES;
+        }
+    }
+    // A plan with its indexes and validation results, all computed off the EDT
+    private static class LoadedPlan {
+        final PlanFile.Plan plan;
+        final PlanIndex index;
+        final List<PlanValidator.Violation> violations;
+        LoadedPlan(PlanFile.Plan plan) {
+            this.plan = plan;
+            this.index = PlanIndex.build(plan.rooms, plan.doors, plan.windows);
+            this.violations = PlanValidator.validate(plan.rooms);
+        }
+    }
+    // Runs file work on a SwingWorker thread behind a cancellable ProgressMonitor.
+    // Results are handed to succeeded/failed on the EDT; a cancelled task reports neither.
+    private abstract class PlanTask<T> extends SwingWorker<T, Void> implements PlanFile.ProgressListener {
+        private final ProgressMonitor monitor;
+
+        PlanTask(String message) {
+            monitor = new ProgressMonitor(FloorPlanner.this, message, null, 0, 100);
+            monitor.setMillisToDecideToPopup(250);
+            addPropertyChangeListener(e -> {
+                if ("progress".equals(e.getPropertyName())) {
+                    monitor.setProgress((Integer) e.getNewValue());
+                }
+                if (monitor.isCanceled()) {
+                    cancel(false);
+                }
+            });
+        }
+        // Called on the worker thread by PlanFile
+        @Override
+        public void progress(long done, long total) throws IOException {
+            if (isCancelled()) {
+                throw new java.io.InterruptedIOException("Cancelled");
+            }
+            setProgress(total <= 0 ? 100 : (int) Math.min(100, done * 100 / total));
+        }
+        @Override
+        protected final void done() {
+            monitor.close();
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                succeeded(get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (java.util.concurrent.ExecutionException ex) {
+                failed(ex.getCause());
+            }
+        }
+        abstract void succeeded(T result);
+        abstract void failed(Throwable error);
+    }
+
+    static class Furniture implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private Point position;
+        private transient Sprite sprite;
+        private String imagePath;
+        private String type;
+        private int rotation; // 0, 90, 180, 270 degrees
+        private Rectangle bounds = new Rectangle();
+        private Room parentRoom;
+        private static final int FURNITURE_SIZE = 40; // 3 grid cells (20px * 3) - larger than fixtures
+        
+        public Furniture(String type, Point position, String imagePath, Room parentRoom) {
+            this.type = type;
+            this.position = position;
+            this.rotation = 0;
+            this.parentRoom = parentRoom;
+            this.imagePath = imagePath;
+            this.sprite = SPRITES.get(imagePath, FURNITURE_SIZE);
+            updateBounds();
+        }
+        // A copy offset by dx, dy in another room, sharing the original's sprite
+        Furniture(Furniture original, Room parentRoom, int dx, int dy) {
+            this.type = original.type;
+            this.position = new Point(original.position.x + dx, original.position.y + dy);
+            this.rotation = original.rotation;
+            this.parentRoom = parentRoom;
+            this.imagePath = original.imagePath;
+            this.sprite = original.sprite;
+            updateBounds();
+        }
+    
+        public void updatePosition(int dx, int dy) {
+            this.position.x += dx;
             this.position.y += dy;
             updateBounds();
         }
-        public boolean intersectsFurniture(Furniture furniture) {
-            return bounds.intersects(furniture.getBounds());
-        } private void updateBounds() {
-            this.bounds = new Rectangle(position.x, position.y, FIXTURE_SIZE, FIXTURE_SIZE);
-        }public void setPosition(Point position) {
-            this.position = position;
+    
+        // Moves happen on every drag event, so position and bounds are updated in place
+        private void updateBounds() {
+            bounds.setBounds(position.x, position.y, FURNITURE_SIZE, FURNITURE_SIZE);
+        }
+    
+        public void setPosition(Point position) {
+            this.position.setLocation(position);
             updateBounds();
         }
+    
         public void rotate() {
             rotation = (rotation + 90) % 360;
         }
+    
+        public int getRotation() {
+            return rotation;
+        }
+    
+        public void setRotation(int rotation) {
+            this.rotation = Math.floorMod(rotation, 360) / 90 * 90;
+        }
+    
         public void draw(Graphics g) {
+            BufferedImage image = sprite.get(rotation);
             if (image != null) {
-                Graphics2D g2d = (Graphics2D) g;
-                g2d.translate(position.x + FIXTURE_SIZE/2, position.y + FIXTURE_SIZE/2);
-                g2d.rotate(Math.toRadians(rotation));
-                g2d.drawImage(image.getImage(), -FIXTURE_SIZE/2, -FIXTURE_SIZE/2, null);
-                g2d.rotate(-Math.toRadians(rotation));
-                g2d.translate(-(position.x + FIXTURE_SIZE/2), -(position.y + FIXTURE_SIZE/2));
+                g.drawImage(image, position.x, position.y, null);
             }
         }
-        public boolean intersects(Fixture other) {
+    
+        public boolean intersects(Furniture other) {
             return bounds.intersects(other.bounds);
         }
+    
+        public boolean intersectsFixture(Fixture fixture) {
+            return bounds.intersects(fixture.getBounds());
+        }
+    
         public Rectangle getBounds() {
             return bounds;
         }
+    
         public Room getParentRoom() {
             return parentRoom;
         }
+    
         public void setParentRoom(Room room) {
             this.parentRoom = room;
         }
+    
         public String getType() {
             return type;
         }
+    
+        public String getImagePath() {
+            return imagePath;
+        }
     }
-    // New serializable class to store room data
-    private static class RoomData implements Serializable {
+
+    static class Fixture implements Serializable {
         private static final long serialVersionUID = 1L;
-        int x, y, width, height;
-        Color color;
-        String type;
-        public RoomData(int x, int y, int width, int height, Color color, String type) {
-            this.x = x;
-            this.y = y;
-            this.width = width;
-            this.height = height;
-            this.color = color;
+        private Point position;
+        private transient Sprite sprite;
+        private String imagePath;
+        private String type;
+        private int rotation; private Rectangle bounds = new Rectangle();private Room parentRoom;private static final int FIXTURE_SIZE = 40; // 2 grid cells (20px * 2)
+        public Fixture(String type, Point position, String imagePath, Room parentRoom) {
             this.type = type;
+            this.position = position;
+            this.rotation = 0;
+            this.parentRoom = parentRoom;
+            this.imagePath = imagePath;
+            this.sprite = SPRITES.get(imagePath, FIXTURE_SIZE);
+            updateBounds();
+        }
+        // A copy offset by dx, dy in another room, sharing the original's sprite
+        Fixture(Fixture original, Room parentRoom, int dx, int dy) {
+            this.type = original.type;
+            this.position = new Point(original.position.x + dx, original.position.y + dy);
+            this.rotation = original.rotation;
+            this.parentRoom = parentRoom;
+            this.imagePath = original.imagePath;
+            this.sprite = original.sprite;
+            updateBounds();
+        }
+        public void updatePosition(int dx, int dy) {
+            this.position.x += dx;
+            this.position.y += dy;
+            updateBounds();
+        }
+        public boolean intersectsFurniture(Furniture furniture) {
+            return bounds.intersects(furniture.getBounds());
+        } private void updateBounds() {
+            bounds.setBounds(position.x, position.y, FIXTURE_SIZE, FIXTURE_SIZE);
+        }public void setPosition(Point position) {
+            this.position.setLocation(position);
+            updateBounds();
+        }
+        public void rotate() {
+            rotation = (rotation + 90) % 360;
+        }
+        public int getRotation() {
+            return rotation;
+        }
+        public void setRotation(int rotation) {
+            this.rotation = Math.floorMod(rotation, 360) / 90 * 90;
+        }
+        public void draw(Graphics g) {
+            BufferedImage image = sprite.get(rotation);
+            if (image != null) {
+                g.drawImage(image, position.x, position.y, null);
+            }
+        }
+        public boolean intersects(Fixture other) {
+            return bounds.intersects(other.bounds);
+        }
+        public Rectangle getBounds() {
+            return bounds;
+        }
+        public Room getParentRoom() {
+            return parentRoom;
+        }
+        public void setParentRoom(Room room) {
+            this.parentRoom = room;
+        }
+        public String getType() {
+            return type;
+        }
+        public String getImagePath() {
+            return imagePath;
         }
     }
+    // Optional columnar copy of a plan for bulk scans of very large plans. Each field of
+    // every room and item sits in its own primitive array, so a scan walks a few dense
+    // arrays instead of chasing a Room, a Point, a Rectangle and a list per entity.
+    // Strings are interned into a shared table and referenced by short ids. RoomView
+    // and ItemView are flyweights: one reusable cursor reads any row through the
+    // getters the model classes have, so callers need not deal in row offsets.
+    // Opted into with -Dfloorplanner.sceneStore=true, when the plan index keeps a linked
+    // store in step with every edit and the renderer fills zoomed-out items from it.
+    private static class SceneStore {
+        static final byte FIXTURE = 0;
+        static final byte FURNITURE = 1;
 
-    // Add a new serializable class to store item data
-private static class ItemData implements Serializable {
-    private static final long serialVersionUID = 1L;
+        // A linked store remembers which row holds which model entity, so edits can
+        // update it in place; removals move the last row into the gap
+        private final IdentityHashMap<Object, Integer> rows;
+        private Room[] roomOwner;
+        private Object[] itemOwner;
+        private final ArrayList<String> strings = new ArrayList<>();
+        private final HashMap<String, Short> stringIds = new HashMap<>();
+        private final ArrayList<Sprite> sprites = new ArrayList<>(); // By image id, filled on first draw
+        int roomCount;
+        int[] roomX = new int[16], roomY = new int[16], roomWidth = new int[16], roomHeight = new int[16];
+        int[] roomColor = new int[16];
+        short[] roomType = new short[16];
+        int itemCount;
+        int[] itemX = new int[16], itemY = new int[16], itemWidth = new int[16], itemHeight = new int[16];
+        byte[] itemKind = new byte[16];
+        byte[] itemRotation = new byte[16]; // Quarter turns
+        short[] itemType = new short[16], itemImage = new short[16];
+        int[] itemRoom = new int[16];
 
-    int x, y, width, height;
-    String type;
-    String category;
-    int rotation;
-    int parentRoomIndex; // Store room index instead of reference
-    Point relativePosition;
+        private SceneStore(boolean linked) {
+            rows = linked ? new IdentityHashMap<>() : null;
+            roomOwner = linked ? new Room[16] : null;
+            itemOwner = linked ? new Object[16] : null;
+        }
+        // An empty store for PlanIndex to keep in step with the plan
+        static SceneStore linked() {
+            return new SceneStore(true);
+        }
+        // A detached copy of the plan, which keeps no reference to it
+        static SceneStore of(List<Room> rooms) {
+            SceneStore store = new SceneStore(false);
+            for (Room room : rooms) {
+                int roomIndex = store.addRoom(room.bounds, room.color.getRGB(), room.type);
+                for (Fixture fixture : room.getFixtures()) {
+                    store.addItem(FIXTURE, roomIndex, fixture.getBounds(), fixture.getRotation(), fixture.getType(),
+                            fixture.getImagePath());
+                }
+                for (Furniture furniture : room.getFurniture()) {
+                    store.addItem(FURNITURE, roomIndex, furniture.getBounds(), furniture.getRotation(),
+                            furniture.getType(), furniture.getImagePath());
+                }
+            }
+            store.trim();
+            return store;
+        }
+        public int addRoom(Rectangle bounds, int argb, String type) {
+            if (roomCount == roomX.length) {
+                int capacity = Math.max(16, roomCount * 2);
+                roomX = java.util.Arrays.copyOf(roomX, capacity);
+                roomY = java.util.Arrays.copyOf(roomY, capacity);
+                roomWidth = java.util.Arrays.copyOf(roomWidth, capacity);
+                roomHeight = java.util.Arrays.copyOf(roomHeight, capacity);
+                roomColor = java.util.Arrays.copyOf(roomColor, capacity);
+                roomType = java.util.Arrays.copyOf(roomType, capacity);
+                if (rows != null) {
+                    roomOwner = java.util.Arrays.copyOf(roomOwner, capacity);
+                }
+            }
+            roomX[roomCount] = bounds.x;
+            roomY[roomCount] = bounds.y;
+            roomWidth[roomCount] = bounds.width;
+            roomHeight[roomCount] = bounds.height;
+            roomColor[roomCount] = argb;
+            roomType[roomCount] = intern(type);
+            return roomCount++;
+        }
+        public int addItem(byte kind, int room, Rectangle bounds, int rotation, String type, String imagePath) {
+            if (itemCount == itemX.length) {
+                int capacity = Math.max(16, itemCount * 2);
+                itemX = java.util.Arrays.copyOf(itemX, capacity);
+                itemY = java.util.Arrays.copyOf(itemY, capacity);
+                itemWidth = java.util.Arrays.copyOf(itemWidth, capacity);
+                itemHeight = java.util.Arrays.copyOf(itemHeight, capacity);
+                itemKind = java.util.Arrays.copyOf(itemKind, capacity);
+                itemRotation = java.util.Arrays.copyOf(itemRotation, capacity);
+                itemType = java.util.Arrays.copyOf(itemType, capacity);
+                itemImage = java.util.Arrays.copyOf(itemImage, capacity);
+                itemRoom = java.util.Arrays.copyOf(itemRoom, capacity);
+                if (rows != null) {
+                    itemOwner = java.util.Arrays.copyOf(itemOwner, capacity);
+                }
+            }
+            itemX[itemCount] = bounds.x;
+            itemY[itemCount] = bounds.y;
+            itemWidth[itemCount] = bounds.width;
+            itemHeight[itemCount] = bounds.height;
+            itemKind[itemCount] = kind;
+            itemRotation[itemCount] = (byte) (Math.floorMod(rotation, 360) / 90);
+            itemType[itemCount] = intern(type);
+            itemImage[itemCount] = intern(imagePath);
+            itemRoom[itemCount] = room;
+            return itemCount++;
+        }
+        // Drops the spare capacity left by growing, once the store is complete
+        public void trim() {
+            roomX = java.util.Arrays.copyOf(roomX, roomCount);
+            roomY = java.util.Arrays.copyOf(roomY, roomCount);
+            roomWidth = java.util.Arrays.copyOf(roomWidth, roomCount);
+            roomHeight = java.util.Arrays.copyOf(roomHeight, roomCount);
+            roomColor = java.util.Arrays.copyOf(roomColor, roomCount);
+            roomType = java.util.Arrays.copyOf(roomType, roomCount);
+            itemX = java.util.Arrays.copyOf(itemX, itemCount);
+            itemY = java.util.Arrays.copyOf(itemY, itemCount);
+            itemWidth = java.util.Arrays.copyOf(itemWidth, itemCount);
+            itemHeight = java.util.Arrays.copyOf(itemHeight, itemCount);
+            itemKind = java.util.Arrays.copyOf(itemKind, itemCount);
+            itemRotation = java.util.Arrays.copyOf(itemRotation, itemCount);
+            itemType = java.util.Arrays.copyOf(itemType, itemCount);
+            itemImage = java.util.Arrays.copyOf(itemImage, itemCount);
+            itemRoom = java.util.Arrays.copyOf(itemRoom, itemCount);
+            if (rows != null) {
+                roomOwner = java.util.Arrays.copyOf(roomOwner, roomCount);
+                itemOwner = java.util.Arrays.copyOf(itemOwner, itemCount);
+            }
+        }
+        // Linked stores only. Files a room and everything in it at their current
+        // positions, adding the rows the store does not have yet.
+        public void putRoom(Room room) {
+            Integer row = rows.get(room);
+            if (row == null) {
+                row = addRoom(room.bounds, room.color.getRGB(), room.type);
+                roomOwner[row] = room;
+                rows.put(room, row);
+            } else {
+                roomX[row] = room.bounds.x;
+                roomY[row] = room.bounds.y;
+                roomWidth[row] = room.bounds.width;
+                roomHeight[row] = room.bounds.height;
+            }
+            for (Fixture fixture : room.getFixtures()) {
+                putItem(fixture);
+            }
+            for (Furniture furniture : room.getFurniture()) {
+                putItem(furniture);
+            }
+        }
+        // Files a Fixture or Furniture, whose room must already be in the store
+        public void putItem(Object item) {
+            Fixture fixture = item instanceof Fixture f ? f : null;
+            Furniture furniture = fixture == null ? (Furniture) item : null;
+            Room room = fixture != null ? fixture.getParentRoom() : furniture.getParentRoom();
+            Rectangle bounds = fixture != null ? fixture.getBounds() : furniture.getBounds();
+            int rotation = fixture != null ? fixture.getRotation() : furniture.getRotation();
+            Integer roomRow = rows.get(room);
+            if (roomRow == null) {
+                throw new IllegalStateException("Item filed before its room");
+            }
+            Integer row = rows.get(item);
+            if (row == null) {
+                row = addItem(fixture != null ? FIXTURE : FURNITURE, roomRow, bounds, rotation,
+                        fixture != null ? fixture.getType() : furniture.getType(),
+                        fixture != null ? fixture.getImagePath() : furniture.getImagePath());
+                itemOwner[row] = item;
+                rows.put(item, row);
+            } else {
+                itemX[row] = bounds.x;
+                itemY[row] = bounds.y;
+                itemWidth[row] = bounds.width;
+                itemHeight[row] = bounds.height;
+                itemRotation[row] = (byte) (Math.floorMod(rotation, 360) / 90);
+                itemRoom[row] = roomRow;
+            }
+        }
+        // Takes out a room and everything in it
+        public void removeRoom(Room room) {
+            for (Fixture fixture : room.getFixtures()) {
+                removeItem(fixture);
+            }
+            for (Furniture furniture : room.getFurniture()) {
+                removeItem(furniture);
+            }
+            Integer row = rows.remove(room);
+            if (row == null) {
+                return;
+            }
+            int last = --roomCount;
+            if (row != last) {
+                Room moved = roomOwner[last];
+                roomX[row] = roomX[last];
+                roomY[row] = roomY[last];
+                roomWidth[row] = roomWidth[last];
+                roomHeight[row] = roomHeight[last];
+                roomColor[row] = roomColor[last];
+                roomType[row] = roomType[last];
+                roomOwner[row] = moved;
+                rows.put(moved, row);
+                for (Fixture fixture : moved.getFixtures()) {
+                    itemRoom[rows.get(fixture)] = row;
+                }
+                for (Furniture furniture : moved.getFurniture()) {
+                    itemRoom[rows.get(furniture)] = row;
+                }
+            }
+            roomOwner[last] = null;
+        }
+        public void removeItem(Object item) {
+            Integer row = rows.remove(item);
+            if (row == null) {
+                return;
+            }
+            int last = --itemCount;
+            if (row != last) {
+                itemX[row] = itemX[last];
+                itemY[row] = itemY[last];
+                itemWidth[row] = itemWidth[last];
+                itemHeight[row] = itemHeight[last];
+                itemKind[row] = itemKind[last];
+                itemRotation[row] = itemRotation[last];
+                itemType[row] = itemType[last];
+                itemImage[row] = itemImage[last];
+                itemRoom[row] = itemRoom[last];
+                itemOwner[row] = itemOwner[last];
+                rows.put(itemOwner[row], row);
+            }
+            itemOwner[last] = null;
+        }
+        private short intern(String string) {
+            Short id = stringIds.get(string);
+            if (id == null) {
+                if (strings.size() > Short.MAX_VALUE) {
+                    throw new IllegalStateException("More than " + (Short.MAX_VALUE + 1) + " distinct names");
+                }
+                id = (short) strings.size();
+                strings.add(string);
+                stringIds.put(string, id);
+            }
+            return id;
+        }
+        // Index of the first item containing the point, or -1; a plain scan with no index
+        public int itemAt(int x, int y) {
+            for (int i = 0; i < itemCount; i++) {
+                if (x >= itemX[i] && y >= itemY[i] && x < itemX[i] + itemWidth[i] && y < itemY[i] + itemHeight[i]) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        public int countItemsIn(Rectangle area) {
+            int count = 0;
+            int right = area.x + area.width, bottom = area.y + area.height;
+            for (int i = 0; i < itemCount; i++) {
+                if (itemX[i] < right && itemY[i] < bottom
+                        && itemX[i] + itemWidth[i] > area.x && itemY[i] + itemHeight[i] > area.y) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        // Fills the items of one kind that reach into the area, or all of them for a null
+        // area, as the flat rectangles a zoomed-out view shows
+        public void fillItems(Graphics g, Rectangle area, byte kind) {
+            for (int i = 0; i < itemCount; i++) {
+                if (itemKind[i] == kind && (area == null || (itemX[i] < area.x + area.width
+                        && itemY[i] < area.y + area.height
+                        && itemX[i] + itemWidth[i] > area.x && itemY[i] + itemHeight[i] > area.y))) {
+                    g.fillRect(itemX[i], itemY[i], itemWidth[i], itemHeight[i]);
+                }
+            }
+        }
+        // Draws the rooms and items in the area, fills first so no room covers a neighbour's contents
+        public void paint(Graphics g, Rectangle area, RoomView roomView, ItemView itemView) {
+            for (int i = 0; i < roomCount; i++) {
+                if (roomView.moveTo(i).intersects(area)) {
+                    roomView.drawFill(g);
+                }
+            }
+            for (int i = 0; i < roomCount; i++) {
+                if (roomView.moveTo(i).intersects(area)) {
+                    roomView.drawOutline(g);
+                }
+            }
+            for (int i = 0; i < itemCount; i++) {
+                if (itemView.moveTo(i).intersects(area)) {
+                    itemView.draw(g);
+                }
+            }
+        }
+        private Sprite sprite(int imageId, int size) {
+            while (sprites.size() <= imageId) {
+                sprites.add(null);
+            }
+            Sprite sprite = sprites.get(imageId);
+            if (sprite == null) {
+                sprite = SPRITES.get(strings.get(imageId), size);
+                sprites.set(imageId, sprite);
+            }
+            return sprite;
+        }
 
-    public ItemData(int x, int y, int width, int height, String type, String category, 
-                   int rotation, int parentRoomIndex, Point relativePosition) {
-        this.x = x;
-        this.y = y;
-        this.width = width;
-        this.height = height;
-        this.type = type;
-        this.category = category;
-        this.rotation = rotation;
-        this.parentRoomIndex = parentRoomIndex;
-        this.relativePosition = relativePosition;
+        class RoomView {
+            private int row;
+            private Color color;
+            public RoomView moveTo(int row) {
+                this.row = row;
+                return this;
+            }
+            public int index() {
+                return row;
+            }
+            public Rectangle getBounds(Rectangle into) {
+                into.setBounds(roomX[row], roomY[row], roomWidth[row], roomHeight[row]);
+                return into;
+            }
+            public boolean intersects(Rectangle area) {
+                return roomX[row] < area.x + area.width && roomY[row] < area.y + area.height
+                        && roomX[row] + roomWidth[row] > area.x && roomY[row] + roomHeight[row] > area.y;
+            }
+            public String getType() {
+                return strings.get(roomType[row]);
+            }
+            public Color getColor() {
+                // The view keeps the last colour, which adjacent rows usually share
+                if (color == null || color.getRGB() != roomColor[row]) {
+                    color = new Color(roomColor[row], true);
+                }
+                return color;
+            }
+            public void drawFill(Graphics g) {
+                g.setColor(getColor());
+                g.fillRect(roomX[row], roomY[row], roomWidth[row], roomHeight[row]);
+            }
+            public void drawOutline(Graphics g) {
+                g.setColor(Color.BLACK);
+                g.drawRect(roomX[row], roomY[row], roomWidth[row], roomHeight[row]);
+            }
+        }
+        class ItemView {
+            private int row;
+            public ItemView moveTo(int row) {
+                this.row = row;
+                return this;
+            }
+            public int index() {
+                return row;
+            }
+            public boolean isFixture() {
+                return itemKind[row] == FIXTURE;
+            }
+            public Rectangle getBounds(Rectangle into) {
+                into.setBounds(itemX[row], itemY[row], itemWidth[row], itemHeight[row]);
+                return into;
+            }
+            public boolean intersects(Rectangle area) {
+                return itemX[row] < area.x + area.width && itemY[row] < area.y + area.height
+                        && itemX[row] + itemWidth[row] > area.x && itemY[row] + itemHeight[row] > area.y;
+            }
+            public int getRotation() {
+                return itemRotation[row] * 90;
+            }
+            public String getType() {
+                return strings.get(itemType[row]);
+            }
+            public String getImagePath() {
+                return strings.get(itemImage[row]);
+            }
+            public int getParentRoom() {
+                return itemRoom[row];
+            }
+            public void draw(Graphics g) {
+                BufferedImage image = sprite(itemImage[row], itemWidth[row]).get(getRotation());
+                if (image != null) {
+                    g.drawImage(image, itemX[row], itemY[row], null);
+                }
+            }
+        }
     }
-}
+    // The lookup structures kept alongside the model. Re-indexing an entity replaces
+    // its previous entry, so indexRoom also handles moves.
+    private static class PlanIndex {
+        final SpatialIndex<Room> rooms = new SpatialIndex<>(INDEX_CELL_SIZE);
+        final RoomOverlapIndex roomOverlaps = new RoomOverlapIndex();
+        final RoomAdjacency adjacency = new RoomAdjacency();
+        final SpatialIndex<Fixture> fixtures = new SpatialIndex<>(INDEX_CELL_SIZE);
+        final SpatialIndex<Furniture> furniture = new SpatialIndex<>(INDEX_CELL_SIZE);
+        final OpeningIndex openings = new OpeningIndex();
+        final SceneStore scene; // Columnar mirror of the plan, or null unless opted into
 
-    private class DrawingCanvas extends JPanel {
-        public DrawingCanvas() {
-            setBackground(new Color(204,204,204));
-            setPreferredSize(new Dimension(800, 600));
-            setTransferHandler(new TransferHandler() {
-                @Override
-                public boolean canImport(TransferSupport support) {
-                    return support.isDataFlavorSupported(DataFlavor.stringFlavor);
+        PlanIndex() {
+            this(SCENE_STORE);
+        }
+        PlanIndex(boolean withScene) {
+            scene = withScene ? SceneStore.linked() : null;
+        }
+        public static PlanIndex build(List<Room> plan) {
+            return build(plan, List.of(), List.of());
+        }
+        public static PlanIndex build(List<Room> plan, List<Door> doors, List<Window> windows) {
+            PlanIndex index = new PlanIndex();
+            for (Room room : plan) {
+                index.indexRoom(room);
+            }
+            for (Door door : doors) {
+                index.openings.insert(door);
+            }
+            for (Window window : windows) {
+                index.openings.insert(window);
+            }
+            return index;
+        }
+        // Where a click lands on a wall: the room whose edge was hit, the neighbour on the
+        // other side (null for an outside wall), and the stretch of wall between the
+        // corners and shared walls around the hit point
+        static class WallHit {
+            final Room room;
+            final Room neighbour;
+            final boolean horizontal;
+            final int position; // y of a horizontal wall, x of a vertical one
+            final int from, to; // Extent of the stretch along the wall
+            final int along;    // Hit point along the wall
+            WallHit(Room room, Room neighbour, boolean horizontal, int position, int from, int to, int along) {
+                this.room = room;
+                this.neighbour = neighbour;
+                this.horizontal = horizontal;
+                this.position = position;
+                this.from = from;
+                this.to = to;
+                this.along = along;
+            }
+            public Point pointAt(int along) {
+                return horizontal ? new Point(along, position) : new Point(position, along);
+            }
+        }
+        // The wall nearest the point, at most maxDistance away, or null. Only rooms the
+        // overlap index finds around the point are looked at, and the shared walls that
+        // split an edge come from the adjacency graph.
+        public WallHit findNearestWall(int x, int y, int maxDistance) {
+            Rectangle probe = new Rectangle(x - maxDistance, y - maxDistance, 2 * maxDistance + 1, 2 * maxDistance + 1);
+            Room nearest = null;
+            boolean horizontal = false;
+            int position = 0, along = 0;
+            double best = maxDistance + 0.5;
+            for (Room room : roomOverlaps.findAllOverlaps(probe, null)) {
+                Rectangle b = room.bounds;
+                int clampedX = Math.max(b.x, Math.min(x, b.x + b.width));
+                int clampedY = Math.max(b.y, Math.min(y, b.y + b.height));
+                int[][] edges = { // horizontal?, position, along
+                        { 1, b.y, clampedX }, { 1, b.y + b.height, clampedX },
+                        { 0, b.x, clampedY }, { 0, b.x + b.width, clampedY } };
+                for (int[] edge : edges) {
+                    double distance = edge[0] == 1
+                            ? Point.distance(x, y, edge[2], edge[1])
+                            : Point.distance(x, y, edge[1], edge[2]);
+                    // On a shared wall, the room the point is in wins
+                    if (distance < best || (distance == best && b.contains(x, y))) {
+                        best = distance;
+                        nearest = room;
+                        horizontal = edge[0] == 1;
+                        position = edge[1];
+                        along = edge[2];
+                    }
                 }
+            }
+            if (nearest == null) {
+                return null;
+            }
+            Rectangle b = nearest.bounds;
+            int from = horizontal ? b.x : b.y;
+            int to = horizontal ? b.x + b.width : b.y + b.height;
+            for (Map.Entry<Room, RoomAdjacency.Wall> entry : adjacency.wallsOf(nearest).entrySet()) {
+                RoomAdjacency.Wall wall = entry.getValue();
+                if (wall.isHorizontal() != horizontal || (horizontal ? wall.start.y : wall.start.x) != position) {
+                    continue;
+                }
+                int wallFrom = horizontal ? wall.start.x : wall.start.y;
+                int wallTo = horizontal ? wall.end.x : wall.end.y;
+                if (along >= wallFrom && along <= wallTo) {
+                    return new WallHit(nearest, entry.getKey(), horizontal, position, wallFrom, wallTo, along);
+                }
+                // An outside stretch ends where a shared wall begins
+                if (wallTo <= along) {
+                    from = Math.max(from, wallTo);
+                } else {
+                    to = Math.min(to, wallFrom);
+                }
+            }
+            return new WallHit(nearest, null, horizontal, position, from, to, along);
+        }
+        // Files a room and everything inside it
+        public void indexRoom(Room room) {
+            rooms.insert(room, room.bounds);
+            roomOverlaps.insert(room);
+            adjacency.insert(room, roomOverlaps);
+            for (Fixture fixture : room.getFixtures()) {
+                fixtures.insert(fixture, fixture.getBounds());
+            }
+            for (Furniture item : room.getFurniture()) {
+                furniture.insert(item, item.getBounds());
+            }
+            if (scene != null) {
+                scene.putRoom(room);
+            }
+        }
+        // Files a Fixture or Furniture at its current position, replacing any earlier entry
+        public void indexItem(Object item) {
+            if (item instanceof Fixture fixture) {
+                fixtures.insert(fixture, fixture.getBounds());
+            } else {
+                Furniture piece = (Furniture) item;
+                furniture.insert(piece, piece.getBounds());
+            }
+            if (scene != null) {
+                scene.putItem(item);
+            }
+        }
+        public void unindexItem(Object item) {
+            if (item instanceof Fixture fixture) {
+                fixtures.remove(fixture);
+            } else {
+                furniture.remove((Furniture) item);
+            }
+            if (scene != null) {
+                scene.removeItem(item);
+            }
+        }
+        public void unindexRoom(Room room) {
+            rooms.remove(room);
+            roomOverlaps.remove(room);
+            adjacency.remove(room);
+            for (Fixture fixture : room.getFixtures()) {
+                fixtures.remove(fixture);
+            }
+            for (Furniture item : room.getFurniture()) {
+                furniture.remove(item);
+            }
+            if (scene != null) {
+                scene.removeRoom(room);
+            }
+        }
+    }
+    // Doors and windows, filed by area for the overlap checks and by room for the
+    // openings that have to follow a room when it moves or goes away
+    private static class OpeningIndex {
+        private final SpatialIndex<Object> byArea = new SpatialIndex<>(INDEX_CELL_SIZE);
+        private final IdentityHashMap<Room, ArrayList<Object>> byRoom = new IdentityHashMap<>();
 
-                @Override
-                public boolean importData(TransferSupport support) {
-                    try {
-                        String data = (String) support.getTransferable()
-                            .getTransferData(DataFlavor.stringFlavor);
-                        
-                        if (data.startsWith("FURNITURE:")) {
-                            // Handle furniture drop
-                            String[] parts = data.substring(10).split(",");
-                            Point dropPoint = support.getDropLocation().getDropPoint();
-                            
-                            // Snap to grid
-                            int x = Math.round(dropPoint.x / (float) GRID_SIZE) * GRID_SIZE;
-                            int y = Math.round(dropPoint.y / (float) GRID_SIZE) * GRID_SIZE;
-                            
-                            // Find target room
-                            Room targetRoom = null;
-                            for (Room room : rooms) {
-                                if (room.bounds.contains(x, y)) {
-                                    targetRoom = room;
-                                    break;
-                                }
-                            }
-
-                            if (targetRoom != null) {
-                                Furniture newFurniture = new Furniture(parts[0], new Point(x, y), 
-                                    parts[1], targetRoom);
-                                
-                                // Check overlaps with existing furniture and fixtures
-                                boolean hasOverlap = false;
-                                for (Furniture existing : targetRoom.getFurniture()) {
-                                    if (newFurniture.intersects(existing)) {
-                                        hasOverlap = true;
-                                        break;
-                                    }
-                                }
-                                
-                                for (Fixture fixture : targetRoom.getFixtures()) {
-                                    if (newFurniture.intersectsFixture(fixture)) {
-                                        hasOverlap = true;
-                                        break;
-                                    }
-                                }
-
-                                if (!hasOverlap) {
-                                    targetRoom.addFurniture(newFurniture);
-                                    repaint();
-                                    return true;
-                                } else {
-                                    JOptionPane.showMessageDialog(null,
-                                        "Cannot place furniture here - overlap detected!",
-                                        "Overlap Error",
-                                        JOptionPane.ERROR_MESSAGE);
-                                }
-                            }
-                        } else if (data.startsWith("FIXTURE:")) {
-                    String[] parts = data.split(",");
-                    Point dropPoint = support.getDropLocation().getDropPoint();
-                    int x = Math.round(dropPoint.x / (float) GRID_SIZE) * GRID_SIZE;
-                    int y = Math.round(dropPoint.y / (float) GRID_SIZE) * GRID_SIZE;
-                    Room targetRoom = null;
-                    for (Room room : rooms) {
-                        if (room.bounds.contains(x, y)) {
-                            targetRoom = room;
-                            break;
-                        }
-                    }
-                    if (targetRoom != null) {
-                        Fixture newFixture = new Fixture(parts[0], new Point(x, y), parts[1], targetRoom);
-                        
-                        // Check for overlap with existing fixtures
-                        boolean hasOverlap = false;
-                        for (Fixture existing : targetRoom.getFixtures()) {
-                            if (newFixture.intersects(existing)) {
-                                hasOverlap = true;
+        // Files a Door or Window at its current position, replacing any earlier entry
+        public void insert(Object opening) {
+            remove(opening);
+            byArea.insert(opening, Openings.bounds(opening));
+            for (Room room : Openings.rooms(opening)) {
+                byRoom.computeIfAbsent(room, key -> new ArrayList<>()).add(opening);
+            }
+        }
+        public void remove(Object opening) {
+            byArea.remove(opening);
+            for (Room room : Openings.rooms(opening)) {
+                ArrayList<Object> attached = byRoom.get(room);
+                if (attached != null && attached.remove(opening) && attached.isEmpty()) {
+                    byRoom.remove(room);
+                }
+            }
+        }
+        public void clear() {
+            byArea.clear();
+            byRoom.clear();
+        }
+        public Object findAt(int x, int y) {
+            return byArea.findAt(x, y);
+        }
+        public List<Object> findAll(Rectangle area) {
+            return byArea.findAll(area);
+        }
+        public List<Object> attachedTo(Room room) {
+            ArrayList<Object> attached = byRoom.get(room);
+            return attached == null ? new ArrayList<>() : new ArrayList<>(attached);
+        }
+        // Some indexed opening other than the given one that it would overlap, or null
+        public Object findConflict(Object opening) {
+            Rectangle area = Openings.bounds(opening);
+            area.grow(DOOR_WIDTH, DOOR_WIDTH); // Door.overlaps reaches this far from its ends
+            for (Object other : byArea.findAll(area)) {
+                if (other != opening && Openings.conflict(opening, other)) {
+                    return other;
+                }
+            }
+            return null;
+        }
+    }
+    // Rules shared by every Door and Window, which have no common supertype. Openings
+    // sit on a room's walls, so they move with the room - except a door into a
+    // neighbour, which no longer lines up with anything once either room moves.
+    private static class Openings {
+        static Rectangle bounds(Object opening) {
+            return opening instanceof Door door ? door.getBounds() : ((Window) opening).getBounds();
+        }
+        // Bounds plus a door's swing, which reaches a door width into room1
+        static Rectangle paintBounds(Object opening) {
+            Rectangle bounds = bounds(opening);
+            if (opening instanceof Door) {
+                bounds.grow(DOOR_WIDTH, DOOR_WIDTH);
+            }
+            return bounds;
+        }
+        static List<Room> rooms(Object opening) {
+            if (opening instanceof Window window) {
+                return List.of(window.room);
+            }
+            Door door = (Door) opening;
+            return door.room2 == null ? List.of(door.room1) : List.of(door.room1, door.room2);
+        }
+        static boolean conflict(Object a, Object b) {
+            if (a instanceof Door door) {
+                return b instanceof Door other ? door.overlaps(other) : door.overlaps((Window) b);
+            }
+            Window window = (Window) a;
+            return b instanceof Door other ? other.overlaps(window) : window.overlaps((Window) b);
+        }
+        // Carries the room's openings along after it moved by dx, dy and returns the shared
+        // doors left behind, which the caller takes out of the plan
+        static List<Door> moveWithRoom(Room room, int dx, int dy, List<Object> attached) {
+            ArrayList<Door> detached = new ArrayList<>();
+            for (Object opening : attached) {
+                if (opening instanceof Door door) {
+                    if (door.room2 != null) {
+                        detached.add(door);
+                    } else {
+                        door.start.translate(dx, dy);
+                        door.end.translate(dx, dy);
+                    }
+                } else {
+                    ((Window) opening).position.translate(dx, dy);
+                }
+            }
+            return detached;
+        }
+        static List<Object> attachedIn(Room room, List<Door> doors, List<Window> windows) {
+            ArrayList<Object> attached = new ArrayList<>();
+            for (Door door : doors) {
+                if (door.isAttachedTo(room)) {
+                    attached.add(door);
+                }
+            }
+            for (Window window : windows) {
+                if (window.room == room) {
+                    attached.add(window);
+                }
+            }
+            return attached;
+        }
+    }
+    // Which rooms share a wall, and where. Two rooms are neighbours when their edges
+    // touch along a segment of positive length; rooms that only meet at a corner, or
+    // that overlap, are not. Adding, moving or removing a room only touches that room
+    // and its neighbours, whose candidates come from the overlap index probed one unit
+    // wider than the room.
+    private static class RoomAdjacency {
+        // A horizontal or vertical stretch of wall shared by two rooms
+        static class Wall {
+            final Point start;
+            final Point end;
+            Wall(int x1, int y1, int x2, int y2) {
+                this.start = new Point(x1, y1);
+                this.end = new Point(x2, y2);
+            }
+            public int length() {
+                return Math.abs(end.x - start.x) + Math.abs(end.y - start.y);
+            }
+            public boolean isHorizontal() {
+                return start.y == end.y;
+            }
+        }
+        private final IdentityHashMap<Room, IdentityHashMap<Room, Wall>> walls = new IdentityHashMap<>();
+
+        // Records the room's walls at its current bounds. The overlap index must
+        // already hold the room's neighbours; the room itself is skipped.
+        public void insert(Room room, RoomOverlapIndex overlaps) {
+            remove(room);
+            IdentityHashMap<Room, Wall> roomWalls = new IdentityHashMap<>();
+            walls.put(room, roomWalls);
+            Rectangle probe = new Rectangle(room.bounds);
+            probe.grow(1, 1);
+            for (Room other : overlaps.findAllOverlaps(probe, room)) {
+                Wall wall = sharedWall(room.bounds, other.bounds);
+                if (wall != null) {
+                    roomWalls.put(other, wall);
+                    walls.computeIfAbsent(other, key -> new IdentityHashMap<>()).put(room, wall);
+                }
+            }
+        }
+        public void remove(Room room) {
+            IdentityHashMap<Room, Wall> roomWalls = walls.remove(room);
+            if (roomWalls != null) {
+                for (Room other : roomWalls.keySet()) {
+                    walls.get(other).remove(room);
+                }
+            }
+        }
+        public void clear() {
+            walls.clear();
+        }
+        // The room's shared walls keyed by neighbour; a read-only view
+        public Map<Room, Wall> wallsOf(Room room) {
+            IdentityHashMap<Room, Wall> roomWalls = walls.get(room);
+            return roomWalls == null ? Map.of() : java.util.Collections.unmodifiableMap(roomWalls);
+        }
+        public List<Room> neighbours(Room room) {
+            IdentityHashMap<Room, Wall> roomWalls = walls.get(room);
+            return roomWalls == null ? new ArrayList<>() : new ArrayList<>(roomWalls.keySet());
+        }
+        // The wall two rooms share, or null if they are not neighbours
+        public Wall sharedWall(Room a, Room b) {
+            IdentityHashMap<Room, Wall> roomWalls = walls.get(a);
+            return roomWalls == null ? null : roomWalls.get(b);
+        }
+        public int sharedWallLength(Room a, Room b) {
+            Wall wall = sharedWall(a, b);
+            return wall == null ? 0 : wall.length();
+        }
+        // Groups of rooms connected through shared walls, in plan order; a room with
+        // no neighbours is a group of its own
+        public List<List<Room>> components(List<Room> rooms) {
+            List<List<Room>> components = new ArrayList<>();
+            IdentityHashMap<Room, Boolean> seen = new IdentityHashMap<>();
+            for (Room room : rooms) {
+                if (!seen.containsKey(room)) {
+                    components.add(collectComponent(room, seen));
+                }
+            }
+            return components;
+        }
+        public List<Room> componentOf(Room room) {
+            return collectComponent(room, new IdentityHashMap<>());
+        }
+        // Breadth-first walk over shared walls
+        private List<Room> collectComponent(Room start, IdentityHashMap<Room, Boolean> seen) {
+            ArrayList<Room> component = new ArrayList<>();
+            seen.put(start, Boolean.TRUE);
+            component.add(start);
+            for (int i = 0; i < component.size(); i++) {
+                IdentityHashMap<Room, Wall> roomWalls = walls.get(component.get(i));
+                if (roomWalls == null) {
+                    continue;
+                }
+                for (Room next : roomWalls.keySet()) {
+                    if (seen.put(next, Boolean.TRUE) == null) {
+                        component.add(next);
+                    }
+                }
+            }
+            return component;
+        }
+        static Wall sharedWall(Rectangle a, Rectangle b) {
+            int aMaxX = a.x + a.width, aMaxY = a.y + a.height;
+            int bMaxX = b.x + b.width, bMaxY = b.y + b.height;
+            if (aMaxX == b.x || bMaxX == a.x) {
+                int x = aMaxX == b.x ? aMaxX : a.x;
+                int top = Math.max(a.y, b.y);
+                int bottom = Math.min(aMaxY, bMaxY);
+                if (bottom > top) {
+                    return new Wall(x, top, x, bottom);
+                }
+            }
+            if (aMaxY == b.y || bMaxY == a.y) {
+                int y = aMaxY == b.y ? aMaxY : a.y;
+                int left = Math.max(a.x, b.x);
+                int right = Math.min(aMaxX, bMaxX);
+                if (right > left) {
+                    return new Wall(left, y, right, y);
+                }
+            }
+            return null;
+        }
+    }
+    // Uniform grid over the plan: each entity is filed under every cell its bounds
+    // touch, so a point query only has to look at the entities sharing one cell
+    private static class SpatialIndex<T> {
+        private final int cellSize;
+        private final HashMap<Long, ArrayList<T>> cells = new HashMap<>();
+        private final IdentityHashMap<T, Rectangle> indexedBounds = new IdentityHashMap<>();
+
+        public SpatialIndex(int cellSize) {
+            this.cellSize = cellSize;
+        }
+        public void insert(T item, Rectangle bounds) {
+            remove(item);
+            Rectangle copy = new Rectangle(bounds);
+            indexedBounds.put(item, copy);
+            int maxCellX = Math.floorDiv(copy.x + Math.max(copy.width, 1) - 1, cellSize);
+            int maxCellY = Math.floorDiv(copy.y + Math.max(copy.height, 1) - 1, cellSize);
+            for (int cellY = Math.floorDiv(copy.y, cellSize); cellY <= maxCellY; cellY++) {
+                for (int cellX = Math.floorDiv(copy.x, cellSize); cellX <= maxCellX; cellX++) {
+                    cells.computeIfAbsent(cellKey(cellX, cellY), key -> new ArrayList<>()).add(item);
+                }
+            }
+        }
+        public void remove(T item) {
+            Rectangle bounds = indexedBounds.remove(item);
+            if (bounds == null) {
+                return;
+            }
+            int maxCellX = Math.floorDiv(bounds.x + Math.max(bounds.width, 1) - 1, cellSize);
+            int maxCellY = Math.floorDiv(bounds.y + Math.max(bounds.height, 1) - 1, cellSize);
+            for (int cellY = Math.floorDiv(bounds.y, cellSize); cellY <= maxCellY; cellY++) {
+                for (int cellX = Math.floorDiv(bounds.x, cellSize); cellX <= maxCellX; cellX++) {
+                    long key = cellKey(cellX, cellY);
+                    ArrayList<T> cell = cells.get(key);
+                    cell.remove(item);
+                    if (cell.isEmpty()) {
+                        cells.remove(key);
+                    }
+                }
+            }
+        }
+        public void clear() {
+            cells.clear();
+            indexedBounds.clear();
+        }
+        public int size() {
+            return indexedBounds.size();
+        }
+        // Returns the earliest-inserted entity containing the point, or null
+        public T findAt(int x, int y) {
+            ArrayList<T> cell = cells.get(cellKey(Math.floorDiv(x, cellSize), Math.floorDiv(y, cellSize)));
+            if (cell != null) {
+                for (T item : cell) {
+                    if (indexedBounds.get(item).contains(x, y)) {
+                        return item;
+                    }
+                }
+            }
+            return null;
+        }
+        // Every entity whose bounds intersect the area, each once, in no particular order
+        public List<T> findAll(Rectangle area) {
+            ArrayList<T> found = new ArrayList<>();
+            if (area.width <= 0 || area.height <= 0) {
+                return found;
+            }
+            IdentityHashMap<T, Boolean> seen = new IdentityHashMap<>();
+            int maxCellX = Math.floorDiv(area.x + area.width - 1, cellSize);
+            int maxCellY = Math.floorDiv(area.y + area.height - 1, cellSize);
+            for (int cellY = Math.floorDiv(area.y, cellSize); cellY <= maxCellY; cellY++) {
+                for (int cellX = Math.floorDiv(area.x, cellSize); cellX <= maxCellX; cellX++) {
+                    ArrayList<T> cell = cells.get(cellKey(cellX, cellY));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (T item : cell) {
+                        if (indexedBounds.get(item).intersects(area) && seen.put(item, Boolean.TRUE) == null) {
+                            found.add(item);
+                        }
+                    }
+                }
+            }
+            return found;
+        }
+        // Long.hashCode folds the two halves together with xor, which would send every
+        // diagonal of cells to one bucket; multiplying by an odd constant is a bijection
+        // that spreads the bits first
+        private static long cellKey(int cellX, int cellY) {
+            return (((long) cellX << 32) | (cellY & 0xFFFFFFFFL)) * 0x9E3779B97F4A7C15L;
+        }
+    }
+    // Interval tree over the horizontal extent of every room: a treap keyed on the
+    // left edge, where each node also records the furthest right edge in its subtree.
+    // Queries only descend into subtrees that can reach the probe, and the vertical
+    // extent is checked for the rooms that overlap it horizontally. Overlap follows
+    // Rectangle.intersects, so rooms that merely share a wall do not overlap.
+    private static class RoomOverlapIndex {
+        private static class Node {
+            final Room room;
+            final long id;
+            final int priority;
+            final int minX, minY, maxX, maxY;
+            int subtreeMaxX;
+            Node left, right;
+
+            Node(Room room, long id, int priority) {
+                this.room = room;
+                this.id = id;
+                this.priority = priority;
+                this.minX = room.bounds.x;
+                this.minY = room.bounds.y;
+                this.maxX = room.bounds.x + room.bounds.width;
+                this.maxY = room.bounds.y + room.bounds.height;
+                this.subtreeMaxX = maxX;
+            }
+        }
+        private final IdentityHashMap<Room, Node> nodes = new IdentityHashMap<>();
+        private final java.util.Random random = new java.util.Random();
+        private Node root;
+        private long nextId;
+
+        // Indexes the room at its current bounds, replacing any earlier entry
+        public void insert(Room room) {
+            remove(room);
+            if (room.bounds.width <= 0 || room.bounds.height <= 0) {
+                return; // Empty rooms can never overlap anything
+            }
+            Node node = new Node(room, nextId++, random.nextInt());
+            nodes.put(room, node);
+            root = insert(root, node);
+        }
+        public void remove(Room room) {
+            Node node = nodes.remove(room);
+            if (node != null) {
+                root = remove(root, node);
+            }
+        }
+        public void clear() {
+            nodes.clear();
+            root = null;
+        }
+        public int size() {
+            return nodes.size();
+        }
+        public boolean overlapsAny(Rectangle area, Room ignore) {
+            return findAnyOverlap(area, ignore) != null;
+        }
+        // Returns some indexed room other than ignore that overlaps the area, or null
+        public Room findAnyOverlap(Rectangle area, Room ignore) {
+            if (area.width <= 0 || area.height <= 0) {
+                return null;
+            }
+            return findAny(root, area.x, area.y, area.x + area.width, area.y + area.height, ignore);
+        }
+        // Returns every indexed room other than ignore that overlaps the area, in left-edge order
+        public List<Room> findAllOverlaps(Rectangle area, Room ignore) {
+            ArrayList<Room> overlaps = new ArrayList<>();
+            if (area.width > 0 && area.height > 0) {
+                findAll(root, area.x, area.y, area.x + area.width, area.y + area.height, ignore, overlaps);
+            }
+            return overlaps;
+        }
+        private Room findAny(Node node, int minX, int minY, int maxX, int maxY, Room ignore) {
+            if (node == null || node.subtreeMaxX <= minX) {
+                return null;
+            }
+            Room found = findAny(node.left, minX, minY, maxX, maxY, ignore);
+            if (found != null) {
+                return found;
+            }
+            if (node.minX >= maxX) {
+                return null; // This node and its right subtree start past the probe
+            }
+            if (node.room != ignore && overlaps(node, minX, minY, maxX, maxY)) {
+                return node.room;
+            }
+            return findAny(node.right, minX, minY, maxX, maxY, ignore);
+        }
+        private void findAll(Node node, int minX, int minY, int maxX, int maxY, Room ignore, List<Room> out) {
+            if (node == null || node.subtreeMaxX <= minX) {
+                return;
+            }
+            findAll(node.left, minX, minY, maxX, maxY, ignore, out);
+            if (node.minX >= maxX) {
+                return;
+            }
+            if (node.room != ignore && overlaps(node, minX, minY, maxX, maxY)) {
+                out.add(node.room);
+            }
+            findAll(node.right, minX, minY, maxX, maxY, ignore, out);
+        }
+        private static boolean overlaps(Node node, int minX, int minY, int maxX, int maxY) {
+            return node.minX < maxX && minX < node.maxX && node.minY < maxY && minY < node.maxY;
+        }
+        private static int compare(Node a, Node b) {
+            int byX = Integer.compare(a.minX, b.minX);
+            return byX != 0 ? byX : Long.compare(a.id, b.id);
+        }
+        private static Node insert(Node node, Node added) {
+            if (node == null) {
+                return added;
+            }
+            if (compare(added, node) < 0) {
+                node.left = insert(node.left, added);
+                if (node.left.priority > node.priority) {
+                    node = rotateRight(node);
+                }
+            } else {
+                node.right = insert(node.right, added);
+                if (node.right.priority > node.priority) {
+                    node = rotateLeft(node);
+                }
+            }
+            recompute(node);
+            return node;
+        }
+        private static Node remove(Node node, Node removed) {
+            if (node == removed) {
+                return merge(node.left, node.right);
+            }
+            if (compare(removed, node) < 0) {
+                node.left = remove(node.left, removed);
+            } else {
+                node.right = remove(node.right, removed);
+            }
+            recompute(node);
+            return node;
+        }
+        // Joins two treaps where every key in low sorts before every key in high
+        private static Node merge(Node low, Node high) {
+            if (low == null) {
+                return high;
+            }
+            if (high == null) {
+                return low;
+            }
+            if (low.priority > high.priority) {
+                low.right = merge(low.right, high);
+                recompute(low);
+                return low;
+            }
+            high.left = merge(low, high.left);
+            recompute(high);
+            return high;
+        }
+        private static Node rotateRight(Node node) {
+            Node pivot = node.left;
+            node.left = pivot.right;
+            pivot.right = node;
+            recompute(node);
+            recompute(pivot);
+            return pivot;
+        }
+        private static Node rotateLeft(Node node) {
+            Node pivot = node.right;
+            node.right = pivot.left;
+            pivot.left = node;
+            recompute(node);
+            recompute(pivot);
+            return pivot;
+        }
+        private static void recompute(Node node) {
+            int max = node.maxX;
+            if (node.left != null) {
+                max = Math.max(max, node.left.subtreeMaxX);
+            }
+            if (node.right != null) {
+                max = Math.max(max, node.right.subtreeMaxX);
+            }
+            node.subtreeMaxX = max;
+        }
+    }
+    // Whole-plan validation: rooms overlapping rooms, fixtures and furniture outside
+    // their room, and fixtures and furniture overlapping each other. Each room is
+    // checked independently, so the rooms are split across a fork/join pool. The
+    // single-item checks used while editing live here too, so both agree on the rules.
+    private static class PlanValidator {
+        // Rooms per fork/join leaf task
+        private static final int ROOMS_PER_TASK = 256;
+
+        enum Kind { ROOM_OVERLAP, OUTSIDE_ROOM, ITEM_OVERLAP }
+
+        static class Violation {
+            final Kind kind;
+            final Room room;     // The room the violation was found in
+            final Object first;  // A Room, Fixture or Furniture
+            final Object second; // The entity it collides with, or null for OUTSIDE_ROOM
+
+            Violation(Kind kind, Room room, Object first, Object second) {
+                this.kind = kind;
+                this.room = room;
+                this.first = first;
+                this.second = second;
+            }
+            @Override
+            public String toString() {
+                return switch (kind) {
+                    case ROOM_OVERLAP -> describe(first) + " overlaps " + describe(second);
+                    case OUTSIDE_ROOM -> describe(first) + " is not inside " + describe(room);
+                    case ITEM_OVERLAP -> describe(first) + " overlaps " + describe(second) + " in " + describe(room);
+                };
+            }
+        }
+
+        public static List<Violation> validate(List<Room> rooms) {
+            return validate(rooms, java.util.concurrent.ForkJoinPool.commonPool());
+        }
+        // Violations come back in plan order whatever the parallelism
+        public static List<Violation> validate(List<Room> rooms, java.util.concurrent.ForkJoinPool pool) {
+            RoomOverlapIndex overlaps = new RoomOverlapIndex();
+            IdentityHashMap<Room, Integer> order = new IdentityHashMap<>();
+            for (Room room : rooms) {
+                overlaps.insert(room);
+                order.put(room, order.size());
+            }
+            return pool.invoke(new RoomRangeTask(rooms, overlaps, order, 0, rooms.size()));
+        }
+        // Checks rooms [from, to), splitting the range until it is small enough
+        private static class RoomRangeTask extends java.util.concurrent.RecursiveTask<List<Violation>> {
+            private static final long serialVersionUID = 1L;
+            private final List<Room> rooms;
+            private final RoomOverlapIndex overlaps;
+            private final IdentityHashMap<Room, Integer> order;
+            private final int from, to;
+
+            RoomRangeTask(List<Room> rooms, RoomOverlapIndex overlaps, IdentityHashMap<Room, Integer> order,
+                    int from, int to) {
+                this.rooms = rooms;
+                this.overlaps = overlaps;
+                this.order = order;
+                this.from = from;
+                this.to = to;
+            }
+            @Override
+            protected List<Violation> compute() {
+                if (to - from <= ROOMS_PER_TASK) {
+                    ArrayList<Violation> violations = new ArrayList<>();
+                    for (int i = from; i < to; i++) {
+                        checkRoom(rooms.get(i), i, overlaps, order, violations);
+                    }
+                    return violations;
+                }
+                int middle = (from + to) >>> 1;
+                RoomRangeTask left = new RoomRangeTask(rooms, overlaps, order, from, middle);
+                left.fork();
+                List<Violation> right = new RoomRangeTask(rooms, overlaps, order, middle, to).compute();
+                List<Violation> violations = left.join();
+                violations.addAll(right);
+                return violations;
+            }
+        }
+        // The overlap index is only read here, which is safe from several threads
+        private static void checkRoom(Room room, int position, RoomOverlapIndex overlaps,
+                IdentityHashMap<Room, Integer> order, List<Violation> violations) {
+            for (Room other : overlaps.findAllOverlaps(room.bounds, room)) {
+                // Each overlapping pair is reported once, by the earlier room
+                if (order.get(other) > position) {
+                    violations.add(new Violation(Kind.ROOM_OVERLAP, room, room, other));
+                }
+            }
+            int count = room.getFixtures().size() + room.getFurniture().size();
+            Object[] items = new Object[count];
+            Rectangle[] bounds = new Rectangle[count];
+            int n = 0;
+            for (Fixture fixture : room.getFixtures()) {
+                items[n] = fixture;
+                bounds[n++] = fixture.getBounds();
+            }
+            for (Furniture furniture : room.getFurniture()) {
+                items[n] = furniture;
+                bounds[n++] = furniture.getBounds();
+            }
+            for (int i = 0; i < count; i++) {
+                if (!room.bounds.contains(bounds[i])) {
+                    violations.add(new Violation(Kind.OUTSIDE_ROOM, room, items[i], null));
+                }
+            }
+            // Sweep along x: after sorting by left edge, an item can only overlap the
+            // items that start before its right edge
+            Integer[] byLeft = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                byLeft[i] = i;
+            }
+            java.util.Arrays.sort(byLeft, (a, b) -> Integer.compare(bounds[a].x, bounds[b].x));
+            for (int i = 0; i < count; i++) {
+                Rectangle current = bounds[byLeft[i]];
+                for (int j = i + 1; j < count && bounds[byLeft[j]].x < current.x + current.width; j++) {
+                    if (current.intersects(bounds[byLeft[j]])) {
+                        int first = Math.min(byLeft[i], byLeft[j]);
+                        int second = Math.max(byLeft[i], byLeft[j]);
+                        violations.add(new Violation(Kind.ITEM_OVERLAP, room, items[first], items[second]));
+                    }
+                }
+            }
+        }
+        // Returns the first fixture or furniture in the room that the area would overlap,
+        // skipping ignore, or null if the area is free
+        public static Object findItemOverlap(Room room, Rectangle area, Object ignore) {
+            for (Fixture fixture : room.getFixtures()) {
+                if (fixture != ignore && area.intersects(fixture.getBounds())) {
+                    return fixture;
+                }
+            }
+            for (Furniture furniture : room.getFurniture()) {
+                if (furniture != ignore && area.intersects(furniture.getBounds())) {
+                    return furniture;
+                }
+            }
+            return null;
+        }
+        // True if an item with these bounds may sit in the room
+        public static boolean canPlaceItem(Room room, Rectangle area, Object ignore) {
+            return room.bounds.contains(area) && findItemOverlap(room, area, ignore) == null;
+        }
+        static String describe(Object entity) {
+            if (entity instanceof Room room) {
+                return room.getLabel() + " at (" + room.bounds.x + ", " + room.bounds.y + ")";
+            } else if (entity instanceof Fixture fixture) {
+                return fixture.getType() + " at (" + fixture.getBounds().x + ", " + fixture.getBounds().y + ")";
+            } else if (entity instanceof Furniture furniture) {
+                return furniture.getType() + " at (" + furniture.getBounds().x + ", " + furniture.getBounds().y + ")";
+            }
+            return String.valueOf(entity);
+        }
+    }
+    // Walking distance to the nearest exit for every GRID_SIZE cell of the plan. A cell
+    // is walkable when its centre lies in a room and no fixture or furniture covers it;
+    // steps go to the four neighbouring cells, within a room or through a door, and
+    // exits are the cells just inside the outside doors. Distances come from a
+    // multi-source breadth-first search over primitive arrays.
+    //
+    // After an edit only the cells around the changed area are rasterized again. Cells
+    // whose distance relied on them are invalidated - a cell keeps its distance while
+    // some valid neighbour is still one step closer to an exit - and the search is
+    // resumed from the edge of the invalidated cells, so most edits touch a small part
+    // of the grid however big the plan is.
+    private static class EgressMap {
+        static final int UNREACHABLE = Integer.MAX_VALUE;
+        // Cells of slack around the rooms, so edits near the edge rarely need a rebuild
+        private static final int MARGIN = 8;
+        final int originX, originY; // Model position of cell (0, 0)
+        final int cols, rows;
+        private final Room[] cellRoom;
+        private final boolean[] blocked;
+        private final boolean[] doorEast;  // A door crosses the wall on the cell's east side
+        private final boolean[] doorSouth; // ... or on its south side
+        private final boolean[] exit;
+        private final int[] distance;
+        // Search scratch, kept between updates
+        private final int[] queue;
+        private final boolean[] invalid;
+
+        private EgressMap(int originX, int originY, int cols, int rows) {
+            this.originX = originX;
+            this.originY = originY;
+            this.cols = cols;
+            this.rows = rows;
+            int cells = cols * rows;
+            cellRoom = new Room[cells];
+            blocked = new boolean[cells];
+            doorEast = new boolean[cells];
+            doorSouth = new boolean[cells];
+            exit = new boolean[cells];
+            distance = new int[cells];
+            queue = new int[cells];
+            invalid = new boolean[cells];
+        }
+        public static EgressMap build(PlanIndex index, List<Room> rooms) {
+            int minX = 0, minY = 0, maxX = 0, maxY = 0;
+            for (Room room : rooms) {
+                minX = Math.min(minX, room.bounds.x);
+                minY = Math.min(minY, room.bounds.y);
+                maxX = Math.max(maxX, room.bounds.x + room.bounds.width);
+                maxY = Math.max(maxY, room.bounds.y + room.bounds.height);
+            }
+            int originX = (Math.floorDiv(minX, GRID_SIZE) - MARGIN) * GRID_SIZE;
+            int originY = (Math.floorDiv(minY, GRID_SIZE) - MARGIN) * GRID_SIZE;
+            EgressMap map = new EgressMap(originX, originY,
+                    Math.floorDiv(maxX - originX - 1, GRID_SIZE) + 1 + MARGIN,
+                    Math.floorDiv(maxY - originY - 1, GRID_SIZE) + 1 + MARGIN);
+            map.rasterize(index, 0, 0, map.cols - 1, map.rows - 1);
+            java.util.Arrays.fill(map.distance, UNREACHABLE);
+            long[] seeds = new long[map.distance.length];
+            int seedCount = 0;
+            for (int cell = 0; cell < map.distance.length; cell++) {
+                if (map.exit[cell] && map.isWalkable(cell)) {
+                    map.distance[cell] = 0;
+                    seeds[seedCount++] = cell;
+                }
+            }
+            map.search(seeds, seedCount);
+            return map;
+        }
+        // Brings the map up to date after the plan changed within the area (model
+        // coordinates). False if the area reaches past the grid and a rebuild is needed.
+        public boolean update(PlanIndex index, Rectangle area) {
+            int minCol = Math.floorDiv(area.x - originX, GRID_SIZE) - 1;
+            int minRow = Math.floorDiv(area.y - originY, GRID_SIZE) - 1;
+            int maxCol = Math.floorDiv(area.x + area.width - originX, GRID_SIZE) + 1;
+            int maxRow = Math.floorDiv(area.y + area.height - originY, GRID_SIZE) + 1;
+            if (minCol < 1 || minRow < 1 || maxCol >= cols - 1 || maxRow >= rows - 1) {
+                return false;
+            }
+            rasterize(index, minCol, minRow, maxCol, maxRow);
+            // Invalidate the changed cells and, transitively, every cell that was only
+            // reachable through them. The queue is free until the search, so it lists them.
+            int[] invalidated = queue;
+            int invalidatedCount = 0;
+            for (int row = minRow; row <= maxRow; row++) {
+                for (int col = minCol; col <= maxCol; col++) {
+                    int cell = row * cols + col;
+                    invalid[cell] = true;
+                    invalidated[invalidatedCount++] = cell;
+                }
+            }
+            for (int i = 0; i < invalidatedCount; i++) {
+                int before = distance[invalidated[i]];
+                if (before == UNREACHABLE) {
+                    continue;
+                }
+                for (int dir = 0; dir < 4; dir++) {
+                    int next = neighbour(invalidated[i], dir);
+                    if (next >= 0 && !invalid[next] && distance[next] == before + 1 && !isSupported(next)) {
+                        invalid[next] = true;
+                        invalidated[invalidatedCount++] = next;
+                    }
+                }
+            }
+            // Restart the search from the invalidated cells' best valid neighbours
+            long[] seeds = new long[invalidatedCount];
+            int seedCount = 0;
+            for (int i = 0; i < invalidatedCount; i++) {
+                distance[invalidated[i]] = UNREACHABLE;
+            }
+            for (int i = 0; i < invalidatedCount; i++) {
+                int cell = invalidated[i];
+                if (!isWalkable(cell)) {
+                    continue;
+                }
+                int best = exit[cell] ? 0 : UNREACHABLE;
+                for (int dir = 0; dir < 4 && best > 0; dir++) {
+                    int next = step(cell, dir);
+                    if (next >= 0 && !invalid[next] && distance[next] != UNREACHABLE) {
+                        best = Math.min(best, distance[next] + 1);
+                    }
+                }
+                if (best != UNREACHABLE) {
+                    distance[cell] = best;
+                    seeds[seedCount++] = (long) best << 32 | cell;
+                }
+            }
+            for (int i = 0; i < invalidatedCount; i++) {
+                invalid[invalidated[i]] = false;
+            }
+            java.util.Arrays.sort(seeds, 0, seedCount);
+            search(seeds, seedCount);
+            return true;
+        }
+        // Breadth-first search from seeds sorted by distance (packed as distance << 32 | cell,
+        // each already holding that distance). Seeds are merged with the FIFO queue in
+        // distance order, so cells are settled closest first and each is queued at most once.
+        private void search(long[] seeds, int seedCount) {
+            int head = 0, tail = 0, nextSeed = 0;
+            while (nextSeed < seedCount || head < tail) {
+                int cell;
+                if (head == tail || (nextSeed < seedCount && (int) (seeds[nextSeed] >>> 32) <= distance[queue[head]])) {
+                    long seed = seeds[nextSeed++];
+                    cell = (int) seed;
+                    if (distance[cell] != (int) (seed >>> 32)) {
+                        continue; // Reached by a shorter route since
+                    }
+                } else {
+                    cell = queue[head++];
+                }
+                int stepped = distance[cell] + 1;
+                for (int dir = 0; dir < 4; dir++) {
+                    int next = step(cell, dir);
+                    if (next >= 0 && stepped < distance[next]) {
+                        distance[next] = stepped;
+                        queue[tail++] = next;
+                    }
+                }
+            }
+        }
+        // True if a valid neighbour one step closer to an exit still leads to the cell
+        private boolean isSupported(int cell) {
+            for (int dir = 0; dir < 4; dir++) {
+                int next = step(cell, dir);
+                if (next >= 0 && !invalid[next] && distance[next] == distance[cell] - 1) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        private boolean isWalkable(int cell) {
+            return cellRoom[cell] != null && !blocked[cell];
+        }
+        // Directions are east, west, south, north; -1 past the edge of the grid
+        private int neighbour(int cell, int dir) {
+            int col = cell % cols;
+            return switch (dir) {
+                case 0 -> col + 1 < cols ? cell + 1 : -1;
+                case 1 -> col > 0 ? cell - 1 : -1;
+                case 2 -> cell + cols < cols * rows ? cell + cols : -1;
+                default -> cell >= cols ? cell - cols : -1;
+            };
+        }
+        // The neighbour a walker can step to from a walkable cell, or -1
+        private int step(int cell, int dir) {
+            int next = neighbour(cell, dir);
+            if (next < 0 || !isWalkable(next)) {
+                return -1;
+            }
+            if (cellRoom[next] == cellRoom[cell]) {
+                return next;
+            }
+            boolean door = switch (dir) {
+                case 0 -> doorEast[cell];
+                case 1 -> doorEast[next];
+                case 2 -> doorSouth[cell];
+                default -> doorSouth[next];
+            };
+            return door ? next : -1;
+        }
+        // Refreshes rooms, obstacles, doors and exits for a block of cells. The doors on the
+        // block's west and north edges are recorded in the cells beyond it, so those are
+        // cleared too before the doors around the block are laid down again.
+        private void rasterize(PlanIndex index, int minCol, int minRow, int maxCol, int maxRow) {
+            for (int row = minRow; row <= maxRow; row++) {
+                for (int col = minCol; col <= maxCol; col++) {
+                    int cell = row * cols + col;
+                    int x = originX + col * GRID_SIZE + GRID_SIZE / 2;
+                    int y = originY + row * GRID_SIZE + GRID_SIZE / 2;
+                    cellRoom[cell] = index.rooms.findAt(x, y);
+                    blocked[cell] = index.fixtures.findAt(x, y) != null || index.furniture.findAt(x, y) != null;
+                    doorEast[cell] = false;
+                    doorSouth[cell] = false;
+                    exit[cell] = false;
+                }
+            }
+            for (int row = minRow; row <= maxRow; row++) {
+                if (minCol > 0) {
+                    doorEast[row * cols + minCol - 1] = false;
+                }
+            }
+            for (int col = minCol; col <= maxCol; col++) {
+                if (minRow > 0) {
+                    doorSouth[(minRow - 1) * cols + col] = false;
+                }
+            }
+            Rectangle area = new Rectangle(originX + (minCol - 1) * GRID_SIZE, originY + (minRow - 1) * GRID_SIZE,
+                    (maxCol - minCol + 3) * GRID_SIZE, (maxRow - minRow + 3) * GRID_SIZE);
+            for (Object opening : index.openings.findAll(area)) {
+                if (opening instanceof Door door) {
+                    addDoor(door);
+                }
+            }
+        }
+        // Opens the wall along the door's span and, for an outside door, marks the cells
+        // just inside it as exits
+        private void addDoor(Door door) {
+            boolean horizontal = door.isHorizontal();
+            int from = horizontal ? Math.min(door.start.x, door.end.x) : Math.min(door.start.y, door.end.y);
+            int to = horizontal ? Math.max(door.start.x, door.end.x) : Math.max(door.start.y, door.end.y);
+            int wall = horizontal ? door.start.y - originY : door.start.x - originX;
+            int beyond = Math.floorDiv(wall, GRID_SIZE); // First row or column past the wall
+            int origin = horizontal ? originX : originY;
+            boolean insideBefore = horizontal ? door.room1.bounds.y < door.start.y : door.room1.bounds.x < door.start.x;
+            for (int along = Math.floorDiv(from - origin, GRID_SIZE); along <= Math.floorDiv(to - origin - 1, GRID_SIZE); along++) {
+                int before = horizontal ? cellAt(along, beyond - 1) : cellAt(beyond - 1, along);
+                int after = horizontal ? cellAt(along, beyond) : cellAt(beyond, along);
+                if (before < 0 || after < 0) {
+                    continue;
+                }
+                (horizontal ? doorSouth : doorEast)[before] = true;
+                if (door.room2 == null) {
+                    exit[insideBefore ? before : after] = true;
+                }
+            }
+        }
+        private int cellAt(int col, int row) {
+            return col < 0 || row < 0 || col >= cols || row >= rows ? -1 : row * cols + col;
+        }
+        // Steps from the cell holding the model point to the nearest exit, or UNREACHABLE
+        public int distanceAt(int x, int y) {
+            int cell = cellAt(Math.floorDiv(x - originX, GRID_SIZE), Math.floorDiv(y - originY, GRID_SIZE));
+            return cell < 0 || !isWalkable(cell) ? UNREACHABLE : distance[cell];
+        }
+        // The longest walk to an exit from anywhere in the room, in steps; UNREACHABLE if
+        // part of the room has no route out, -1 if none of it is walkable
+        public int furthestInRoom(Room room) {
+            int furthest = -1;
+            int minCol = Math.max(0, Math.floorDiv(room.bounds.x - originX, GRID_SIZE));
+            int minRow = Math.max(0, Math.floorDiv(room.bounds.y - originY, GRID_SIZE));
+            int maxCol = Math.min(cols - 1, Math.floorDiv(room.bounds.x + room.bounds.width - originX - 1, GRID_SIZE));
+            int maxRow = Math.min(rows - 1, Math.floorDiv(room.bounds.y + room.bounds.height - originY - 1, GRID_SIZE));
+            for (int row = minRow; row <= maxRow; row++) {
+                for (int col = minCol; col <= maxCol; col++) {
+                    int cell = row * cols + col;
+                    if (cellRoom[cell] == room && !blocked[cell]) {
+                        furthest = Math.max(furthest, distance[cell]);
+                    }
+                }
+            }
+            return furthest;
+        }
+        // Distance of a cell for painting, or -1 for a cell nobody walks on
+        int cellDistance(int col, int row) {
+            int cell = row * cols + col;
+            return isWalkable(cell) ? distance[cell] : -1;
+        }
+    }
+    // Packs requested furniture into a room. The room is a grid of GRID_SIZE cells, with
+    // cells under fixtures, existing furniture and the swing of the room's doors taken.
+    // The search is exact cover style: the first free cell in raster order is either the
+    // top-left corner of some remaining item, in one of its orientations, or is left
+    // empty. Leaving cells empty spends a slack budget of free area minus requested area,
+    // which prunes every branch that could no longer fit what is left. Items with the
+    // same footprint are interchangeable, so they are searched as one group and given
+    // their types afterwards. Rotations are free for square footprints; each item is
+    // turned to put its back against the nearest wall.
+    private static class FurnitureSolver {
+        static class Placement {
+            final int type; // Index into the request
+            final Point position;
+            final int rotation;
+            Placement(int type, Point position, int rotation) {
+                this.type = type;
+                this.position = position;
+                this.rotation = rotation;
+            }
+        }
+        static class Result {
+            final List<Placement> placements;
+            final boolean complete;
+            final boolean timedOut;
+            final long nodes;
+            Result(List<Placement> placements, boolean complete, boolean timedOut, long nodes) {
+                this.placements = placements;
+                this.complete = complete;
+                this.timedOut = timedOut;
+                this.nodes = nodes;
+            }
+        }
+        private final Rectangle room;
+        private final int cols, rows;
+        private final boolean[] free;
+        // Footprint groups: size in cells and how many items of each requested type
+        private final int[] groupWidth, groupHeight, groupLeft;
+        private final int[] typeGroup;
+        private final int[] typeCount;
+        // Search state
+        private final int[] placedCell, placedGroup;
+        private final boolean[] placedTurned;
+        private int placedCount;
+        private int[] bestCell, bestGroup;
+        private boolean[] bestTurned;
+        private int bestCount = -1;
+        private int slack;
+        private long nodes;
+        private long deadline;
+        private boolean timedOut;
+        private PlanFile.ProgressListener listener;
+        private long started, budget;
+
+        // Sizes are in pixels per requested type; obstacles are anything already in the room
+        FurnitureSolver(Rectangle room, List<Rectangle> obstacles, int[] widths, int[] heights, int[] counts) {
+            this.room = new Rectangle(room);
+            cols = room.width / GRID_SIZE;
+            rows = room.height / GRID_SIZE;
+            free = new boolean[cols * rows];
+            java.util.Arrays.fill(free, true);
+            for (Rectangle obstacle : obstacles) {
+                int minCol = Math.max(0, Math.floorDiv(obstacle.x - room.x, GRID_SIZE));
+                int minRow = Math.max(0, Math.floorDiv(obstacle.y - room.y, GRID_SIZE));
+                int maxCol = Math.min(cols - 1, Math.floorDiv(obstacle.x + obstacle.width - room.x - 1, GRID_SIZE));
+                int maxRow = Math.min(rows - 1, Math.floorDiv(obstacle.y + obstacle.height - room.y - 1, GRID_SIZE));
+                for (int row = minRow; row <= maxRow; row++) {
+                    for (int col = minCol; col <= maxCol; col++) {
+                        free[row * cols + col] = false;
+                    }
+                }
+            }
+            typeCount = counts.clone();
+            typeGroup = new int[counts.length];
+            int[] widthCells = new int[counts.length], heightCells = new int[counts.length], left = new int[counts.length];
+            int groups = 0;
+            for (int type = 0; type < counts.length; type++) {
+                int w = (widths[type] + GRID_SIZE - 1) / GRID_SIZE;
+                int h = (heights[type] + GRID_SIZE - 1) / GRID_SIZE;
+                int group = 0;
+                while (group < groups && !(widthCells[group] == w && heightCells[group] == h)) {
+                    group++;
+                }
+                if (group == groups) {
+                    widthCells[group] = w;
+                    heightCells[group] = h;
+                    groups++;
+                }
+                typeGroup[type] = group;
+                left[group] += counts[type];
+            }
+            groupWidth = java.util.Arrays.copyOf(widthCells, groups);
+            groupHeight = java.util.Arrays.copyOf(heightCells, groups);
+            groupLeft = java.util.Arrays.copyOf(left, groups);
+            int total = 0;
+            for (int count : counts) {
+                total += count;
+            }
+            placedCell = new int[total];
+            placedGroup = new int[total];
+            placedTurned = new boolean[total];
+        }
+        // Obstacles for a room as it stands in the plan: its fixtures and furniture, and
+        // the floor its doors swing over or open onto
+        static List<Rectangle> obstaclesIn(Room room, List<Object> openings) {
+            ArrayList<Rectangle> obstacles = new ArrayList<>();
+            for (Fixture fixture : room.getFixtures()) {
+                obstacles.add(fixture.getBounds());
+            }
+            for (Furniture furniture : room.getFurniture()) {
+                obstacles.add(furniture.getBounds());
+            }
+            for (Object opening : openings) {
+                if (opening instanceof Door door) {
+                    Rectangle clearance = new Rectangle(door.start);
+                    clearance.add(door.end);
+                    if (door.room1 == room) {
+                        clearance.add(door.leafEnd());
+                    } else {
+                        clearance.grow(GRID_SIZE, GRID_SIZE); // Somewhere to step through on this side
+                    }
+                    obstacles.add(clearance);
+                }
+            }
+            return obstacles;
+        }
+
+        // Searches until everything is placed, the space of arrangements is exhausted or
+        // budgetNanos runs out; returns the arrangement placing the most items. The listener
+        // hears of elapsed time against the budget and may abort by throwing.
+        public Result solve(long budgetNanos, PlanFile.ProgressListener listener) throws IOException {
+            this.listener = listener;
+            this.budget = budgetNanos;
+            started = System.nanoTime();
+            deadline = started + budgetNanos;
+            int freeCells = 0;
+            for (boolean cell : free) {
+                if (cell) {
+                    freeCells++;
+                }
+            }
+            // Ask only for what could fit by area, dropping from the biggest footprints first
+            int requested = 0;
+            for (int group = 0; group < groupLeft.length; group++) {
+                requested += groupLeft[group] * groupWidth[group] * groupHeight[group];
+            }
+            Integer[] bySize = new Integer[groupLeft.length];
+            for (int group = 0; group < bySize.length; group++) {
+                bySize[group] = group;
+            }
+            java.util.Arrays.sort(bySize, (a, b) -> groupWidth[b] * groupHeight[b] - groupWidth[a] * groupHeight[a]);
+            for (int group : bySize) {
+                int area = groupWidth[group] * groupHeight[group];
+                while (requested > freeCells && groupLeft[group] > 0) {
+                    groupLeft[group]--;
+                    requested -= area;
+                }
+            }
+            slack = freeCells - requested;
+            boolean solved = search();
+            if (solved) {
+                recordBest();
+            }
+            int total = placedCell.length;
+            return new Result(toPlacements(), bestCount == total, timedOut, nodes);
+        }
+        // Depth-first over the free cells in raster order: at each cell, try every group
+        // that still has items left in both orientations, then leaving the cell empty while
+        // there is slack. Each level of the search fills at least its own cell, so the
+        // explicit stack, one level per cell, holds the deepest search in any room.
+        private boolean search() throws IOException {
+            int[] levelCell = new int[free.length];
+            int[] levelChoice = new int[free.length]; // 2 * group + turned, or skipChoice
+            int skipChoice = 2 * groupLeft.length;
+            int depth = 0;
+            int from = 0;
+            while (true) {
+                // Arrive at a new level, with the next piece to go at or after cell from
+                if (placedCount > bestCount) {
+                    recordBest();
+                }
+                if (allPlaced()) {
+                    return true;
+                }
+                int cell = from;
+                while (cell < free.length && !free[cell]) {
+                    cell++;
+                }
+                boolean deadEnd = cell == free.length || timedOut;
+                if (!deadEnd && (++nodes & 4095) == 0) {
+                    long now = System.nanoTime();
+                    if (listener != null) {
+                        listener.progress(now - started, budget);
+                    }
+                    if (now > deadline) {
+                        timedOut = true;
+                        deadEnd = true;
+                    }
+                }
+                if (!deadEnd) {
+                    levelCell[depth] = cell;
+                    levelChoice[depth] = -1;
+                    depth++;
+                }
+                // Back out of levels until one has a choice left to try
+                boolean advanced = false;
+                while (depth > 0 && !advanced) {
+                    int level = depth - 1;
+                    cell = levelCell[level];
+                    int choice = levelChoice[level];
+                    if (choice == skipChoice) {
+                        free[cell] = true;
+                        slack++;
+                    } else if (choice >= 0) {
+                        placedCount--;
+                        int group = placedGroup[placedCount];
+                        groupLeft[group]++;
+                        fill(cell, width(group, placedTurned[placedCount]), height(group, placedTurned[placedCount]),
+                                true);
+                    }
+                    for (choice++; choice < skipChoice && !advanced; choice++) {
+                        int group = choice >> 1;
+                        boolean turned = (choice & 1) == 1;
+                        if (groupLeft[group] == 0 || (turned && groupWidth[group] == groupHeight[group])) {
+                            continue; // A square turned is the same footprint
+                        }
+                        int w = width(group, turned), h = height(group, turned);
+                        if (fits(cell, w, h)) {
+                            fill(cell, w, h, false);
+                            groupLeft[group]--;
+                            placedCell[placedCount] = cell;
+                            placedGroup[placedCount] = group;
+                            placedTurned[placedCount] = turned;
+                            placedCount++;
+                            levelChoice[level] = choice;
+                            advanced = true;
+                        }
+                    }
+                    if (!advanced && choice == skipChoice && slack > 0) {
+                        slack--;
+                        free[cell] = false;
+                        levelChoice[level] = skipChoice;
+                        advanced = true;
+                    }
+                    if (!advanced) {
+                        depth--;
+                    }
+                }
+                if (!advanced) {
+                    return false;
+                }
+                from = cell + 1;
+            }
+        }
+        private boolean allPlaced() {
+            for (int left : groupLeft) {
+                if (left > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        private int width(int group, boolean turned) {
+            return turned ? groupHeight[group] : groupWidth[group];
+        }
+        private int height(int group, boolean turned) {
+            return turned ? groupWidth[group] : groupHeight[group];
+        }
+        private boolean fits(int cell, int w, int h) {
+            int col = cell % cols, row = cell / cols;
+            if (col + w > cols || row + h > rows) {
+                return false;
+            }
+            for (int r = row; r < row + h; r++) {
+                for (int c = col; c < col + w; c++) {
+                    if (!free[r * cols + c]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        private void fill(int cell, int w, int h, boolean value) {
+            int col = cell % cols, row = cell / cols;
+            for (int r = row; r < row + h; r++) {
+                java.util.Arrays.fill(free, r * cols + col, r * cols + col + w, value);
+            }
+        }
+        private void recordBest() {
+            bestCount = placedCount;
+            bestCell = java.util.Arrays.copyOf(placedCell, placedCount);
+            bestGroup = java.util.Arrays.copyOf(placedGroup, placedCount);
+            bestTurned = java.util.Arrays.copyOf(placedTurned, placedCount);
+        }
+        // Hands the best arrangement's slots to the requested types in request order
+        private List<Placement> toPlacements() {
+            ArrayList<Placement> placements = new ArrayList<>();
+            int[] remaining = typeCount.clone();
+            for (int i = 0; i < Math.max(0, bestCount); i++) {
+                int type = 0;
+                while (typeGroup[type] != bestGroup[i] || remaining[type] == 0) {
+                    type++;
+                }
+                remaining[type]--;
+                int group = bestGroup[i];
+                int w = (bestTurned[i] ? groupHeight[group] : groupWidth[group]) * GRID_SIZE;
+                int h = (bestTurned[i] ? groupWidth[group] : groupHeight[group]) * GRID_SIZE;
+                Point position = new Point(room.x + bestCell[i] % cols * GRID_SIZE, room.y + bestCell[i] / cols * GRID_SIZE);
+                placements.add(new Placement(type, position,
+                        facingRotation(position, w, h, groupWidth[group] == groupHeight[group], bestTurned[i])));
+            }
+            return placements;
+        }
+        // The rotation that puts the item's back (its top at rotation 0) to the nearest
+        // wall it may face in its orientation
+        private int facingRotation(Point position, int w, int h, boolean square, boolean turned) {
+            int top = position.y - room.y;
+            int bottom = room.y + room.height - position.y - h;
+            int left = position.x - room.x;
+            int right = room.x + room.width - position.x - w;
+            int upright = top <= bottom ? 0 : 180;
+            int sideways = right <= left ? 90 : 270;
+            if (!square) {
+                return turned ? sideways : upright;
+            }
+            return Math.min(top, bottom) <= Math.min(left, right) ? upright : sideways;
+        }
+    }
+    // Finds where a new room fits, trying positions on the GRID_SIZE lattice in raster
+    // order starting one cell in from the top-left corner. Every existing room rules
+    // out a rectangle of lattice positions (those that would intersect it); the
+    // rectangles are accumulated in a 2D difference array, and its running prefix sums
+    // (a summed-area table) give the number of rooms each position would overlap. The
+    // first zero is the first fit. Cost is O(rooms + lattice positions), so there is no
+    // attempt limit and null means no position exists at all.
+    private static class FreeSpaceFinder {
+        public static Point findFirstFit(List<Room> rooms, int canvasWidth, int canvasHeight, int width, int height) {
+            int origin = GRID_SIZE;
+            if (origin + width > canvasWidth || origin + height > canvasHeight) {
+                return null;
+            }
+            if (width <= 0 || height <= 0) {
+                return new Point(origin, origin); // Empty rectangles never intersect anything
+            }
+            int columns = (canvasWidth - width - origin) / GRID_SIZE + 1;
+            int rows = (canvasHeight - height - origin) / GRID_SIZE + 1;
+            int stride = columns + 1;
+            int[] blocked = new int[stride * (rows + 1)];
+            for (Room room : rooms) {
+                Rectangle b = room.bounds;
+                if (b.width <= 0 || b.height <= 0) {
+                    continue;
+                }
+                // Position x intersects the room when b.x - width < x < b.x + b.width
+                int firstColumn = Math.max(0, Math.floorDiv(b.x - width - origin, GRID_SIZE) + 1);
+                int lastColumn = Math.min(columns - 1, -Math.floorDiv(origin - b.x - b.width, GRID_SIZE) - 1);
+                int firstRow = Math.max(0, Math.floorDiv(b.y - height - origin, GRID_SIZE) + 1);
+                int lastRow = Math.min(rows - 1, -Math.floorDiv(origin - b.y - b.height, GRID_SIZE) - 1);
+                if (firstColumn > lastColumn || firstRow > lastRow) {
+                    continue;
+                }
+                blocked[firstRow * stride + firstColumn]++;
+                blocked[firstRow * stride + lastColumn + 1]--;
+                blocked[(lastRow + 1) * stride + firstColumn]--;
+                blocked[(lastRow + 1) * stride + lastColumn + 1]++;
+            }
+            int[] above = new int[columns];
+            for (int row = 0; row < rows; row++) {
+                int running = 0;
+                for (int column = 0; column < columns; column++) {
+                    running += blocked[row * stride + column];
+                    above[column] += running;
+                    if (above[column] == 0) {
+                        return new Point(origin + column * GRID_SIZE, origin + row * GRID_SIZE);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+    // Scaled artwork for one image path and size, pre-rendered at every quarter turn
+    // so drawing never has to rotate or rescale
+    private static class Sprite {
+        private final BufferedImage[] rotations;
+        public Sprite(BufferedImage[] rotations) {
+            this.rotations = rotations;
+        }
+        // Returns null when the image could not be loaded
+        public BufferedImage get(int rotation) {
+            return rotations == null ? null : rotations[(rotation / 90) & 3];
+        }
+    }
+    // Room types, fixtures and furniture offered by the control panels: the built-in
+    // set plus any definitions found in the template folder. Loading reads only the
+    // small definition files and never an image; SPRITES decodes an entry's image the
+    // first time a Fixture or Furniture is made from it, so startup does not grow with
+    // the size of the library's artwork.
+    //
+    // Each *.properties file in the folder defines one entry, for example
+    //   kind=room                      (room, fixture or furniture)
+    //   name=Office
+    //   width=4                        (room: default size in metres)
+    //   height=3
+    //   color=#C0C0FF                  (room)
+    //   furnishing=Desk@0.5,0.5;Chair@1.5,0.5,90
+    //                                  (room: item @ metres from its top-left corner [,rotation])
+    //   image=desk.png                 (fixture and furniture: relative to the folder)
+    // An entry with the same kind and name as a built-in one replaces it.
+    private static class TemplateLibrary {
+        static class ItemTemplate {
+            final String name;
+            final String imagePath;
+            final boolean fixture;
+            ItemTemplate(String name, String imagePath, boolean fixture) {
+                this.name = name;
+                this.imagePath = imagePath;
+                this.fixture = fixture;
+            }
+        }
+        static class Placement {
+            final String item;
+            final double x, y; // Metres from the room's top-left corner
+            final int rotation;
+            Placement(String item, double x, double y, int rotation) {
+                this.item = item;
+                this.x = x;
+                this.y = y;
+                this.rotation = rotation;
+            }
+        }
+        static class RoomTemplate {
+            final String name;
+            final Color color;
+            final double width, height; // Metres; 0 when the user has to say
+            final List<Placement> furnishing;
+            RoomTemplate(String name, Color color, double width, double height, List<Placement> furnishing) {
+                this.name = name;
+                this.color = color;
+                this.width = width;
+                this.height = height;
+                this.furnishing = furnishing;
+            }
+            // The room type shown on its button and stored with the plan
+            String roomType() {
+                return "Add " + name;
+            }
+        }
+        private final LinkedHashMap<String, RoomTemplate> rooms = new LinkedHashMap<>();
+        private final LinkedHashMap<String, ItemTemplate> fixtures = new LinkedHashMap<>();
+        private final LinkedHashMap<String, ItemTemplate> furniture = new LinkedHashMap<>();
+        private final List<String> problems = new ArrayList<>();
+
+        private TemplateLibrary() {
+            addRoom(new RoomTemplate("Bedroom", Color.decode("#90EE90"), 0, 0, List.of()));
+            addRoom(new RoomTemplate("Kitchen", Color.decode("#FFB6C1"), 0, 0, List.of()));
+            addRoom(new RoomTemplate("Drawing Room", Color.decode("#FFFFE0"), 0, 0, List.of()));
+            addRoom(new RoomTemplate("Bathroom", Color.decode("#ADD8E6"), 0, 0, List.of()));
+            String[][] builtInFixtures = {
+                {"Commode", "images/commode.png"}, {"Washbasin", "images/washbasin.png"}, {"Shower", "images/shower.png"}, {"Kitchen Sink", "images/kitchen sink.png"}, {"Stove", "images/stove.png"}, {"Door", "images/door.png"}, {"Window", "images/window.png"}
+            };
+            String[][] builtInFurniture = {
+                {"Bed", "images/bed.png"}, {"Chair", "images/chair.png"}, {"Table", "images/table.png"}, {"Sofa", "images/sofa.png"}, {"Dining Set", "images/dining set.png"}
+            };
+            for (String[] type : builtInFixtures) {
+                fixtures.put(type[0], new ItemTemplate(type[0], type[1], true));
+            }
+            for (String[] type : builtInFurniture) {
+                furniture.put(type[0], new ItemTemplate(type[0], type[1], false));
+            }
+        }
+        // The built-in entries plus every definition in folder, read in file name order.
+        // A missing folder is not an error; a bad file is skipped and noted in problems().
+        static TemplateLibrary load(File folder) {
+            TemplateLibrary library = new TemplateLibrary();
+            File[] files = folder.listFiles((dir, name) -> name.endsWith(".properties"));
+            if (files == null) {
+                return library;
+            }
+            java.util.Arrays.sort(files);
+            for (File file : files) {
+                try {
+                    library.define(folder, file);
+                } catch (IOException | IllegalArgumentException e) {
+                    library.problems.add(file.getName() + ": " + e.getMessage());
+                }
+            }
+            return library;
+        }
+        private void define(File folder, File file) throws IOException {
+            java.util.Properties definition = new java.util.Properties();
+            try (java.io.Reader in = Files.newBufferedReader(file.toPath())) {
+                definition.load(in);
+            }
+            String kind = definition.getProperty("kind", "").trim();
+            String name = required(definition, "name");
+            if (name.contains(",")) {
+                // The name travels through drag and drop as a comma-separated string
+                throw new IllegalArgumentException("name must not contain a comma");
+            }
+            switch (kind) {
+                case "room" -> addRoom(new RoomTemplate(name,
+                        Color.decode(definition.getProperty("color", "#FFFFFF").trim()),
+                        metres(definition, "width"), metres(definition, "height"),
+                        parseFurnishing(definition.getProperty("furnishing", ""))));
+                case "fixture", "furniture" -> {
+                    File image = new File(required(definition, "image"));
+                    String imagePath = (image.isAbsolute() ? image : new File(folder, image.getPath())).getPath();
+                    boolean fixture = kind.equals("fixture");
+                    (fixture ? fixtures : furniture).put(name, new ItemTemplate(name, imagePath, fixture));
+                }
+                default -> throw new IllegalArgumentException("kind must be room, fixture or furniture");
+            }
+        }
+        private void addRoom(RoomTemplate template) {
+            rooms.put(template.name, template);
+        }
+        private static String required(java.util.Properties definition, String key) {
+            String value = definition.getProperty(key, "").trim();
+            if (value.isEmpty()) {
+                throw new IllegalArgumentException("missing " + key);
+            }
+            return value;
+        }
+        private static double metres(java.util.Properties definition, String key) {
+            String value = definition.getProperty(key, "").trim();
+            double metres = value.isEmpty() ? 0 : Double.parseDouble(value);
+            if (metres < 0) {
+                throw new IllegalArgumentException(key + " must not be negative");
+            }
+            return metres;
+        }
+        // "Name@x,y[,rotation];..." with positions in metres
+        private static List<Placement> parseFurnishing(String text) {
+            List<Placement> placements = new ArrayList<>();
+            for (String entry : text.split(";")) {
+                entry = entry.trim();
+                if (entry.isEmpty()) {
+                    continue;
+                }
+                int at = entry.lastIndexOf('@');
+                String[] numbers = at < 0 ? new String[0] : entry.substring(at + 1).split(",");
+                if (numbers.length < 2 || numbers.length > 3) {
+                    throw new IllegalArgumentException("furnishing entry '" + entry + "' is not Name@x,y[,rotation]");
+                }
+                int rotation = numbers.length == 3 ? Integer.parseInt(numbers[2].trim()) : 0;
+                placements.add(new Placement(entry.substring(0, at).trim(),
+                        Double.parseDouble(numbers[0].trim()), Double.parseDouble(numbers[1].trim()), rotation));
+            }
+            return placements;
+        }
+        public List<RoomTemplate> rooms() {
+            return new ArrayList<>(rooms.values());
+        }
+        public List<ItemTemplate> fixtures() {
+            return new ArrayList<>(fixtures.values());
+        }
+        public List<ItemTemplate> furniture() {
+            return new ArrayList<>(furniture.values());
+        }
+        // A fixture or piece of furniture by name, fixtures first, or null
+        public ItemTemplate item(String name) {
+            ItemTemplate item = fixtures.get(name);
+            return item != null ? item : furniture.get(name);
+        }
+        // Files that were skipped, each with the reason
+        public List<String> problems() {
+            return problems;
+        }
+        public int size() {
+            return rooms.size() + fixtures.size() + furniture.size();
+        }
+    }
+    // Shared, bounded cache of sprites so every Fixture and Furniture of the same
+    // type reuses one decoded, scaled and rotated set of images
+    private static class SpriteCache {
+        private final int maxEntries;
+        private final LinkedHashMap<String, Sprite> sprites;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        public SpriteCache(int maxEntries) {
+            this.maxEntries = maxEntries;
+            // Access-ordered, so the eldest entry is the least recently used one
+            this.sprites = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(java.util.Map.Entry<String, Sprite> eldest) {
+                    if (size() > SpriteCache.this.maxEntries) {
+                        evictions++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+        public Sprite get(String imagePath, int size) {
+            String key = imagePath + "@" + size;
+            synchronized (this) {
+                Sprite sprite = sprites.get(key);
+                if (sprite != null) {
+                    hits++;
+                    return sprite;
+                }
+                misses++;
+            }
+            // Decoded outside the lock, so the EDT never waits on a background warm-up
+            // decoding some other image. Two threads may both decode a new key; the
+            // first one stored wins.
+            Sprite loaded = new Sprite(loadRotations(imagePath, size));
+            synchronized (this) {
+                Sprite sprite = sprites.get(key);
+                if (sprite != null) {
+                    return sprite;
+                }
+                sprites.put(key, loaded);
+                return loaded;
+            }
+        }
+        public int capacity() {
+            return maxEntries;
+        }
+        public synchronized long getHits() {
+            return hits;
+        }
+        public synchronized long getMisses() {
+            return misses;
+        }
+        public synchronized long getEvictions() {
+            return evictions;
+        }
+        public synchronized int size() {
+            return sprites.size();
+        }
+        private static BufferedImage[] loadRotations(String imagePath, int size) {
+            ImageIcon icon = new ImageIcon(imagePath);
+            if (icon.getImageLoadStatus() != MediaTracker.COMPLETE) {
+                LOG.warning("Could not load image: " + imagePath);
+                return null;
+            }
+            // getScaledInstance produces its pixels asynchronously; ImageIcon waits for them
+            Image scaled = new ImageIcon(icon.getImage().getScaledInstance(size, size, Image.SCALE_SMOOTH)).getImage();
+            BufferedImage[] rotations = new BufferedImage[4];
+            for (int quarter = 0; quarter < 4; quarter++) {
+                BufferedImage rotated = createCompatibleImage(size, size);
+                Graphics2D g = rotated.createGraphics();
+                g.rotate(Math.toRadians(quarter * 90), size / 2.0, size / 2.0);
+                g.drawImage(scaled, 0, 0, null);
+                g.dispose();
+                rotations[quarter] = rotated;
+            }
+            return rotations;
+        }
+        private static BufferedImage createCompatibleImage(int width, int height) {
+            if (GraphicsEnvironment.isHeadless()) {
+                return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+            }
+            return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                    .getDefaultConfiguration().createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+        }
+    }
+    // New serializable class to store room data
+    private static class RoomData implements Serializable {
+        private static final long serialVersionUID = 1L;
+        int x, y, width, height;
+        Color color;
+        String type;
+        public RoomData(int x, int y, int width, int height, Color color, String type) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.color = color;
+            this.type = type;
+        }
+    }
+
+    // Add a new serializable class to store item data
+private static class ItemData implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    int x, y, width, height;
+    String type;
+    String category;
+    int rotation;
+    int parentRoomIndex; // Store room index instead of reference
+    Point relativePosition;
+
+    public ItemData(int x, int y, int width, int height, String type, String category, 
+                   int rotation, int parentRoomIndex, Point relativePosition) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.type = type;
+        this.category = category;
+        this.rotation = rotation;
+        this.parentRoomIndex = parentRoomIndex;
+        this.relativePosition = relativePosition;
+    }
+}
+
+    // Reads and writes .fpl files. Version 2 is a compact binary layout:
+    //
+    //   int magic "FPL\0", short version, then sections of
+    //   byte tag, int payload length, payload
+    //
+    // Sections are STRINGS (type names and image paths, referenced by index),
+    // ROOMS (bounds, packed ARGB colour, type), ITEMS (fixtures and furniture
+    // stored relative to their parent room, as in ItemData), DOORS and WINDOWS.
+    // Readers skip sections with unknown tags, so later versions can add them.
+    // Version 1 files are Java-serialized lists of RoomData and are still read.
+    // Files are streamed through a fixed-size buffer; all integers are big-endian.
+    private static class PlanFile {
+        private static final int MAGIC = 0x46504C00; // "FPL\0"
+        private static final short VERSION = 2;
+        private static final int LEGACY_MAGIC = 0xACED; // ObjectOutputStream header
+        private static final byte SECTION_STRINGS = 1;
+        private static final byte SECTION_ROOMS = 2;
+        private static final byte SECTION_ITEMS = 3;
+        private static final byte SECTION_DOORS = 4;
+        private static final byte SECTION_WINDOWS = 5;
+        private static final int ROOM_RECORD_SIZE = 24;
+        private static final int ITEM_RECORD_SIZE = 22;
+        private static final int DOOR_RECORD_SIZE = 24;
+        private static final int WINDOW_RECORD_SIZE = 13;
+        private static final byte ITEM_FIXTURE = 0;
+        private static final byte ITEM_FURNITURE = 1;
+        // Progress is reported once per this many records (a power of two)
+        private static final int PROGRESS_INTERVAL = 4096;
+
+        // Receives how far a load (in bytes) or save (in records) has got; throwing
+        // aborts the operation, which is how saves and loads are cancelled
+        interface ProgressListener {
+            void progress(long done, long total) throws IOException;
+        }
+
+        // The contents of a plan file, with items already attached to their rooms
+        static class Plan {
+            final ArrayList<Room> rooms = new ArrayList<>();
+            final ArrayList<Door> doors = new ArrayList<>();
+            final ArrayList<Window> windows = new ArrayList<>();
+        }
+
+        // Everything a save needs, copied out of the live model into flat arrays so the
+        // encoding and I/O can run on another thread while the user keeps editing
+        static class Snapshot {
+            final String[] strings;
+            final int[] rooms;   // x, y, width, height, argb, type per room
+            final int[] items;   // category, room, dx, dy, quarter turns, type, image per item
+            final int[] doors;   // start x, start y, end x, end y, room1, room2 per door
+            final int[] windows; // x, y, room, horizontal per window
+
+            Snapshot(String[] strings, int[] rooms, int[] items, int[] doors, int[] windows) {
+                this.strings = strings;
+                this.rooms = rooms;
+                this.items = items;
+                this.doors = doors;
+                this.windows = windows;
+            }
+            int recordCount() {
+                return rooms.length / 6 + items.length / 7 + doors.length / 6 + windows.length / 4;
+            }
+        }
+
+        public static Snapshot capture(List<Room> rooms, List<Door> doors, List<Window> windows) {
+            LinkedHashMap<String, Integer> strings = new LinkedHashMap<>();
+            IdentityHashMap<Room, Integer> roomIndexes = new IdentityHashMap<>();
+            int itemCount = 0;
+            for (Room room : rooms) {
+                roomIndexes.put(room, roomIndexes.size());
+                itemCount += room.getFixtures().size() + room.getFurniture().size();
+            }
+            int[] roomRecords = new int[rooms.size() * 6];
+            int[] itemRecords = new int[itemCount * 7];
+            int item = 0;
+            for (int roomIndex = 0; roomIndex < rooms.size(); roomIndex++) {
+                Room room = rooms.get(roomIndex);
+                int offset = roomIndex * 6;
+                roomRecords[offset] = room.bounds.x;
+                roomRecords[offset + 1] = room.bounds.y;
+                roomRecords[offset + 2] = room.bounds.width;
+                roomRecords[offset + 3] = room.bounds.height;
+                roomRecords[offset + 4] = room.color.getRGB();
+                roomRecords[offset + 5] = intern(strings, room.type);
+                for (Fixture fixture : room.getFixtures()) {
+                    captureItem(itemRecords, item++ * 7, ITEM_FIXTURE, roomIndex, room, fixture.getBounds(),
+                            fixture.getRotation(), intern(strings, fixture.getType()),
+                            intern(strings, fixture.getImagePath()));
+                }
+                for (Furniture furniture : room.getFurniture()) {
+                    captureItem(itemRecords, item++ * 7, ITEM_FURNITURE, roomIndex, room, furniture.getBounds(),
+                            furniture.getRotation(), intern(strings, furniture.getType()),
+                            intern(strings, furniture.getImagePath()));
+                }
+            }
+            int[] doorRecords = new int[doors.size() * 6];
+            for (int i = 0; i < doors.size(); i++) {
+                Door door = doors.get(i);
+                doorRecords[i * 6] = door.start.x;
+                doorRecords[i * 6 + 1] = door.start.y;
+                doorRecords[i * 6 + 2] = door.end.x;
+                doorRecords[i * 6 + 3] = door.end.y;
+                doorRecords[i * 6 + 4] = roomIndexes.getOrDefault(door.room1, -1);
+                doorRecords[i * 6 + 5] = roomIndexes.getOrDefault(door.room2, -1);
+            }
+            int[] windowRecords = new int[windows.size() * 4];
+            for (int i = 0; i < windows.size(); i++) {
+                Window window = windows.get(i);
+                windowRecords[i * 4] = window.position.x;
+                windowRecords[i * 4 + 1] = window.position.y;
+                windowRecords[i * 4 + 2] = roomIndexes.getOrDefault(window.room, -1);
+                windowRecords[i * 4 + 3] = window.isHorizontal ? 1 : 0;
+            }
+            return new Snapshot(strings.keySet().toArray(new String[0]), roomRecords, itemRecords,
+                    doorRecords, windowRecords);
+        }
+        private static int intern(LinkedHashMap<String, Integer> strings, String string) {
+            Integer index = strings.putIfAbsent(string, strings.size());
+            return index != null ? index : strings.size() - 1;
+        }
+        private static void captureItem(int[] records, int offset, byte category, int roomIndex, Room room,
+                Rectangle bounds, int rotation, int typeIndex, int imageIndex) {
+            records[offset] = category;
+            records[offset + 1] = roomIndex;
+            records[offset + 2] = bounds.x - room.bounds.x;
+            records[offset + 3] = bounds.y - room.bounds.y;
+            records[offset + 4] = rotation / 90;
+            records[offset + 5] = typeIndex;
+            records[offset + 6] = imageIndex;
+        }
+
+        public static void write(OutputStream stream, List<Room> rooms, List<Door> doors, List<Window> windows)
+                throws IOException {
+            write(stream, capture(rooms, doors, windows), null);
+        }
+        public static void write(OutputStream stream, Snapshot snapshot, ProgressListener progress)
+                throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            long totalRecords = snapshot.recordCount();
+            long written = 0;
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+
+            java.io.ByteArrayOutputStream stringBytes = new java.io.ByteArrayOutputStream();
+            DataOutputStream stringOut = new DataOutputStream(stringBytes);
+            stringOut.writeInt(snapshot.strings.length);
+            for (String string : snapshot.strings) {
+                stringOut.writeUTF(string);
+            }
+            out.writeByte(SECTION_STRINGS);
+            out.writeInt(stringBytes.size());
+            stringBytes.writeTo(out);
+
+            int[] rooms = snapshot.rooms;
+            out.writeByte(SECTION_ROOMS);
+            out.writeInt(4 + rooms.length / 6 * ROOM_RECORD_SIZE);
+            out.writeInt(rooms.length / 6);
+            for (int i = 0; i < rooms.length; i += 6) {
+                for (int field = 0; field < 6; field++) {
+                    out.writeInt(rooms[i + field]);
+                }
+                reportProgress(progress, written++, totalRecords);
+            }
+
+            int[] items = snapshot.items;
+            out.writeByte(SECTION_ITEMS);
+            out.writeInt(4 + items.length / 7 * ITEM_RECORD_SIZE);
+            out.writeInt(items.length / 7);
+            for (int i = 0; i < items.length; i += 7) {
+                out.writeByte(items[i]);
+                out.writeInt(items[i + 1]);
+                out.writeInt(items[i + 2]);
+                out.writeInt(items[i + 3]);
+                out.writeByte(items[i + 4]);
+                out.writeInt(items[i + 5]);
+                out.writeInt(items[i + 6]);
+                reportProgress(progress, written++, totalRecords);
+            }
+
+            int[] doors = snapshot.doors;
+            out.writeByte(SECTION_DOORS);
+            out.writeInt(4 + doors.length / 6 * DOOR_RECORD_SIZE);
+            out.writeInt(doors.length / 6);
+            for (int i = 0; i < doors.length; i++) {
+                out.writeInt(doors[i]);
+            }
+
+            int[] windows = snapshot.windows;
+            out.writeByte(SECTION_WINDOWS);
+            out.writeInt(4 + windows.length / 4 * WINDOW_RECORD_SIZE);
+            out.writeInt(windows.length / 4);
+            for (int i = 0; i < windows.length; i += 4) {
+                out.writeInt(windows[i]);
+                out.writeInt(windows[i + 1]);
+                out.writeInt(windows[i + 2]);
+                out.writeBoolean(windows[i + 3] != 0);
+            }
+            out.flush();
+            if (progress != null) {
+                progress.progress(totalRecords, totalRecords);
+            }
+        }
+        private static void reportProgress(ProgressListener progress, long record, long total) throws IOException {
+            if (progress != null && (record & (PROGRESS_INTERVAL - 1)) == 0) {
+                progress.progress(record, total);
+            }
+        }
+
+        // Streams the file through one READ_CHUNK buffer, building rooms, fixtures and
+        // furniture from each record as it arrives, so a load needs little more heap than
+        // the model it builds. The file is not memory-mapped: a mapping keeps it locked on
+        // Windows until the buffer is collected, which would make saving over the plan
+        // that was just opened fail.
+        public static Plan read(File file, ProgressListener progress) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                Source in = new Source(channel);
+                if (isLegacy(in)) {
+                    channel.position(0);
+                    return readLegacy(new BufferedInputStream(java.nio.channels.Channels.newInputStream(channel)));
+                }
+                return read(in, progress);
+            }
+        }
+        public static Plan read(InputStream stream) throws IOException {
+            byte[] bytes = stream.readAllBytes();
+            Source in = new Source(ByteBuffer.wrap(bytes));
+            if (isLegacy(in)) {
+                return readLegacy(new java.io.ByteArrayInputStream(bytes));
+            }
+            return read(in, null);
+        }
+        private static boolean isLegacy(Source in) throws IOException {
+            if (in.remaining() < 2) {
+                return false;
+            }
+            in.require(2);
+            return (in.buffer.getShort(in.buffer.position()) & 0xFFFF) == LEGACY_MAGIC;
+        }
+        private static final int READ_CHUNK = 64 * 1024;
+        // A plan file being read: either all of it in memory, or a channel read through a
+        // fixed buffer that require refills. Records are read straight from the buffer
+        // once require has made sure enough of them is there.
+        private static class Source {
+            final ByteBuffer buffer;
+            private final FileChannel channel; // Null when the buffer holds everything
+            private final long size;
+            private long base; // File offset of the buffer's first byte
+
+            Source(ByteBuffer contents) {
+                buffer = contents;
+                channel = null;
+                size = contents.remaining();
+            }
+            Source(FileChannel channel) throws IOException {
+                buffer = ByteBuffer.allocate(READ_CHUNK);
+                buffer.limit(0);
+                this.channel = channel;
+                size = channel.size();
+            }
+            long position() {
+                return base + buffer.position();
+            }
+            long size() {
+                return size;
+            }
+            long remaining() {
+                return size - position();
+            }
+            // Makes the next count bytes, at most READ_CHUNK, available in the buffer
+            void require(int count) throws IOException {
+                if (buffer.remaining() >= count) {
+                    return;
+                }
+                if (channel != null) {
+                    base += buffer.position();
+                    buffer.compact();
+                    while (buffer.position() < count && channel.read(buffer) >= 0) {
+                        // Keep reading until the record is in or the file ends
+                    }
+                    buffer.flip();
+                }
+                if (buffer.remaining() < count) {
+                    throw new IOException("Corrupt floor plan: unexpected end of data");
+                }
+            }
+            void get(byte[] into) throws IOException {
+                for (int done = 0; done < into.length; ) {
+                    int chunk = Math.min(into.length - done, READ_CHUNK);
+                    require(chunk);
+                    buffer.get(into, done, chunk);
+                    done += chunk;
+                }
+            }
+            // Moves ahead to a file offset, reading past it only if it is already buffered
+            void seek(long offset) throws IOException {
+                if (offset <= base + buffer.limit()) {
+                    buffer.position((int) (offset - base));
+                } else {
+                    channel.position(offset);
+                    base = offset;
+                    buffer.clear().limit(0);
+                }
+            }
+        }
+        private static Plan read(Source in, ProgressListener progress) throws IOException {
+            ByteBuffer buffer = in.buffer;
+            try {
+                if (in.remaining() < 6) {
+                    throw new IOException("Not a floor plan file");
+                }
+                in.require(6);
+                if (buffer.getInt() != MAGIC) {
+                    throw new IOException("Not a floor plan file");
+                }
+                short version = buffer.getShort();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported floor plan version " + version);
+                }
+                Plan plan = new Plan();
+                String[] strings = new String[0];
+                while (in.remaining() > 0) {
+                    in.require(5);
+                    byte tag = buffer.get();
+                    int length = buffer.getInt();
+                    if (length < 0 || length > in.remaining()) {
+                        throw new IOException("Corrupt floor plan: section " + tag + " is truncated");
+                    }
+                    long sectionEnd = in.position() + length;
+                    switch (tag) {
+                        case SECTION_STRINGS -> strings = readStrings(in, length);
+                        case SECTION_ROOMS -> {
+                            int count = count(in, ROOM_RECORD_SIZE);
+                            plan.rooms.ensureCapacity(count);
+                            for (int i = 0; i < count; i++) {
+                                in.require(ROOM_RECORD_SIZE);
+                                int x = buffer.getInt();
+                                int y = buffer.getInt();
+                                int width = buffer.getInt();
+                                int height = buffer.getInt();
+                                Color color = new Color(buffer.getInt(), true);
+                                plan.rooms.add(new Room(x, y, width, height, color, string(strings, buffer.getInt())));
+                                reportProgress(progress, in, i);
+                            }
+                        }
+                        case SECTION_ITEMS -> {
+                            int count = count(in, ITEM_RECORD_SIZE);
+                            for (int i = 0; i < count; i++) {
+                                in.require(ITEM_RECORD_SIZE);
+                                byte category = buffer.get();
+                                Room room = room(plan, buffer.getInt());
+                                int x = room.bounds.x + buffer.getInt();
+                                int y = room.bounds.y + buffer.getInt();
+                                int rotation = buffer.get() * 90;
+                                String type = string(strings, buffer.getInt());
+                                String imagePath = string(strings, buffer.getInt());
+                                if (category == ITEM_FIXTURE) {
+                                    Fixture fixture = new Fixture(type, new Point(x, y), imagePath, room);
+                                    fixture.setRotation(rotation);
+                                    room.addFixture(fixture);
+                                } else {
+                                    Furniture furniture = new Furniture(type, new Point(x, y), imagePath, room);
+                                    furniture.setRotation(rotation);
+                                    room.addFurniture(furniture);
+                                }
+                                reportProgress(progress, in, i);
+                            }
+                        }
+                        case SECTION_DOORS -> {
+                            int count = count(in, DOOR_RECORD_SIZE);
+                            for (int i = 0; i < count; i++) {
+                                in.require(DOOR_RECORD_SIZE);
+                                Point start = new Point(buffer.getInt(), buffer.getInt());
+                                Point end = new Point(buffer.getInt(), buffer.getInt());
+                                Room room1 = owner(plan, buffer.getInt(), "door");
+                                Room room2 = optionalRoom(plan, buffer.getInt());
+                                plan.doors.add(new Door(start, end, room1, room2));
+                            }
+                        }
+                        case SECTION_WINDOWS -> {
+                            int count = count(in, WINDOW_RECORD_SIZE);
+                            for (int i = 0; i < count; i++) {
+                                in.require(WINDOW_RECORD_SIZE);
+                                Point position = new Point(buffer.getInt(), buffer.getInt());
+                                Room room = owner(plan, buffer.getInt(), "window");
+                                plan.windows.add(new Window(position, room, buffer.get() != 0));
+                            }
+                        }
+                        default -> {
+                            // Unknown section from a newer writer; skipped below
+                        }
+                    }
+                    if (in.position() > sectionEnd) {
+                        throw new IOException("Corrupt floor plan: section " + tag + " overruns its length");
+                    }
+                    in.seek(sectionEnd);
+                }
+                if (progress != null) {
+                    progress.progress(in.size(), in.size());
+                }
+                return plan;
+            } catch (java.nio.BufferUnderflowException | IllegalArgumentException ex) {
+                throw new IOException("Corrupt floor plan: unexpected end of data", ex);
+            }
+        }
+        // A record count, checked against the bytes left so a corrupt one fails here
+        // rather than by allocating for it
+        private static int count(Source in, int recordSize) throws IOException {
+            in.require(4);
+            int count = in.buffer.getInt();
+            if (count < 0 || count > in.remaining() / recordSize) {
+                throw new IOException("Corrupt floor plan: " + count + " records do not fit in the file");
+            }
+            return count;
+        }
+        private static String[] readStrings(Source in, int length) throws IOException {
+            // The table is small and written with writeUTF, so decode it from a copy
+            byte[] table = new byte[length];
+            in.get(table);
+            DataInputStream data = new DataInputStream(new java.io.ByteArrayInputStream(table));
+            String[] strings = new String[data.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = data.readUTF();
+            }
+            return strings;
+        }
+        private static void reportProgress(ProgressListener progress, Source in, int record) throws IOException {
+            if (progress != null && (record & (PROGRESS_INTERVAL - 1)) == 0) {
+                progress.progress(in.position(), in.size());
+            }
+        }
+        private static String string(String[] strings, int index) throws IOException {
+            if (index < 0 || index >= strings.length) {
+                throw new IOException("Corrupt floor plan: string " + index + " out of range");
+            }
+            return strings[index];
+        }
+        private static Room room(Plan plan, int index) throws IOException {
+            if (index < 0 || index >= plan.rooms.size()) {
+                throw new IOException("Corrupt floor plan: room " + index + " out of range");
+            }
+            return plan.rooms.get(index);
+        }
+        private static Room optionalRoom(Plan plan, int index) throws IOException {
+            return index == -1 ? null : room(plan, index);
+        }
+        // The room a door or window belongs to, which every opening must have
+        private static Room owner(Plan plan, int index, String opening) throws IOException {
+            if (index == -1) {
+                throw new IOException("Corrupt floor plan: a " + opening + " belongs to no room");
+            }
+            return room(plan, index);
+        }
+        @SuppressWarnings("unchecked")
+        private static Plan readLegacy(InputStream in) throws IOException {
+            try {
+                ArrayList<RoomData> roomDataList = (ArrayList<RoomData>) new ObjectInputStream(in).readObject();
+                Plan plan = new Plan();
+                for (RoomData roomData : roomDataList) {
+                    plan.rooms.add(new Room(
+                            roomData.x,
+                            roomData.y,
+                            roomData.width,
+                            roomData.height,
+                            roomData.color,
+                            roomData.type));
+                }
+                return plan;
+            } catch (ClassNotFoundException | ClassCastException ex) {
+                throw new IOException("Not a floor plan file", ex);
+            }
+        }
+        // Writes the version 1 format; kept only so benchmarks can compare against it
+        static void writeLegacy(OutputStream stream, List<Room> rooms) throws IOException {
+            ArrayList<RoomData> roomDataList = new ArrayList<>();
+            for (Room room : rooms) {
+                roomDataList.add(new RoomData(
+                        room.bounds.x,
+                        room.bounds.y,
+                        room.bounds.width,
+                        room.bounds.height,
+                        room.color,
+                        room.type));
+            }
+            ObjectOutputStream oos = new ObjectOutputStream(stream);
+            oos.writeObject(roomDataList);
+            oos.flush();
+        }
+    }
+
+    // Crash-recovery journal kept beside the plan as <plan>.fpl.journal (or in the user's
+    // home directory while the plan is untitled). It starts from a base - an empty plan,
+    // the .fpl file itself, or an embedded v2 snapshot - followed by one small record per
+    // edit. Records are encoded on the EDT and appended by a background writer, so an edit
+    // costs only its own record; once the records pass COMPACT_THRESHOLD the journal is
+    // rewritten as a fresh embedded snapshot. Rooms, items, doors and windows are referred
+    // to by ids that both sides hand out in plan order, so a replay rebuilds the same
+    // numbering. Doors and windows that go with a moved or deleted room are not recorded
+    // separately; the replay of the room record carries or drops them by the same rules.
+    private static class PlanJournal {
+        private static final int MAGIC = 0x46504C4A; // "FPLJ"
+        private static final short VERSION = 3; // Version 2 framed records with a short length
+        private static final byte BASE_EMPTY = 0;
+        private static final byte BASE_PLAN_FILE = 1;
+        private static final byte BASE_SNAPSHOT = 2;
+        private static final byte ROOM_ADD = 1;
+        private static final byte ROOM_MOVE = 2;
+        private static final byte ROOM_DELETE = 3;
+        private static final byte ITEM_ADD = 4;
+        private static final byte ITEM_MOVE = 5;
+        private static final byte ITEM_ROTATE = 6;
+        private static final byte ITEM_DELETE = 7;
+        private static final byte OPENING_ADD = 8;
+        private static final byte OPENING_DELETE = 9;
+        private static final byte OPENING_DOOR = 0;
+        private static final byte OPENING_WINDOW = 1;
+        private static final long COMPACT_THRESHOLD = 512 * 1024;
+
+        private final List<Room> rooms;
+        private final List<Door> doors;
+        private final List<Window> windows;
+        private final java.util.concurrent.ExecutorService writer =
+                java.util.concurrent.Executors.newSingleThreadExecutor(task -> {
+                    Thread thread = new Thread(task, "Autosave");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        // EDT state
+        private final IdentityHashMap<Object, Integer> ids = new IdentityHashMap<>();
+        private final java.io.ByteArrayOutputStream recordBytes = new java.io.ByteArrayOutputStream();
+        private final DataOutputStream record = new DataOutputStream(recordBytes);
+        private int nextId;
+        private File planFile; // null while the plan is untitled
+        private File journal;
+        private byte[] pendingHeader; // Written just before the first record, or null once the file exists
+        private long recordedSinceBase; // Bytes of records on top of the current base
+        private boolean compactDue; // Past the threshold; compacted at the next compactIfDue
+        private long editCount;
+        // Writer thread state
+        private DataOutputStream out;
+
+        PlanJournal(List<Room> rooms, List<Door> doors, List<Window> windows) {
+            this.rooms = rooms;
+            this.doors = doors;
+            this.windows = windows;
+        }
+
+        static File untitledJournal() {
+            return new File(new File(System.getProperty("user.home"), ".floorplanner"), "untitled.fpl.journal");
+        }
+        static File journalFor(File planFile) {
+            return new File(planFile.getPath() + ".journal");
+        }
+
+        // Starts journaling the current plan against an empty base, or against the plan
+        // file it was just loaded from. Nothing touches the disk until the first edit.
+        public void startFrom(File planFile) {
+            byte[] header = header(planFile == null ? BASE_EMPTY : BASE_PLAN_FILE, planFile);
+            renumber();
+            File previous = switchTo(planFile);
+            if (previous != null) {
+                // Whatever the previous journal held is now saved, replaced or given up
+                writer.execute(() -> {
+                    closeOutput();
+                    previous.delete();
+                });
+            }
+            pendingHeader = header;
+        }
+        // Starts journaling from a snapshot of the current plan, written out right away;
+        // used when the plan holds changes that exist nowhere else on disk
+        public void startFromSnapshot(File planFile) {
+            PlanFile.Snapshot snapshot = PlanFile.capture(rooms, doors, windows);
+            renumber();
+            File previous = switchTo(planFile);
+            File journal = this.journal;
+            pendingHeader = null;
+            writer.execute(() -> {
+                if (previous != null && !previous.equals(journal)) {
+                    closeOutput();
+                    previous.delete();
+                }
+                try {
+                    java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+                    DataOutputStream data = new DataOutputStream(bytes);
+                    data.write(header(BASE_SNAPSHOT, null));
+                    java.io.ByteArrayOutputStream snapshotBytes = new java.io.ByteArrayOutputStream();
+                    PlanFile.write(snapshotBytes, snapshot, null);
+                    data.writeInt(snapshotBytes.size());
+                    snapshotBytes.writeTo(data);
+                    create(journal, bytes.toByteArray());
+                } catch (IOException ex) {
+                    LOG.log(java.util.logging.Level.WARNING, "Autosave could not write a snapshot", ex);
+                }
+            });
+        }
+        // Replaces the records with a snapshot once they pass the threshold. Only called
+        // between user-level edits: partway through one, say a room whose items are not
+        // journaled yet, the snapshot would already hold what the records after it add.
+        public void compactIfDue() {
+            if (compactDue) {
+                startFromSnapshot(planFile);
+            }
+        }
+        // Counts journaled edits, so a save can tell whether the plan changed while it ran
+        public long editCount() {
+            return editCount;
+        }
+        // Waits until everything queued so far is on disk
+        public void sync() {
+            try {
+                writer.submit(() -> { }).get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (java.util.concurrent.ExecutionException ex) {
+                LOG.log(java.util.logging.Level.WARNING, "Autosave failed", ex.getCause());
+            }
+        }
+        // Flushes everything queued so far; called when the application closes
+        public void close() {
+            writer.execute(this::closeOutput);
+            writer.shutdown();
+            try {
+                writer.awaitTermination(5, java.util.concurrent.TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void roomAdded(Room room) {
+            ids.put(room, nextId++);
+            beginRecord(ROOM_ADD, room);
+            writeInt(room.bounds.x);
+            writeInt(room.bounds.y);
+            writeInt(room.bounds.width);
+            writeInt(room.bounds.height);
+            writeInt(room.color.getRGB());
+            writeUTF(room.type);
+            endRecord();
+            for (Fixture fixture : room.getFixtures()) {
+                itemAdded(fixture);
+            }
+            for (Furniture furniture : room.getFurniture()) {
+                itemAdded(furniture);
+            }
+        }
+        public void roomMoved(Room room) {
+            if (beginRecord(ROOM_MOVE, room)) {
+                writeInt(room.bounds.x);
+                writeInt(room.bounds.y);
+                endRecord();
+            }
+        }
+        public void roomDeleted(Room room) {
+            if (beginRecord(ROOM_DELETE, room)) {
+                endRecord();
+            }
+            ids.remove(room);
+            for (Fixture fixture : room.getFixtures()) {
+                ids.remove(fixture);
+            }
+            for (Furniture furniture : room.getFurniture()) {
+                ids.remove(furniture);
+            }
+        }
+        public void itemAdded(Fixture fixture) {
+            recordItemAdd(fixture, PlanFile.ITEM_FIXTURE, fixture.getParentRoom(), fixture.getBounds(),
+                    fixture.getRotation(), fixture.getType(), fixture.getImagePath());
+        }
+        public void itemAdded(Furniture furniture) {
+            recordItemAdd(furniture, PlanFile.ITEM_FURNITURE, furniture.getParentRoom(), furniture.getBounds(),
+                    furniture.getRotation(), furniture.getType(), furniture.getImagePath());
+        }
+        public void itemMoved(Fixture fixture) {
+            recordItemMove(fixture, fixture.getBounds());
+        }
+        public void itemMoved(Furniture furniture) {
+            recordItemMove(furniture, furniture.getBounds());
+        }
+        public void itemRotated(Fixture fixture) {
+            recordItemRotate(fixture, fixture.getRotation());
+        }
+        public void itemRotated(Furniture furniture) {
+            recordItemRotate(furniture, furniture.getRotation());
+        }
+        public void itemDeleted(Object item) {
+            if (beginRecord(ITEM_DELETE, item)) {
+                endRecord();
+            }
+            ids.remove(item);
+        }
+        public void openingAdded(Object opening) {
+            List<Room> attached = Openings.rooms(opening);
+            for (Room room : attached) {
+                if (!ids.containsKey(room)) {
+                    return;
+                }
+            }
+            ids.put(opening, nextId++);
+            beginRecord(OPENING_ADD, opening);
+            if (opening instanceof Door door) {
+                writeByte(OPENING_DOOR);
+                writeInt(ids.get(door.room1));
+                writeInt(door.room2 == null ? -1 : ids.get(door.room2));
+                writeInt(door.start.x);
+                writeInt(door.start.y);
+                writeInt(door.end.x);
+                writeInt(door.end.y);
+            } else {
+                Window window = (Window) opening;
+                writeByte(OPENING_WINDOW);
+                writeInt(ids.get(window.room));
+                writeInt(window.position.x);
+                writeInt(window.position.y);
+                writeByte(window.isHorizontal ? 1 : 0);
+            }
+            endRecord();
+        }
+        public void openingDeleted(Object opening) {
+            if (beginRecord(OPENING_DELETE, opening)) {
+                endRecord();
+            }
+            ids.remove(opening);
+        }
+        // Drops an opening that a replay removes on its own, along with its room
+        public void openingForgotten(Object opening) {
+            ids.remove(opening);
+        }
+        private void recordItemAdd(Object item, byte category, Room room, Rectangle bounds, int rotation,
+                String type, String imagePath) {
+            Integer roomId = ids.get(room);
+            if (roomId == null) {
+                return;
+            }
+            ids.put(item, nextId++);
+            beginRecord(ITEM_ADD, item);
+            writeInt(roomId);
+            writeByte(category);
+            writeInt(bounds.x);
+            writeInt(bounds.y);
+            writeByte(rotation / 90);
+            writeUTF(type);
+            writeUTF(imagePath);
+            endRecord();
+        }
+        private void recordItemMove(Object item, Rectangle bounds) {
+            if (beginRecord(ITEM_MOVE, item)) {
+                writeInt(bounds.x);
+                writeInt(bounds.y);
+                endRecord();
+            }
+        }
+        private void recordItemRotate(Object item, int rotation) {
+            if (beginRecord(ITEM_ROTATE, item)) {
+                writeByte(rotation / 90);
+                endRecord();
+            }
+        }
+
+        // Starts a record about an entity; false if the entity is not part of the journaled plan
+        private boolean beginRecord(byte op, Object entity) {
+            Integer id = ids.get(entity);
+            if (id == null) {
+                return false;
+            }
+            recordBytes.reset();
+            writeByte(op);
+            writeInt(0); // Payload length, patched in endRecord
+            writeInt(id);
+            return true;
+        }
+        // Frames the record and hands it to the writer, noting when the journal is big enough to compact
+        private void endRecord() {
+            byte[] bytes = recordBytes.toByteArray();
+            int payload = bytes.length - 5;
+            bytes[1] = (byte) (payload >>> 24);
+            bytes[2] = (byte) (payload >>> 16);
+            bytes[3] = (byte) (payload >>> 8);
+            bytes[4] = (byte) payload;
+            editCount++;
+            if (pendingHeader != null) {
+                byte[] header = pendingHeader;
+                File journal = this.journal;
+                pendingHeader = null;
+                writer.execute(() -> create(journal, header));
+            }
+            writer.execute(() -> append(bytes));
+            recordedSinceBase += bytes.length;
+            if (recordedSinceBase > COMPACT_THRESHOLD) {
+                compactDue = true;
+            }
+        }
+        // ByteArrayOutputStream never throws, so the record helpers hide DataOutputStream's IOException
+        private void writeByte(int value) {
+            recordBytes.write(value);
+        }
+        private void writeInt(int value) {
+            try {
+                record.writeInt(value);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        private void writeUTF(String value) {
+            try {
+                record.writeUTF(value);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        // Hands out ids in plan order: each room, then its fixtures, then its furniture;
+        // then the doors, then the windows
+        private void renumber() {
+            ids.clear();
+            nextId = 0;
+            for (Room room : rooms) {
+                ids.put(room, nextId++);
+                for (Fixture fixture : room.getFixtures()) {
+                    ids.put(fixture, nextId++);
+                }
+                for (Furniture furniture : room.getFurniture()) {
+                    ids.put(furniture, nextId++);
+                }
+            }
+            for (Door door : doors) {
+                ids.put(door, nextId++);
+            }
+            for (Window window : windows) {
+                ids.put(window, nextId++);
+            }
+        }
+        // Points the journal at a plan file and returns the journal it replaces
+        private File switchTo(File planFile) {
+            File previous = journal;
+            this.planFile = planFile;
+            journal = planFile == null ? untitledJournal() : journalFor(planFile);
+            recordedSinceBase = 0;
+            compactDue = false;
+            return previous;
+        }
+        private static File planFileFor(File journal) {
+            String path = journal.getPath();
+            return new File(path.substring(0, path.length() - ".journal".length()));
+        }
+        private static byte[] header(byte baseKind, File planFile) {
+            java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+            try (DataOutputStream data = new DataOutputStream(bytes)) {
+                data.writeInt(MAGIC);
+                data.writeShort(VERSION);
+                data.writeByte(baseKind);
+                if (baseKind == BASE_PLAN_FILE) {
+                    // Identifies the exact plan file the records apply to
+                    data.writeLong(planFile.length());
+                    data.writeLong(planFile.lastModified());
+                }
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            return bytes.toByteArray();
+        }
+
+        // Writer thread: replaces the journal with a new one holding just the header
+        private void create(File journal, byte[] header) {
+            closeOutput();
+            try {
+                File parent = journal.getAbsoluteFile().getParentFile();
+                if (parent != null) {
+                    parent.mkdirs();
+                }
+                File temp = new File(journal.getPath() + ".tmp");
+                Files.write(temp.toPath(), header);
+                try {
+                    Files.move(temp.toPath(), journal.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(temp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journal, true)));
+            } catch (IOException ex) {
+                LOG.log(java.util.logging.Level.WARNING, "Autosave could not create " + journal, ex);
+            }
+        }
+        private void append(byte[] bytes) {
+            if (out == null) {
+                return; // Creating the journal failed; already reported
+            }
+            try {
+                out.write(bytes);
+                out.flush();
+            } catch (IOException ex) {
+                LOG.log(java.util.logging.Level.WARNING, "Autosave stopped: could not append to the journal", ex);
+                closeOutput();
+            }
+        }
+        private void closeOutput() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    LOG.log(java.util.logging.Level.WARNING, "Autosave could not close the journal", ex);
+                }
+                out = null;
+            }
+        }
+
+        // True if the journal holds changes that a replay would recover. Journals that
+        // are empty or were written against a different version of the plan file are
+        // deleted, since replaying them would produce nonsense.
+        public static boolean hasRecoverableChanges(File journal) {
+            if (!journal.isFile()) {
+                return false;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+                if (readBase(in, journal) == BASE_SNAPSHOT || in.read() != -1) {
+                    return true;
+                }
+            } catch (IOException ex) {
+                // Unreadable or stale; fall through and remove it
+            }
+            journal.delete();
+            return false;
+        }
+        // Rebuilds the plan the journal describes. A record cut short by a crash ends the
+        // replay; everything before it is kept.
+        public static PlanFile.Plan replay(File journal) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+                PlanFile.Plan plan;
+                switch (readBase(in, journal)) {
+                    case BASE_EMPTY -> plan = new PlanFile.Plan();
+                    case BASE_PLAN_FILE -> plan = PlanFile.read(planFileFor(journal), null);
+                    default -> plan = PlanFile.read(new java.io.ByteArrayInputStream(in.readNBytes(in.readInt())));
+                }
+                HashMap<Integer, Object> entities = new HashMap<>();
+                int id = 0;
+                for (Room room : plan.rooms) {
+                    entities.put(id++, room);
+                    for (Fixture fixture : room.getFixtures()) {
+                        entities.put(id++, fixture);
+                    }
+                    for (Furniture furniture : room.getFurniture()) {
+                        entities.put(id++, furniture);
+                    }
+                }
+                for (Door door : plan.doors) {
+                    entities.put(id++, door);
+                }
+                for (Window window : plan.windows) {
+                    entities.put(id++, window);
+                }
+                while (true) {
+                    int op = in.read();
+                    if (op == -1) {
+                        break;
+                    }
+                    byte[] payload;
+                    try {
+                        int length = in.readInt();
+                        if (length < 0) {
+                            throw new IOException("Corrupt autosave journal");
+                        }
+                        payload = in.readNBytes(length);
+                        if (payload.length < length) {
+                            break; // Torn last record
+                        }
+                    } catch (java.io.EOFException ex) {
+                        break;
+                    }
+                    apply(plan, entities, (byte) op, new DataInputStream(new java.io.ByteArrayInputStream(payload)));
+                }
+                return plan;
+            }
+        }
+        private static byte readBase(DataInputStream in, File journal) throws IOException {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an autosave journal");
+            }
+            short version = in.readShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported autosave journal version " + version);
+            }
+            byte baseKind = in.readByte();
+            if (baseKind == BASE_PLAN_FILE) {
+                File planFile = planFileFor(journal);
+                if (in.readLong() != planFile.length() || in.readLong() != planFile.lastModified()) {
+                    throw new IOException("The plan file has changed since the autosave");
+                }
+            } else if (baseKind != BASE_EMPTY && baseKind != BASE_SNAPSHOT) {
+                throw new IOException("Corrupt autosave journal");
+            }
+            return baseKind;
+        }
+        private static void apply(PlanFile.Plan plan, HashMap<Integer, Object> entities, byte op, DataInputStream in)
+                throws IOException {
+            int id = in.readInt();
+            switch (op) {
+                case ROOM_ADD -> {
+                    Room room = new Room(in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                            new Color(in.readInt(), true), in.readUTF());
+                    plan.rooms.add(room);
+                    entities.put(id, room);
+                }
+                case ROOM_MOVE -> {
+                    Room room = entity(entities, id, Room.class);
+                    int dx = in.readInt() - room.bounds.x;
+                    int dy = in.readInt() - room.bounds.y;
+                    room.bounds.translate(dx, dy);
+                    room.updateFixturePositions(dx, dy);
+                    room.updateFurniturePositions(dx, dy);
+                    List<Object> attached = Openings.attachedIn(room, plan.doors, plan.windows);
+                    plan.doors.removeAll(Openings.moveWithRoom(room, dx, dy, attached));
+                }
+                case ROOM_DELETE -> {
+                    Room room = entity(entities, id, Room.class);
+                    plan.rooms.remove(room);
+                    entities.remove(id);
+                    for (Object opening : Openings.attachedIn(room, plan.doors, plan.windows)) {
+                        (opening instanceof Door ? plan.doors : plan.windows).remove(opening);
+                    }
+                }
+                case ITEM_ADD -> {
+                    Room room = entity(entities, in.readInt(), Room.class);
+                    byte category = in.readByte();
+                    Point position = new Point(in.readInt(), in.readInt());
+                    int rotation = in.readByte() * 90;
+                    String type = in.readUTF();
+                    String imagePath = in.readUTF();
+                    if (category == PlanFile.ITEM_FIXTURE) {
+                        Fixture fixture = new Fixture(type, position, imagePath, room);
+                        fixture.setRotation(rotation);
+                        room.addFixture(fixture);
+                        entities.put(id, fixture);
+                    } else {
+                        Furniture furniture = new Furniture(type, position, imagePath, room);
+                        furniture.setRotation(rotation);
+                        room.addFurniture(furniture);
+                        entities.put(id, furniture);
+                    }
+                }
+                case ITEM_MOVE -> {
+                    Point position = new Point(in.readInt(), in.readInt());
+                    Object item = entity(entities, id, Object.class);
+                    if (item instanceof Fixture fixture) {
+                        fixture.setPosition(position);
+                    } else if (item instanceof Furniture furniture) {
+                        furniture.setPosition(position);
+                    }
+                }
+                case ITEM_ROTATE -> {
+                    int rotation = in.readByte() * 90;
+                    Object item = entity(entities, id, Object.class);
+                    if (item instanceof Fixture fixture) {
+                        fixture.setRotation(rotation);
+                    } else if (item instanceof Furniture furniture) {
+                        furniture.setRotation(rotation);
+                    }
+                }
+                case ITEM_DELETE -> {
+                    Object item = entities.remove(id);
+                    if (item instanceof Fixture fixture) {
+                        fixture.getParentRoom().removeFixture(fixture);
+                    } else if (item instanceof Furniture furniture) {
+                        furniture.getParentRoom().removeFurniture(furniture);
+                    }
+                }
+                case OPENING_ADD -> {
+                    if (in.readByte() == OPENING_DOOR) {
+                        Room room1 = entity(entities, in.readInt(), Room.class);
+                        int room2Id = in.readInt();
+                        Room room2 = room2Id < 0 ? null : entity(entities, room2Id, Room.class);
+                        Door door = new Door(new Point(in.readInt(), in.readInt()),
+                                new Point(in.readInt(), in.readInt()), room1, room2);
+                        plan.doors.add(door);
+                        entities.put(id, door);
+                    } else {
+                        Room room = entity(entities, in.readInt(), Room.class);
+                        Window window = new Window(new Point(in.readInt(), in.readInt()), room, in.readByte() != 0);
+                        plan.windows.add(window);
+                        entities.put(id, window);
+                    }
+                }
+                case OPENING_DELETE -> {
+                    Object opening = entities.remove(id);
+                    if (opening instanceof Door door) {
+                        plan.doors.remove(door);
+                    } else if (opening instanceof Window window) {
+                        plan.windows.remove(window);
+                    }
+                }
+                default -> {
+                    // Unknown record from a newer writer; its length let us skip it
+                }
+            }
+        }
+        private static <T> T entity(HashMap<Integer, Object> entities, int id, Class<T> type) throws IOException {
+            Object entity = entities.get(id);
+            if (!type.isInstance(entity)) {
+                throw new IOException("Corrupt autosave journal: no entity " + id);
+            }
+            return type.cast(entity);
+        }
+    }
+
+    // The per-event half of a drag: moving the dragged room or item and working out what
+    // part of the screen to repaint. It owns the rectangles that work is done in, so once
+    // a drag is under way an event allocates nothing. The canvas keeps one, and the drag
+    // benchmark drives another through exactly the same calls.
+    private static class DragRegion {
+        final Rectangle paint = new Rectangle(); // Model area the dragged entity covers now
+        private final Rectangle repaint = new Rectangle(); // Screen area to repaint
+        Rectangle dirty; // Model area last painted for the drag, or null between drags
+
+        // Moves the room so its corner snaps to the grid point nearest (x, y), kept on the
+        // plan, and returns what it covers: label, bounds and selection outline. Its doors
+        // and windows are not drawn until it is dropped.
+        Rectangle moveRoom(Room room, int x, int y, int planWidth, int planHeight, FontMetrics metrics) {
+            int newX = Math.round(x / (float) GRID_SIZE) * GRID_SIZE;
+            int newY = Math.round(y / (float) GRID_SIZE) * GRID_SIZE;
+            newX = Math.max(0, Math.min(newX, planWidth - room.bounds.width));
+            newY = Math.max(0, Math.min(newY, planHeight - room.bounds.height));
+            room.moveTo(newX, newY);
+            Rectangle bounds = room.getLabelBounds(metrics, paint);
+            bounds.add(room.bounds);
+            bounds.grow(PlanRenderer.SELECTION_MARGIN, PlanRenderer.SELECTION_MARGIN);
+            return bounds;
+        }
+        // What a dragged item covers: its bounds and selection outline
+        Rectangle item(Rectangle itemBounds) {
+            paint.setBounds(itemBounds);
+            paint.grow(PlanRenderer.SELECTION_MARGIN, PlanRenderer.SELECTION_MARGIN);
+            return paint;
+        }
+        // The screen area covering both where the entity was last painted and newBounds,
+        // which becomes where it was last painted
+        Rectangle repaintRegion(Rectangle newBounds, int panX, int panY, int cellPixels) {
+            repaint.setBounds(newBounds);
+            if (dirty != null) {
+                repaint.add(dirty);
+                dirty.setBounds(newBounds);
+            } else {
+                dirty = new Rectangle(newBounds);
+            }
+            return toScreen(repaint, repaint, panX, panY, cellPixels);
+        }
+        // Model to screen for a view panned to (panX, panY) with cellPixels per grid cell
+        static Rectangle toScreen(Rectangle model, Rectangle into, int panX, int panY, int cellPixels) {
+            int minX = panX + Math.floorDiv(model.x * cellPixels, GRID_SIZE);
+            int minY = panY + Math.floorDiv(model.y * cellPixels, GRID_SIZE);
+            int maxX = panX - Math.floorDiv(-(model.x + model.width) * cellPixels, GRID_SIZE);
+            int maxY = panY - Math.floorDiv(-(model.y + model.height) * cellPixels, GRID_SIZE);
+            // One pixel of slack for strokes that round outwards when scaled
+            into.setBounds(minX - 1, minY - 1, maxX - minX + 2, maxY - minY + 2);
+            return into;
+        }
+    }
+    private class DrawingCanvas extends JPanel {
+        // Zoom levels as the on-screen size of one grid cell, in pixels. Whole pixel
+        // sizes keep grid lines and grid-snapped rooms on exactly the same pixels.
+        private static final int[] ZOOM_CELL_PIXELS = { 2, 3, 4, 5, 6, 8, 10, 12, 15, 20, 25, 30, 40, 50, 60, 80 };
+        private final PlanRenderer renderer = new PlanRenderer();
+        private final DragRegion drag = new DragRegion();
+        private Point bandStart; // Model point where a rubber band began, or null
+        private int cellPixels = GRID_SIZE; // 1:1
+        private int panX, panY; // Screen position of the model origin
+        private Point panStart; // Screen point where a pan drag began, or null
+        private int panStartX, panStartY;
+        public DrawingCanvas() {
+            setBackground(CANVAS_BACKGROUND);
+            setPreferredSize(new Dimension(800, 600));
+            setTransferHandler(new TransferHandler() {
+                @Override
+                public boolean canImport(TransferSupport support) {
+                    return support.isDataFlavorSupported(DataFlavor.stringFlavor);
+                }
+
+                @Override
+                public boolean importData(TransferSupport support) {
+                    try {
+                        String data = (String) support.getTransferable()
+                            .getTransferData(DataFlavor.stringFlavor);
+                        
+                        if (data.startsWith("FURNITURE:")) {
+                            // Handle furniture drop
+                            String[] parts = data.substring(10).split(",", 2);
+                            Point dropPoint = toModel(support.getDropLocation().getDropPoint());
+                            
+                            // Snap to grid
+                            int x = Math.round(dropPoint.x / (float) GRID_SIZE) * GRID_SIZE;
+                            int y = Math.round(dropPoint.y / (float) GRID_SIZE) * GRID_SIZE;
+                            
+                            // Find target room
+                            Room targetRoom = index.rooms.findAt(x, y);
+
+                            if (targetRoom != null) {
+                                Furniture newFurniture = new Furniture(parts[0], new Point(x, y), 
+                                    parts[1], targetRoom);
+                                
+                                if (!targetRoom.bounds.contains(newFurniture.getBounds())) {
+                                    JOptionPane.showMessageDialog(null,
+                                        "Cannot place furniture here - it must fit inside the room!",
+                                        "Placement Error",
+                                        JOptionPane.ERROR_MESSAGE);
+                                } else if (PlanValidator.findItemOverlap(targetRoom, newFurniture.getBounds(), null) == null) {
+                                    addItemToPlan(newFurniture);
+                                    recordEdit(new AddItemCommand(newFurniture));
+                                    repaint();
+                                    return true;
+                                } else {
+                                    JOptionPane.showMessageDialog(null,
+                                        "Cannot place furniture here - overlap detected!",
+                                        "Overlap Error",
+                                        JOptionPane.ERROR_MESSAGE);
+                                }
+                            }
+                        } else if (data.startsWith("FIXTURE:")) {
+                    // Names never contain a comma; a library's image path may
+                    String[] parts = data.substring(8).split(",", 2);
+                    Point dropPoint = toModel(support.getDropLocation().getDropPoint());
+                    int x = Math.round(dropPoint.x / (float) GRID_SIZE) * GRID_SIZE;
+                    int y = Math.round(dropPoint.y / (float) GRID_SIZE) * GRID_SIZE;
+                    Room targetRoom = index.rooms.findAt(x, y);
+                    if (targetRoom != null) {
+                        Fixture newFixture = new Fixture(parts[0], new Point(x, y), parts[1], targetRoom);
+                        
+                        if (!targetRoom.bounds.contains(newFixture.getBounds())) {
+                            JOptionPane.showMessageDialog(null,
+                                "Cannot place fixture here - it must fit inside the room!",
+                                "Placement Error",
+                                JOptionPane.ERROR_MESSAGE);
+                        } else if (PlanValidator.findItemOverlap(targetRoom, newFixture.getBounds(), null) == null) {
+                            addItemToPlan(newFixture);
+                            recordEdit(new AddItemCommand(newFixture));
+                            repaint();
+                            return true;
+                        } else {
+                            JOptionPane.showMessageDialog(null,
+                                "Cannot place fixture here - overlap detected!",
+                                "Overlap Error",
+                                JOptionPane.ERROR_MESSAGE);
+                        }
+                    }
+                        }}
+                    catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    return false;
+                }
+            });
+            MouseAdapter mouseAdapter = new MouseAdapter() {
+                @Override
+                public void mousePressed(MouseEvent e) {
+                    handleMousePressed(e);
+                }
+                @Override
+                public void mouseReleased(MouseEvent e) {
+                    handleMouseReleased();
+                }
+                @Override
+                public void mouseDragged(MouseEvent e) {
+                    handleMouseDragged(e);
+                }
+                @Override
+                public void mouseClicked(MouseEvent e) {
+                    if (draggedRoom == null && !addingDoor && !addingWindow && !e.isShiftDown()) {
+                        // A click without a drag on a member of the selection picks just that room
+                        clearSelection();
+                        Point point = toModel(e.getPoint());
+                        handleRoomSelection(point.x, point.y);
+                    }
+                }
+                @Override
+                public void mouseWheelMoved(MouseWheelEvent e) {
+                    zoomBy(e.getWheelRotation() < 0 ? 1 : -1, e.getPoint());
+                }
+            };
+            addMouseListener(mouseAdapter);
+            addMouseMotionListener(mouseAdapter);
+            addMouseWheelListener(mouseAdapter);
+        }
+        // View transform between screen pixels and model coordinates
+        private Point toModel(Point screen) {
+            return new Point(modelX(screen.x), modelY(screen.y));
+        }
+        private int modelX(int screenX) {
+            return Math.floorDiv((screenX - panX) * GRID_SIZE, cellPixels);
+        }
+        private int modelY(int screenY) {
+            return Math.floorDiv((screenY - panY) * GRID_SIZE, cellPixels);
+        }
+        private Rectangle toScreen(Rectangle model) {
+            return toScreen(model, new Rectangle());
+        }
+        private Rectangle toScreen(Rectangle model, Rectangle into) {
+            return DragRegion.toScreen(model, into, panX, panY, cellPixels);
+        }
+        // The area rooms may occupy, whatever the zoom and pan
+        public int getPlanWidth() {
+            return planWidth;
+        }
+        public int getPlanHeight() {
+            return planHeight;
+        }
+        // Steps the zoom level, keeping the model point under the cursor in place
+        private void zoomBy(int steps, Point anchor) {
+            int level = java.util.Arrays.binarySearch(ZOOM_CELL_PIXELS, cellPixels);
+            int newLevel = Math.max(0, Math.min(ZOOM_CELL_PIXELS.length - 1, level + steps));
+            if (newLevel == level || isDragging()) {
+                return;
+            }
+            Point model = toModel(anchor);
+            cellPixels = ZOOM_CELL_PIXELS[newLevel];
+            panX = anchor.x - model.x * cellPixels / GRID_SIZE;
+            panY = anchor.y - model.y * cellPixels / GRID_SIZE;
+            repaint();
+        }
+        private void handleMousePressed(MouseEvent e) {
+            if (!SwingUtilities.isLeftMouseButton(e)) {
+                // Middle or right drag pans from anywhere
+                startPan(e.getPoint());
+                return;
+            }
+            Point clickPoint = toModel(e.getPoint());
+            if (addingDoor || addingWindow) {
+                placeOpening(clickPoint);
+                return;
+            }
+            Object hit = entityAt(clickPoint.x, clickPoint.y);
+            if (e.isShiftDown()) {
+                if (hit != null) {
+                    toggleSelected(hit);
+                    repaint();
+                } else {
+                    // Shift-dragging empty floor draws a rubber band instead of panning
+                    bandStart = clickPoint;
+                    renderer.band = new Rectangle(clickPoint);
+                    drag.dirty = paintBounds(renderer.band);
+                }
+                return;
+            }
+            if (hit != null && selection.contains(hit)) {
+                startGroupDrag(clickPoint);
+                return;
+            }
+            clearSelection();
+        selectedFurniture = null;
+        draggedFurniture = null;
+        Furniture furniture = index.furniture.findAt(clickPoint.x, clickPoint.y);
+        if (furniture != null) {
+            draggedFurniture = furniture;
+            selectedFurniture = furniture;
+            draggedFurnitureStart = new Point(
+                clickPoint.x - furniture.getBounds().x,
+                clickPoint.y - furniture.getBounds().y
+            );
+            originalFurniturePosition = new Point(
+                furniture.getBounds().x,
+                furniture.getBounds().y
+            );
+            drag.dirty = paintBounds(furniture.getBounds());
+            repaint();
+            return;  // Exit the method after finding furniture
+        }
+        selectedFixture = null;
+        draggedFixture = null;
+        Fixture fixture = index.fixtures.findAt(clickPoint.x, clickPoint.y);
+        if (fixture != null) {
+            draggedFixture = fixture;
+            selectedFixture = fixture;
+            draggedFixtureStart = new Point(
+                clickPoint.x - fixture.getBounds().x,
+                clickPoint.y - fixture.getBounds().y
+            );
+            originalFixturePosition = new Point(
+                fixture.getBounds().x,
+                fixture.getBounds().y
+            );
+            drag.dirty = paintBounds(fixture.getBounds());
+            repaint();
+            return;  // Exit the method after finding a fixture
+        }
+        Room room = index.rooms.findAt(clickPoint.x, clickPoint.y);
+        if (room != null) {
+            draggedRoom = room;
+            dragStart = new Point(clickPoint.x - room.bounds.x, clickPoint.y - room.bounds.y);
+            originalBounds = new Rectangle(room.bounds);
+            drag.dirty = paintBounds(room);
+        } else {
+            // Dragging empty floor pans the view
+            startPan(e.getPoint());
+        }
+        }
+        // Door and window mode: a click on an opening removes it, anywhere else within
+        // WALL_SNAP_DISTANCE of a wall adds one centred on the nearest grid point of it
+        private void placeOpening(Point point) {
+            Object existing = index.openings.findAt(point.x, point.y);
+            if (existing != null) {
+                removeOpeningFromPlan(existing);
+                recordEdit(new DeleteOpeningCommand(existing));
+                repaint();
+                return;
+            }
+            PlanIndex.WallHit wall = index.findNearestWall(point.x, point.y, WALL_SNAP_DISTANCE);
+            if (wall == null) {
+                return;
+            }
+            String kind = addingDoor ? "door" : "window";
+            if (addingWindow && wall.neighbour != null) {
+                JOptionPane.showMessageDialog(this,
+                        "Windows can only go on outside walls!",
+                        "Placement Error",
+                        JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            if (wall.to - wall.from < DOOR_WIDTH) {
+                JOptionPane.showMessageDialog(this,
+                        "This wall is too short for a " + kind + "!",
+                        "Placement Error",
+                        JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            int centre = Math.round(wall.along / (float) GRID_SIZE) * GRID_SIZE;
+            centre = Math.max(wall.from + DOOR_WIDTH / 2, Math.min(centre, wall.to - DOOR_WIDTH / 2));
+            Object opening = addingDoor
+                    ? new Door(wall.pointAt(centre - DOOR_WIDTH / 2), wall.pointAt(centre + DOOR_WIDTH / 2),
+                            wall.room, wall.neighbour)
+                    : new Window(wall.pointAt(centre), wall.room, wall.horizontal);
+            if (index.openings.findConflict(opening) != null) {
+                JOptionPane.showMessageDialog(this,
+                        "Cannot place " + kind + " here - it is too close to another door or window!",
+                        "Overlap Error",
+                        JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            addOpeningToPlan(opening);
+            recordEdit(new AddOpeningCommand(opening));
+            repaint(toScreen(Openings.paintBounds(opening)));
+        }
+        // What a press at the point picks up, in the order the canvas paints it from the top
+        private Object entityAt(int x, int y) {
+            Object hit = index.furniture.findAt(x, y);
+            if (hit == null) {
+                hit = index.fixtures.findAt(x, y);
+            }
+            if (hit == null) {
+                hit = index.rooms.findAt(x, y);
+            }
+            return hit;
+        }
+        private void startGroupDrag(Point point) {
+            groupDragStart = point;
+            groupDx = 0;
+            groupDy = 0;
+            groupRooms = selectedRooms();
+            groupItems = looseSelectedItems();
+            renderer.groupDragged = true;
+            drag.dirty = groupPaintBounds(new Rectangle());
+            for (Room room : groupRooms) {
+                // Hidden openings have to be erased too
+                for (Object opening : index.openings.attachedTo(room)) {
+                    drag.dirty.add(Openings.paintBounds(opening));
+                }
+            }
+        }
+        // Area the selection covers on screen, with its outlines and room labels
+        private Rectangle groupPaintBounds(Rectangle into) {
+            FontMetrics fm = getFontMetrics(getFont());
+            Rectangle label = new Rectangle();
+            boolean first = true;
+            for (Object member : selection) {
+                Rectangle bounds = member instanceof Room room ? room.bounds : itemBounds(member);
+                if (first) {
+                    into.setBounds(bounds);
+                    first = false;
+                } else {
+                    into.add(bounds);
+                }
+                if (member instanceof Room room) {
+                    into.add(room.getLabelBounds(fm, label));
+                }
+            }
+            into.grow(PlanRenderer.SELECTION_MARGIN, PlanRenderer.SELECTION_MARGIN);
+            return into;
+        }
+        // Moves the selection live to follow the pointer; it is checked and filed on release
+        private void dragGroup(int pointX, int pointY) {
+            int dx = Math.round((pointX - groupDragStart.x) / (float) GRID_SIZE) * GRID_SIZE;
+            int dy = Math.round((pointY - groupDragStart.y) / (float) GRID_SIZE) * GRID_SIZE;
+            moveGroupLive(dx - groupDx, dy - groupDy);
+            repaintDragRegion(groupPaintBounds(drag.paint));
+        }
+        private void moveGroupLive(int dx, int dy) {
+            for (Room room : groupRooms) {
+                room.moveTo(room.bounds.x + dx, room.bounds.y + dy);
+            }
+            for (Object item : groupItems) {
+                if (item instanceof Fixture fixture) {
+                    fixture.updatePosition(dx, dy);
+                } else {
+                    ((Furniture) item).updatePosition(dx, dy);
+                }
+            }
+            groupDx += dx;
+            groupDy += dy;
+        }
+        private void dropGroup() {
+            if (groupDx != 0 || groupDy != 0) {
+                String problem = findGroupMoveProblem(groupRooms, groupItems);
+                if (problem != null) {
+                    moveGroupLive(-groupDx, -groupDy);
+                    JOptionPane.showMessageDialog(this, problem, "Placement Error", JOptionPane.ERROR_MESSAGE);
+                } else {
+                    commitGroupMove(groupRooms, groupItems, groupDx, groupDy);
+                }
+            }
+            renderer.groupDragged = false;
+            Rectangle dirty = groupPaintBounds(new Rectangle());
+            for (Room room : groupRooms) {
+                for (Object opening : index.openings.attachedTo(room)) {
+                    dirty.add(Openings.paintBounds(opening));
+                }
+            }
+            repaintDragRegion(dirty);
+            drag.dirty = null;
+            groupDragStart = null;
+            groupRooms = null;
+            groupItems = null;
+        }
+        private void dragBand(int pointX, int pointY) {
+            Rectangle band = renderer.band;
+            band.setBounds(Math.min(bandStart.x, pointX), Math.min(bandStart.y, pointY),
+                    Math.abs(pointX - bandStart.x), Math.abs(pointY - bandStart.y));
+            repaintDragRegion(paintBounds(band, drag.paint));
+        }
+        // Adds what lies wholly inside the band: rooms, and items whose room is not inside it
+        private void dropBand() {
+            Rectangle band = renderer.band;
+            if (band.width > 0 && band.height > 0) {
+                extendSingleSelection();
+                for (Room room : index.rooms.findAll(band)) {
+                    if (band.contains(room.bounds)) {
+                        selection.add(room);
+                    }
+                }
+                for (Fixture fixture : index.fixtures.findAll(band)) {
+                    if (band.contains(fixture.getBounds()) && !band.contains(fixture.getParentRoom().bounds)) {
+                        selection.add(fixture);
+                    }
+                }
+                for (Furniture furniture : index.furniture.findAll(band)) {
+                    if (band.contains(furniture.getBounds()) && !band.contains(furniture.getParentRoom().bounds)) {
+                        selection.add(furniture);
+                    }
+                }
+                updatePropertiesPanel(null);
+            }
+            renderer.band = null;
+            bandStart = null;
+            repaintDragRegion(paintBounds(band, drag.paint));
+            drag.dirty = null;
+            if (!selection.isEmpty()) {
+                repaint(toScreen(groupPaintBounds(new Rectangle())));
+            }
+        }
+        private void startPan(Point screen) {
+            panStart = screen;
+            panStartX = panX;
+            panStartY = panY;
+            setCursor(Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR));
+        }
+        private void handleMouseDragged(MouseEvent e) {
+            if (panStart != null) {
+                panX = panStartX + e.getX() - panStart.x;
+                panY = panStartY + e.getY() - panStart.y;
+                repaint();
+                return;
+            }
+            // Runs for every mouse event of a drag, so nothing here allocates
+            int pointX = modelX(e.getX());
+            int pointY = modelY(e.getY());
+            if (groupDragStart != null) {
+                dragGroup(pointX, pointY);
+            } else if (bandStart != null) {
+                dragBand(pointX, pointY);
+            } else if (draggedRoom != null) {
+                repaintDragRegion(drag.moveRoom(draggedRoom, pointX - dragStart.x, pointY - dragStart.y,
+                        getPlanWidth(), getPlanHeight(), getFontMetrics(getFont())));
+            } else if (draggedFurniture != null) {
+                int newX = pointX - draggedFurnitureStart.x;
+                int newY = pointY - draggedFurnitureStart.y;
+                // Snap to grid
+                newX = Math.round(newX / (float) GRID_SIZE) * GRID_SIZE;
+                newY = Math.round(newY / (float) GRID_SIZE) * GRID_SIZE;
+                // Ensure furniture stays within its parent room
+                Room parentRoom = draggedFurniture.getParentRoom();
+                if (parentRoom != null) {
+                    Rectangle roomBounds = parentRoom.bounds;
+                    newX = Math.max(roomBounds.x, Math.min(newX, 
+                        roomBounds.x + roomBounds.width - draggedFurniture.getBounds().width));
+                    newY = Math.max(roomBounds.y, Math.min(newY, 
+                        roomBounds.y + roomBounds.height - draggedFurniture.getBounds().height));
+                }
+    
+                draggedFurniture.updatePosition(newX - draggedFurniture.getBounds().x,
+                        newY - draggedFurniture.getBounds().y);
+                repaintDragRegion(drag.item(draggedFurniture.getBounds()));
+            } else if (draggedFixture != null) {
+                // Existing fixture dragging logic
+                int newX = pointX - draggedFixtureStart.x;
+                int newY = pointY - draggedFixtureStart.y;
+    
+                newX = Math.round(newX / (float) GRID_SIZE) * GRID_SIZE;
+                newY = Math.round(newY / (float) GRID_SIZE) * GRID_SIZE;
+    
+                draggedFixture.updatePosition(newX - draggedFixture.getBounds().x,
+                        newY - draggedFixture.getBounds().y);
+                repaintDragRegion(drag.item(draggedFixture.getBounds()));
+            } }
+        private void handleMouseReleased() {
+            if (panStart != null) {
+                panStart = null;
+                setCursor(Cursor.getDefaultCursor());
+                return;
+            }
+            if (groupDragStart != null) {
+                dropGroup();
+                return;
+            }
+            if (bandStart != null) {
+                dropBand();
+                return;
+            }
+            if (draggedFixture != null) {
+                Room parentRoom = draggedFixture.getParentRoom();
+                if (!parentRoom.bounds.contains(draggedFixture.getBounds())) {
+                    draggedFixture.setPosition(originalFixturePosition);
+                } else {
+                    // Checked against furniture as well as the other fixtures
+                    if (PlanValidator.findItemOverlap(parentRoom, draggedFixture.getBounds(), draggedFixture) != null) {
+                        draggedFixture.setPosition(originalFixturePosition);
+                        JOptionPane.showMessageDialog(this,
+                            "Cannot place fixture here - overlap detected!",
+                            "Overlap Error",
+                            JOptionPane.ERROR_MESSAGE);
+                    }
+                }
+                index.indexItem(draggedFixture);
+                if (!draggedFixture.getBounds().getLocation().equals(originalFixturePosition)) {
+                    journal.itemMoved(draggedFixture);
+                    planChanged(draggedFixture.getBounds().union(new Rectangle(originalFixturePosition,
+                            draggedFixture.getBounds().getSize())));
+                    recordEdit(new MoveItemCommand(draggedFixture,
+                            draggedFixture.getBounds().x - originalFixturePosition.x,
+                            draggedFixture.getBounds().y - originalFixturePosition.y));
+                }
+                repaintDragRegion(paintBounds(draggedFixture.getBounds()));
+                drag.dirty = null;
+                draggedFixture = null;
+                draggedFixtureStart = null;
+                originalFixturePosition = null;
+            }
+            if (draggedFurniture != null) {
+                Room parentRoom = draggedFurniture.getParentRoom();
+                if (!parentRoom.bounds.contains(draggedFurniture.getBounds())) {
+                    draggedFurniture.setPosition(originalFurniturePosition);
+                } else if (PlanValidator.findItemOverlap(parentRoom, draggedFurniture.getBounds(), draggedFurniture) != null) {
+                    // Checked against fixtures as well as the other furniture
+                    draggedFurniture.setPosition(originalFurniturePosition);
+                    JOptionPane.showMessageDialog(this,
+                        "Cannot place furniture here - overlap detected!",
+                        "Overlap Error",
+                        JOptionPane.ERROR_MESSAGE);
+                }
+                index.indexItem(draggedFurniture);
+                if (!draggedFurniture.getBounds().getLocation().equals(originalFurniturePosition)) {
+                    journal.itemMoved(draggedFurniture);
+                    planChanged(draggedFurniture.getBounds().union(new Rectangle(originalFurniturePosition,
+                            draggedFurniture.getBounds().getSize())));
+                    recordEdit(new MoveItemCommand(draggedFurniture,
+                            draggedFurniture.getBounds().x - originalFurniturePosition.x,
+                            draggedFurniture.getBounds().y - originalFurniturePosition.y));
+                }
+                drag.dirty = null;
+                draggedFurniture = null;
+                draggedFurnitureStart = null;
+                originalFurniturePosition = null;
+            }
+            if (draggedRoom != null) {
+                boolean hasOverlap = false;
+                Room overlappingRoom = null;
+                if (!isWithinCanvas(draggedRoom.bounds)) {
+                    draggedRoom.moveTo(originalBounds.x, originalBounds.y); // Brings its contents back too
+                    JOptionPane.showMessageDialog(this,
+                            "Cannot place room outside the canvas boundaries!",
+                            "Boundary Error",
+                            JOptionPane.ERROR_MESSAGE);
+                } else {
+                    // The dragged room is still indexed at its original position, so skip it
+                    overlappingRoom = index.roomOverlaps.findAnyOverlap(draggedRoom.bounds, draggedRoom);
+                    hasOverlap = overlappingRoom != null;
+                    if (hasOverlap) {
+                        String message = String.format("Cannot place %s here - it overlaps with %s!",
+                                draggedRoom.type.replace("Add ", ""),
+                                overlappingRoom.type.replace("Add ", ""));
+                        JOptionPane.showMessageDialog(this,
+                                message,
+                                "Overlap Error",
+                                JOptionPane.ERROR_MESSAGE);
+
+                        draggedRoom.moveTo(originalBounds.x, originalBounds.y); // Brings its contents back too
+                    }
+                }
+                index.indexRoom(draggedRoom);
+                if (!draggedRoom.bounds.equals(originalBounds)) {
+                    // The drag moved the room live; the whole gesture becomes one undo step
+                    int dx = draggedRoom.bounds.x - originalBounds.x;
+                    int dy = draggedRoom.bounds.y - originalBounds.y;
+                    journal.roomMoved(draggedRoom);
+                    recordEdit(new MoveRoomCommand(draggedRoom, dx, dy, moveOpeningsWith(draggedRoom, dx, dy)));
+                    planChanged(originalBounds.union(draggedRoom.bounds));
+                }
+                Rectangle dirty = paintBounds(draggedRoom);
+                if (selectedRoom != null && selectedRoom != draggedRoom) {
+                    // Erase the selection outline of the previously selected room
+                    dirty.add(paintBounds(selectedRoom));
+                }
+                selectedRoom = draggedRoom;
+                updatePropertiesPanel(selectedRoom);
+                draggedRoom = null;
+                dragStart = null;
+                originalBounds = null;
+                repaintDragRegion(dirty);
+                drag.dirty = null;
+            }
+        }
+        // Area a room covers on screen: its bounds, an overflowing label, the selection
+        // outline and the doors and windows on its walls
+        private Rectangle paintBounds(Room room) {
+            Rectangle bounds = room.bounds.union(room.getLabelBounds(getFontMetrics(getFont())));
+            bounds.grow(PlanRenderer.SELECTION_MARGIN, PlanRenderer.SELECTION_MARGIN);
+            for (Object opening : index.openings.attachedTo(room)) {
+                bounds.add(Openings.paintBounds(opening));
+            }
+            return bounds;
+        }
+        private Rectangle paintBounds(Rectangle itemBounds) {
+            return paintBounds(itemBounds, new Rectangle());
+        }
+        private Rectangle paintBounds(Rectangle itemBounds, Rectangle into) {
+            into.setBounds(itemBounds);
+            into.grow(PlanRenderer.SELECTION_MARGIN, PlanRenderer.SELECTION_MARGIN);
+            return into;
+        }
+        // Repaints only the union of where the dragged entity was last painted and where it is now
+        private void repaintDragRegion(Rectangle newBounds) {
+            Rectangle screen = drag.repaintRegion(newBounds, panX, panY, cellPixels);
+            repaint(screen.x, screen.y, screen.width, screen.height);
+        }
+        private void handleRoomSelection(int x, int y) {
+            selectedRoom = index.rooms.findAt(x, y);
+            updatePropertiesPanel(selectedRoom);
+            repaint();
+        }
+        @Override
+        protected void paintComponent(Graphics g) {
+            // The renderer's grid layer fills every pixel, background included,
+            // so JPanel's own background fill is skipped
+            renderer.background = getBackground();
+            renderer.selectedRoom = selectedRoom;
+            renderer.draggedRoom = draggedRoom;
+            renderer.selectedFixture = selectedFixture;
+            renderer.selectedFurniture = selectedFurniture;
+            renderer.selection = selection;
+            renderer.doors = doors;
+            renderer.windows = windows;
+            renderer.egress = egress;
+            // Whatever is being dragged is only filed again when it is dropped
+            renderer.scene = isDragging() ? null : index.scene;
+            renderer.scale = cellPixels / (double) GRID_SIZE;
+            renderer.originX = panX;
+            renderer.originY = panY;
+            renderer.paint(g, rooms, getWidth(), getHeight());
+            if (firstPaintNanos == 0) {
+                firstPaintNanos = System.nanoTime();
+                SwingUtilities.invokeLater(FloorPlanner.this::finishStartup);
+            }
+        }
+    }
+    // Paints the plan one layer at a time so every room, fixture and furniture
+    // item is drawn exactly once per frame. Has no Swing dependencies, so it can
+    // also render into an offscreen BufferedImage.
+    private static class PlanRenderer {
+        private static final BasicStroke SELECTION_STROKE = new BasicStroke(2);
+        private static final BasicStroke BAND_STROKE = new BasicStroke(1, BasicStroke.CAP_BUTT,
+                BasicStroke.JOIN_MITER, 10, new float[] { 4, 4 }, 0);
+        // How far selection outlines and thick strokes reach outside an entity's bounds
+        static final int SELECTION_MARGIN = 4;
+        // Grid tiles span this many cells per side and are blitted instead of drawing lines
+        private static final int GRID_TILE_CELLS = 16;
+        // Grid lines closer than this many pixels are thinned out to every fifth line
+        private static final int MIN_GRID_PIXELS = 6;
+        // Below this scale fixtures and furniture are flat rectangles and labels are skipped
+        static final double DETAIL_SCALE = 0.5;
+        private static final Color FIXTURE_FILL = new Color(96, 96, 96);
+        private static final Color FURNITURE_FILL = new Color(139, 90, 43);
+        // Egress shading runs from green at an exit to red at EGRESS_RED_STEPS cells (30 m) and beyond
+        private static final int EGRESS_RED_STEPS = 60;
+        private static final Color[] EGRESS_COLORS = new Color[EGRESS_RED_STEPS + 1];
+        private static final Color EGRESS_UNREACHABLE = new Color(128, 0, 128, 150);
+        static {
+            for (int i = 0; i <= EGRESS_RED_STEPS; i++) {
+                int rgb = Color.HSBtoRGB((1f - i / (float) EGRESS_RED_STEPS) / 3f, 0.9f, 0.95f);
+                EGRESS_COLORS[i] = new Color((rgb & 0xFFFFFF) | 0x8C000000, true);
+            }
+        }
+        Color background = CANVAS_BACKGROUND;
+        boolean cacheGrid = true;
+        boolean levelOfDetail = true;
+        // View transform: a model point p is painted at origin + p * scale
+        double scale = 1;
+        int originX, originY;
+        Room selectedRoom;
+        Room draggedRoom;
+        Fixture selectedFixture;
+        Furniture selectedFurniture;
+        Set<Object> selection = Set.of();
+        boolean groupDragged; // The selection is being dragged and its openings are hidden
+        Rectangle band; // Rubber band being dragged out, or null
+        List<Door> doors = List.of();
+        List<Window> windows = List.of();
+        EgressMap egress; // Heatmap overlay, or null
+        SceneStore scene; // Zoomed out, items are filled from this when set
+        private Rectangle clip;
+        private BufferedImage gridTile;
+        private int gridTileCellSize;
+        private Color gridTileBackground;
+
+        // Paints a width x height surface; the grid is drawn in surface pixels and
+        // everything else in model coordinates through the view transform
+        public void paint(Graphics g, List<Room> rooms, int width, int height) {
+            Graphics2D g2d = (Graphics2D) g;
+            Stroke defaultStroke = g2d.getStroke();
+            java.awt.geom.AffineTransform surface = g2d.getTransform();
+            clip = g2d.getClipBounds();
+            drawGrid(g2d, width, height);
+            g2d.translate(originX, originY);
+            g2d.scale(scale, scale);
+            clip = g2d.getClipBounds(); // Now in model coordinates
+            boolean detailed = !levelOfDetail || scale >= DETAIL_SCALE;
+            drawRoomFills(g2d, rooms);
+            drawEgress(g2d);
+            drawRoomOutlines(g2d, rooms, defaultStroke, detailed);
+            drawOpenings(g2d, defaultStroke, detailed);
+            drawFixtures(g2d, rooms, detailed);
+            drawFurniture(g2d, rooms, detailed);
+            drawSelection(g2d, defaultStroke);
+            g2d.setStroke(defaultStroke);
+            g2d.setTransform(surface);
+            clip = null;
+        }
+        // A null clip means the whole surface is being painted
+        private boolean isVisible(Rectangle bounds, int margin) {
+            return clip == null
+                    || (bounds.x - margin < clip.x + clip.width
+                        && bounds.y - margin < clip.y + clip.height
+                        && bounds.x + bounds.width + margin > clip.x
+                        && bounds.y + bounds.height + margin > clip.y);
+        }
+        // Grid spacing in surface pixels. Zoom levels keep GRID_SIZE * scale whole, so
+        // lines stay on the same pixels as the grid-snapped rooms.
+        private int gridPixels() {
+            int pixels = Math.max(1, (int) Math.round(GRID_SIZE * scale));
+            while (pixels < MIN_GRID_PIXELS) {
+                pixels *= 5;
+            }
+            return pixels;
+        }
+        private void drawGrid(Graphics2D g, int width, int height) {
+            int minX = 0, minY = 0, maxX = width, maxY = height;
+            if (clip != null) {
+                minX = Math.max(0, clip.x);
+                minY = Math.max(0, clip.y);
+                maxX = Math.min(width, clip.x + clip.width + 1);
+                maxY = Math.min(height, clip.y + clip.height + 1);
+            }
+            int cell = gridPixels();
+            if (!cacheGrid) {
+                g.setColor(background);
+                g.fillRect(minX, minY, maxX - minX, maxY - minY);
+                g.setColor(GRID_COLOR);
+                for (int x = alignDown(minX, originX, cell); x < maxX; x += cell) {
+                    g.drawLine(x, minY, x, maxY);
+                }
+                for (int y = alignDown(minY, originY, cell); y < maxY; y += cell) {
+                    g.drawLine(minX, y, maxX, y);
+                }
+                return;
+            }
+            BufferedImage tile = gridTile(g, cell);
+            int tileSize = tile.getWidth();
+            for (int y = alignDown(minY, originY, tileSize); y < maxY; y += tileSize) {
+                for (int x = alignDown(minX, originX, tileSize); x < maxX; x += tileSize) {
+                    g.drawImage(tile, x, y, null);
+                }
+            }
+        }
+        // The largest position at or before value that lies a whole number of steps from origin
+        private static int alignDown(int value, int origin, int step) {
+            return value - Math.floorMod(value - origin, step);
+        }
+        // Tiles repeat seamlessly, so the cache only depends on the cell size and
+        // background, never on the size of the surface being painted
+        private BufferedImage gridTile(Graphics2D g, int cellSize) {
+            if (gridTile == null || gridTileCellSize != cellSize || !background.equals(gridTileBackground)) {
+                int tileSize = cellSize * GRID_TILE_CELLS;
+                gridTile = g.getDeviceConfiguration().createCompatibleImage(tileSize, tileSize, Transparency.OPAQUE);
+                Graphics2D tileGraphics = gridTile.createGraphics();
+                tileGraphics.setColor(background);
+                tileGraphics.fillRect(0, 0, tileSize, tileSize);
+                tileGraphics.setColor(GRID_COLOR);
+                for (int i = 0; i < tileSize; i += cellSize) {
+                    tileGraphics.drawLine(i, 0, i, tileSize);
+                    tileGraphics.drawLine(0, i, tileSize, i);
+                }
+                tileGraphics.dispose();
+                gridTileCellSize = cellSize;
+                gridTileBackground = background;
+            }
+            return gridTile;
+        }
+        private void drawRoomFills(Graphics2D g, List<Room> rooms) {
+            for (Room room : rooms) {
+                if (room != draggedRoom && isVisible(room.bounds, 0)) {
+                    room.drawFill(g, false);
+                }
+            }
+            // The dragged room is painted last so it floats above the others
+            if (draggedRoom != null) {
+                draggedRoom.drawFill(g, true);
+            }
+        }
+        private void drawRoomOutlines(Graphics2D g, List<Room> rooms, Stroke defaultStroke, boolean labels) {
+            FontMetrics fm = g.getFontMetrics();
+            for (Room room : rooms) {
+                boolean visible = isVisible(room.bounds, SELECTION_MARGIN);
+                boolean labelVisible = labels && (visible || clip == null || clip.intersects(room.getLabelBounds(fm)));
+                if (visible) {
+                    g.setStroke(defaultStroke);
+                    room.drawBorder(g, room == selectedRoom || room == draggedRoom);
+                }
+                if (labelVisible) {
+                    room.drawLabel(g);
+                }
+            }
+            g.setStroke(defaultStroke);
+        }
+        private void drawEgress(Graphics2D g) {
+            if (egress == null) {
+                return;
+            }
+            int minCol = 0, minRow = 0, maxCol = egress.cols - 1, maxRow = egress.rows - 1;
+            if (clip != null) {
+                minCol = Math.max(minCol, Math.floorDiv(clip.x - egress.originX, GRID_SIZE));
+                minRow = Math.max(minRow, Math.floorDiv(clip.y - egress.originY, GRID_SIZE));
+                maxCol = Math.min(maxCol, Math.floorDiv(clip.x + clip.width - egress.originX, GRID_SIZE));
+                maxRow = Math.min(maxRow, Math.floorDiv(clip.y + clip.height - egress.originY, GRID_SIZE));
+            }
+            for (int row = minRow; row <= maxRow; row++) {
+                for (int col = minCol; col <= maxCol; col++) {
+                    int steps = egress.cellDistance(col, row);
+                    if (steps >= 0) {
+                        g.setColor(steps == EgressMap.UNREACHABLE ? EGRESS_UNREACHABLE
+                                : EGRESS_COLORS[Math.min(steps, EGRESS_RED_STEPS)]);
+                        g.fillRect(egress.originX + col * GRID_SIZE, egress.originY + row * GRID_SIZE,
+                                GRID_SIZE, GRID_SIZE);
+                    }
+                }
+            }
+        }
+        // Openings on the dragged room's walls are hidden until it is dropped and they follow it
+        private void drawOpenings(Graphics2D g, Stroke defaultStroke, boolean detailed) {
+            for (Door door : doors) {
+                if (!door.isAttachedTo(draggedRoom) && isVisible(door.getBounds(), DOOR_WIDTH)
+                        && !(groupDragged && (selection.contains(door.room1) || selection.contains(door.room2)))) {
+                    door.draw(g, detailed);
+                }
+            }
+            g.setStroke(defaultStroke);
+            for (Window window : windows) {
+                if (window.room != draggedRoom && isVisible(window.getBounds(), 0)
+                        && !(groupDragged && selection.contains(window.room))) {
+                    window.draw(g);
+                }
+            }
+        }
+        // Zoomed out, sprites would be scaled down to a few pixels each; flat rectangles
+        // in a per-category colour read just as well and cost a single fill
+        private void drawFixtures(Graphics2D g, List<Room> rooms, boolean detailed) {
+            g.setColor(FIXTURE_FILL);
+            if (!detailed && scene != null) {
+                scene.fillItems(g, clip, SceneStore.FIXTURE);
+                return;
+            }
+            for (Room room : rooms) {
+                for (Fixture fixture : room.getFixtures()) {
+                    Rectangle bounds = fixture.getBounds();
+                    if (isVisible(bounds, 0)) {
+                        if (detailed) {
+                            fixture.draw(g);
+                        } else {
+                            g.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
+                        }
+                    }
+                }
+            }
+        }
+        private void drawFurniture(Graphics2D g, List<Room> rooms, boolean detailed) {
+            g.setColor(FURNITURE_FILL);
+            if (!detailed && scene != null) {
+                scene.fillItems(g, clip, SceneStore.FURNITURE);
+                return;
+            }
+            for (Room room : rooms) {
+                for (Furniture furniture : room.getFurniture()) {
+                    Rectangle bounds = furniture.getBounds();
+                    if (isVisible(bounds, 0)) {
+                        if (detailed) {
+                            furniture.draw(g);
+                        } else {
+                            g.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
+                        }
+                    }
+                }
+            }
+        }
+        private void drawSelection(Graphics2D g, Stroke defaultStroke) {
+            g.setStroke(SELECTION_STROKE);
+            if (selectedRoom != null) {
+                Rectangle bounds = selectedRoom.bounds;
+                g.setColor(Color.BLUE);
+                g.drawRect(bounds.x - 2, bounds.y - 2, bounds.width + 4, bounds.height + 4);
+            }
+            if (selectedFixture != null) {
+                Rectangle bounds = selectedFixture.getBounds();
+                g.setColor(Color.BLUE);
+                g.drawRect(bounds.x, bounds.y, bounds.width, bounds.height);
+                g.setColor(Color.RED);
+                g.drawRect(bounds.x - 2, bounds.y - 2, bounds.width + 4, bounds.height + 4);
+            }
+            if (selectedFurniture != null) {
+                Rectangle bounds = selectedFurniture.getBounds();
+                g.setColor(Color.GREEN);
+                g.drawRect(bounds.x, bounds.y, bounds.width, bounds.height);
+                g.drawRect(bounds.x - 2, bounds.y - 2, bounds.width + 4, bounds.height + 4);
+            }
+            g.setColor(Color.BLUE);
+            for (Object member : selection) {
+                Rectangle bounds = member instanceof Room room ? room.bounds : itemBounds(member);
+                if (isVisible(bounds, SELECTION_MARGIN)) {
+                    g.drawRect(bounds.x - 2, bounds.y - 2, bounds.width + 4, bounds.height + 4);
+                }
+            }
+            if (band != null) {
+                g.setStroke(BAND_STROKE);
+                g.drawRect(band.x, band.y, band.width, band.height);
+            }
+            g.setStroke(defaultStroke);
+        }
+    }
+    private static class Room implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private Rectangle bounds;
+        private Color color;
+        private String type;
+        private ArrayList<Fixture> fixtures;
+        private ArrayList<Furniture> furniture;
+        // Derived from color and type on first paint rather than on every one
+        private transient Color draggedColor;
+        private transient String label;
+        public Room(int x, int y, int width, int height, Color color, String type) {
+            this.bounds = new Rectangle(x, y, width, height);
+            this.color = color;
+            this.type = type;
+            this.fixtures = new ArrayList<>();
+            this.furniture = new ArrayList<>();
+        }
+        public void addFurniture(Furniture furniture) {
+            this.furniture.add(furniture);
+        }public void removeFurniture(Furniture furniture) {
+            this.furniture.remove(furniture);
+        }public ArrayList<Furniture> getFurniture() {
+            return furniture;
+        }public void updateFurniturePositions(int dx, int dy) {
+            for (Furniture furniture : furniture) {
+                furniture.updatePosition(dx, dy);
+            }
+        }public void addFixture(Fixture fixture) {
+            fixtures.add(fixture);
+        }public void removeFixture(Fixture fixture) {
+            fixtures.remove(fixture);
+        }public ArrayList<Fixture> getFixtures() {
+            return fixtures;
+        }public void updateFixturePositions(int dx, int dy) {
+            for (Fixture fixture : fixtures) {
+                fixture.updatePosition(dx, dy);
+            }
+        }
+        // A copy moved by dx, dy, with copies of its contents. Copies share this room's
+        // strings and sprites, so a floor of identical rooms holds each image once.
+        public Room duplicate(int dx, int dy) {
+            Room copy = new Room(bounds.x + dx, bounds.y + dy, bounds.width, bounds.height, color, type);
+            copy.label = label;
+            copy.draggedColor = draggedColor;
+            for (Fixture fixture : fixtures) {
+                copy.fixtures.add(new Fixture(fixture, copy, dx, dy));
+            }
+            for (Furniture item : furniture) {
+                copy.furniture.add(new Furniture(item, copy, dx, dy));
+            }
+            return copy;
+        }
+        // Moves the room and everything in it, without allocating, for drags
+        public void moveTo(int x, int y) {
+            int dx = x - bounds.x;
+            int dy = y - bounds.y;
+            bounds.setLocation(x, y);
+            updateFurniturePositions(dx, dy);
+            updateFixturePositions(dx, dy);
+        }
+        public void drawFill(Graphics g, boolean isDragged) {
+            if (isDragged) {
+                if (draggedColor == null) {
+                    draggedColor = new Color(color.getRed(), color.getGreen(), color.getBlue(), 180);
+                }
+                g.setColor(draggedColor);
+            } else {
+                g.setColor(color);
+            }
+            g.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
+        }
+        public void drawOutline(Graphics g, boolean isSelected) {
+            drawBorder(g, isSelected);
+            drawLabel(g);
+        }
+        public void drawBorder(Graphics g, boolean isSelected) {
+            if (isSelected) {
+                g.setColor(Color.RED);
+                Graphics2D g2d = (Graphics2D) g;
+                g2d.setStroke(SELECTED_STROKE);
+            } else {
+                g.setColor(Color.BLACK);
+            }
+            g.drawRect(bounds.x, bounds.y, bounds.width, bounds.height);
+        }
+        private static final BasicStroke SELECTED_STROKE = new BasicStroke(2);
+        public void drawLabel(Graphics g) {
+            g.setColor(Color.BLACK);
+            FontMetrics fm = g.getFontMetrics();
+            String label = getLabel();
+            int textX = bounds.x + (bounds.width - fm.stringWidth(label)) / 2;
+            int textY = bounds.y + (bounds.height + fm.getAscent()) / 2;
+            g.drawString(label, textX, textY);
+        }
+        public String getLabel() {
+            if (label == null) {
+                label = type.replace("Add ", "");
+            }
+            return label;
+        }
+        // The label is centred on the room and may spill over the walls of narrow rooms
+        public Rectangle getLabelBounds(FontMetrics fm) {
+            return getLabelBounds(fm, new Rectangle());
+        }
+        public Rectangle getLabelBounds(FontMetrics fm, Rectangle into) {
+            String label = getLabel();
+            int textWidth = fm.stringWidth(label);
+            int textX = bounds.x + (bounds.width - textWidth) / 2;
+            int textY = bounds.y + (bounds.height + fm.getAscent()) / 2;
+            into.setBounds(textX, textY - fm.getAscent(), textWidth, fm.getHeight());
+            return into;
+        }
+        
+    }
+    // Headless benchmarks, run with: java FloorPlanner --bench [name]
+    private static class Benchmarks {
+        private static final String[] FIXTURE_IMAGES = { "images/commode.png", "images/washbasin.png" };
+        private static final String[] FURNITURE_IMAGES = { "images/bed.png", "images/chair.png" };
+        private static final int ROOM_SIZE = 100;
+
+        public static void run(String[] args) {
+            String name = args.length > 0 ? args[0] : "all";
+            boolean all = name.equals("all");
+            if (all || name.equals("render")) {
+                benchmarkRender();
+            }
+            if (all || name.equals("grid")) {
+                benchmarkGrid();
+            }
+            if (all || name.equals("hittest")) {
+                benchmarkHitTest();
+            }
+            if (all || name.equals("placement")) {
+                benchmarkPlacement();
+            }
+            if (all || name.equals("planfile")) {
+                benchmarkPlanFile();
+            }
+            if (all || name.equals("bigload")) {
+                benchmarkLargeLoad();
+            }
+            if (all || name.equals("zoom")) {
+                benchmarkZoom();
+            }
+            if (all || name.equals("validate")) {
+                benchmarkValidate();
+            }
+            if (all || name.equals("adjacency")) {
+                benchmarkAdjacency();
+            }
+            if (all || name.equals("egress")) {
+                benchmarkEgress();
+            }
+            if (all || name.equals("furnish")) {
+                benchmarkFurnish();
+            }
+            if (all || name.equals("drag")) {
+                benchmarkDrag();
+            }
+            if (all || name.equals("scene")) {
+                benchmarkScene();
+            }
+            if (all || name.equals("templates")) {
+                benchmarkTemplates();
+            }
+            if (all || name.equals("startup")) {
+                benchmarkStartup();
+            }
+            if (name.equals("startup-once")) { // One run of the startup benchmark, in its own JVM
+                startupOnce(args.length > 1 && args[1].equals("eager"));
+            }
+        }
+        // Lays out roomCount square rooms in a grid, each holding two fixtures and two pieces of furniture
+        static ArrayList<Room> generatePlan(int roomCount) {
+            ArrayList<Room> plan = new ArrayList<>();
+            int columns = (int) Math.ceil(Math.sqrt(roomCount));
+            for (int i = 0; i < roomCount; i++) {
+                int x = GRID_SIZE + (i % columns) * ROOM_SIZE;
+                int y = GRID_SIZE + (i / columns) * ROOM_SIZE;
+                Room room = new Room(x, y, ROOM_SIZE, ROOM_SIZE, Color.decode("#90EE90"), "Add Bedroom");
+                for (int j = 0; j < FIXTURE_IMAGES.length; j++) {
+                    room.addFixture(new Fixture("Fixture", new Point(x + j * 40, y), FIXTURE_IMAGES[j], room));
+                }
+                for (int j = 0; j < FURNITURE_IMAGES.length; j++) {
+                    room.addFurniture(new Furniture("Furniture", new Point(x + j * 40, y + 60), FURNITURE_IMAGES[j], room));
+                }
+                plan.add(room);
+            }
+            return plan;
+        }
+        // Doors through every shared east and south wall of a generatePlan layout, clear of
+        // its fixtures and furniture, plus outside doors on the first and last rooms
+        static ArrayList<Door> generateDoors(List<Room> plan) {
+            ArrayList<Door> doors = new ArrayList<>();
+            int columns = (int) Math.ceil(Math.sqrt(plan.size()));
+            for (int i = 0; i < plan.size(); i++) {
+                Rectangle b = plan.get(i).bounds;
+                if (i % columns + 1 < columns && i + 1 < plan.size()) {
+                    doors.add(new Door(new Point(b.x + ROOM_SIZE, b.y + 20), new Point(b.x + ROOM_SIZE, b.y + 60),
+                            plan.get(i), plan.get(i + 1)));
+                }
+                if (i + columns < plan.size()) {
+                    doors.add(new Door(new Point(b.x + 60, b.y + ROOM_SIZE), new Point(b.x + ROOM_SIZE, b.y + ROOM_SIZE),
+                            plan.get(i), plan.get(i + columns)));
+                }
+            }
+            Rectangle first = plan.get(0).bounds;
+            Rectangle last = plan.get(plan.size() - 1).bounds;
+            doors.add(new Door(new Point(first.x, first.y + 20), new Point(first.x, first.y + 60), plan.get(0), null));
+            doors.add(new Door(new Point(last.x + ROOM_SIZE, last.y + 20), new Point(last.x + ROOM_SIZE, last.y + 60),
+                    plan.get(plan.size() - 1), null));
+            return doors;
+        }
+        static int planExtent(int roomCount) {
+            return 2 * GRID_SIZE + (int) Math.ceil(Math.sqrt(roomCount)) * ROOM_SIZE;
+        }
+        static double millisPerFrame(Runnable frame, int warmup, int frames) {
+            for (int i = 0; i < warmup; i++) {
+                frame.run();
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                frame.run();
+            }
+            return (System.nanoTime() - start) / 1e6 / frames;
+        }
+        private static void benchmarkRender() {
+            System.out.println("render: full frame into a BufferedImage");
+            System.out.printf("%8s %10s %12s%n", "rooms", "items", "ms/frame");
+            for (int roomCount : new int[] { 50, 100, 200, 400, 800 }) {
+                ArrayList<Room> plan = generatePlan(roomCount);
+                int extent = planExtent(roomCount);
+                BufferedImage image = new BufferedImage(
+                        extent, extent, BufferedImage.TYPE_INT_RGB);
+                PlanRenderer renderer = new PlanRenderer();
+                renderer.selectedRoom = plan.get(0);
+                double ms = millisPerFrame(() -> {
+                    Graphics2D g = image.createGraphics();
+                    renderer.paint(g, plan, extent, extent);
+                    g.dispose();
+                }, 10, 30);
+                System.out.printf("%8d %10d %12.3f%n", roomCount, roomCount * 4, ms);
+            }
+            System.out.printf("sprite cache: %d hits, %d misses, %d entries%n",
+                    SPRITES.getHits(), SPRITES.getMisses(), SPRITES.size());
+        }
+        // Heap allocated by the calling thread, as HotSpot counts it
+        private static long allocatedBytes() {
+            return ((com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean())
+                    .getCurrentThreadAllocatedBytes();
+        }
+        // Heap still reachable after a full collection, so only live objects count
+        private static long usedHeap() {
+            Runtime runtime = Runtime.getRuntime();
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+            }
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+        // Time to first paint of the real editor, painted offscreen at 1280x800, in a fresh
+        // JVM per run so class loading counts. "eager" builds the side panels and the file
+        // chooser before the first paint, as startup used to; "lazy" is startup as it is now.
+        private static void benchmarkStartup() {
+            int runs = 5;
+            String[] variants = { "eager", "lazy" };
+            double[][][] samples = new double[variants.length][3][runs];
+            for (int run = 0; run < runs; run++) {
+                for (int v = 0; v < variants.length; v++) {
+                    double[] times = startupInChildJvm(variants[v]);
+                    for (int t = 0; t < times.length; t++) {
+                        samples[v][t][run] = times[t];
+                    }
+                }
+            }
+            System.out.println("startup: fresh JVM, look and feel to the editor's first paint, median of " + runs + " runs");
+            System.out.printf("%-8s %14s %14s %18s%n", "startup", "built ms", "first paint ms", "side panels ms");
+            for (int v = 0; v < variants.length; v++) {
+                System.out.printf("%-8s %14.1f %14.1f %18.1f%n", variants[v],
+                        median(samples[v][0]), median(samples[v][1]), median(samples[v][2]));
+            }
+        }
+        private static double median(double[] values) {
+            double[] sorted = values.clone();
+            java.util.Arrays.sort(sorted);
+            return sorted[sorted.length / 2];
+        }
+        // Runs startupOnce in a new JVM with an empty home folder, so no autosave is offered
+        private static double[] startupInChildJvm(String variant) {
+            try {
+                java.nio.file.Path home = Files.createTempDirectory("startup");
+                Process child = new ProcessBuilder(
+                        new File(new File(System.getProperty("java.home"), "bin"), "java").getPath(),
+                        "-Duser.home=" + home, "-cp", System.getProperty("java.class.path"),
+                        "FloorPlanner", "--bench", "startup-once", variant)
+                        .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+                String output = new String(child.getInputStream().readAllBytes()).trim();
+                if (child.waitFor() != 0) {
+                    throw new AssertionError("startup: " + variant + " run failed: " + output);
+                }
+                try (java.util.stream.Stream<java.nio.file.Path> files = Files.walk(home)) {
+                    for (java.nio.file.Path file : (Iterable<java.nio.file.Path>) files.sorted(
+                            java.util.Comparator.reverseOrder())::iterator) {
+                        Files.delete(file); // The journal, and the JVM's font cache
+                    }
+                }
+                String[] fields = output.split(" ");
+                double[] times = new double[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                    times[i] = Double.parseDouble(fields[i]);
+                }
+                return times;
+            } catch (IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        // One startup, printed as milliseconds to the editor being built, to its first
+        // paint and to its side panels being ready
+        private static void startupOnce(boolean eager) {
+            long start = System.nanoTime();
+            FloorPlanner[] planner = new FloorPlanner[1];
+            long[] built = new long[1], firstPaint = new long[1], finished = new long[1];
+            try {
+                SwingUtilities.invokeAndWait(() -> {
+                    try {
+                        UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    planner[0] = new FloorPlanner();
+                    if (eager) {
+                        planner[0].fileChooser();
+                        planner[0].finishStartup();
+                    }
+                    built[0] = System.nanoTime();
+                    planner[0].setSize(1280, 800);
+                    layOut(planner[0]);
+                    BufferedImage image = new BufferedImage(1280, 800, BufferedImage.TYPE_INT_RGB);
+                    Graphics2D g = image.createGraphics();
+                    planner[0].paint(g);
+                    g.dispose();
+                });
+                // The first paint has queued finishStartup; wait for it to run
+                long deadline = System.nanoTime() + 30_000_000_000L;
+                while (finished[0] == 0 && System.nanoTime() < deadline) {
+                    SwingUtilities.invokeAndWait(() -> {
+                        firstPaint[0] = planner[0].firstPaintNanos;
+                        finished[0] = planner[0].startupFinishedNanos;
+                    });
+                    Thread.sleep(1);
+                }
+                SwingUtilities.invokeAndWait(() -> planner[0].journal.close());
+            } catch (InterruptedException | java.lang.reflect.InvocationTargetException e) {
+                throw new IllegalStateException(e);
+            }
+            if (firstPaint[0] == 0 || finished[0] == 0) {
+                throw new AssertionError("startup: the editor did not paint and finish starting within 30 s");
+            }
+            System.out.printf("%.2f %.2f %.2f%n", (built[0] - start) / 1e6, (firstPaint[0] - start) / 1e6,
+                    (finished[0] - start) / 1e6);
+        }
+        // What validate does for a window, for a component that has none
+        private static void layOut(Component component) {
+            if (component instanceof Container container) {
+                container.doLayout();
+                for (Component child : container.getComponents()) {
+                    layOut(child);
+                }
+            }
+        }
+        // Indexing a template folder should cost the same per entry however much artwork
+        // the entries carry, since no image is decoded until an item is made from it
+        private static void benchmarkTemplates() {
+            System.out.println("templates: index a folder of N definitions, then first use of one entry");
+            System.out.printf("%8s %12s %14s %16s %14s%n", "entries", "index ms", "us per entry",
+                    "decoded at load", "first use ms");
+            for (int count : new int[] { 10, 100, 1_000, 10_000 }) {
+                File folder;
+                try {
+                    folder = Files.createTempDirectory("templates").toFile();
+                    writeTemplates(folder, count);
+                } catch (IOException e) {
+                    throw new java.io.UncheckedIOException(e);
+                }
+                TemplateLibrary library = null;
+                long bestNanos = Long.MAX_VALUE;
+                long missesBefore = SPRITES.getMisses();
+                for (int run = 0; run < 5; run++) {
+                    long start = System.nanoTime();
+                    library = TemplateLibrary.load(folder);
+                    bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+                }
+                long decodedAtLoad = SPRITES.getMisses() - missesBefore;
+                if (!library.problems().isEmpty() || library.size() < count) {
+                    throw new AssertionError("templates: " + library.problems());
+                }
+                List<TemplateLibrary.ItemTemplate> furniture = library.furniture();
+                TemplateLibrary.ItemTemplate last = furniture.get(furniture.size() - 1);
+                long start = System.nanoTime();
+                new Furniture(last.name, new Point(0, 0), last.imagePath, null);
+                double firstUseMs = (System.nanoTime() - start) / 1e6;
+                System.out.printf("%8d %12.2f %14.1f %16d %14.2f%n", count, bestNanos / 1e6,
+                        bestNanos / 1e3 / count, decodedAtLoad, firstUseMs);
+                File[] files = folder.listFiles();
+                for (File file : files) {
+                    file.delete();
+                }
+                folder.delete();
+            }
+        }
+        // A third each of rooms, fixtures and furniture, every asset with its own image
+        private static void writeTemplates(File folder, int count) throws IOException {
+            BufferedImage image = new BufferedImage(128, 128, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = image.createGraphics();
+            g.setColor(Color.DARK_GRAY);
+            g.fillRect(16, 16, 96, 96);
+            g.dispose();
+            for (int i = 0; i < count; i++) {
+                String definition;
+                switch (i % 3) {
+                    case 0 -> definition = "kind=room\nname=Room " + i + "\nwidth=4\nheight=3\ncolor=#C0C0FF\n"
+                            + "furnishing=Piece " + (i + 2) + "@0.5,0.5;Piece " + (i + 2) + "@2,1.5,90\n";
+                    case 1 -> definition = "kind=fixture\nname=Piece " + i + "\nimage=piece" + i + ".png\n";
+                    default -> definition = "kind=furniture\nname=Piece " + i + "\nimage=piece" + i + ".png\n";
+                }
+                if (i % 3 != 0) {
+                    javax.imageio.ImageIO.write(image, "png", new File(folder, "piece" + i + ".png"));
+                }
+                Files.writeString(new File(folder, String.format("t%05d.properties", i)).toPath(), definition);
+            }
+        }
+        private static void benchmarkScene() {
+            int roomCount = 25_000;
+            System.out.println("scene: " + roomCount * 4 + " items in " + roomCount
+                    + " rooms, object graph vs columnar SceneStore");
+            long base = usedHeap();
+            ArrayList<Room> plan = generatePlan(roomCount);
+            long graphBytes = usedHeap() - base;
+            base = usedHeap();
+            SceneStore store = SceneStore.of(plan);
+            long storeBytes = usedHeap() - base;
+            System.out.printf("%-28s %14s %14s%n", "", "object graph", "SceneStore");
+            System.out.printf("%-28s %14.1f %14.1f%n", "heap MB", graphBytes / 1e6, storeBytes / 1e6);
+            System.out.printf("%-28s %14.1f %14.1f%n", "heap bytes per item",
+                    graphBytes / (double) store.itemCount, storeBytes / (double) store.itemCount);
+
+            // Hit tests by full scan, as an index would do within one cell
+            java.util.Random random = new java.util.Random(42);
+            int extent = planExtent(roomCount);
+            int queries = 2_000;
+            int[] xs = new int[queries], ys = new int[queries];
+            for (int i = 0; i < queries; i++) {
+                xs[i] = random.nextInt(extent);
+                ys[i] = random.nextInt(extent);
+            }
+            int[] hits = new int[2];
+            double graphScanMs = millisPerFrame(() -> {
+                hits[0] = 0;
+                for (int i = 0; i < queries; i++) {
+                    scan:
+                    for (Room room : plan) {
+                        for (Fixture fixture : room.getFixtures()) {
+                            if (fixture.getBounds().contains(xs[i], ys[i])) {
+                                hits[0]++;
+                                break scan;
+                            }
+                        }
+                        for (Furniture furniture : room.getFurniture()) {
+                            if (furniture.getBounds().contains(xs[i], ys[i])) {
+                                hits[0]++;
+                                break scan;
+                            }
+                        }
+                    }
+                }
+            }, 1, 3);
+            double storeScanMs = millisPerFrame(() -> {
+                hits[1] = 0;
+                for (int i = 0; i < queries; i++) {
+                    if (store.itemAt(xs[i], ys[i]) >= 0) {
+                        hits[1]++;
+                    }
+                }
+            }, 1, 3);
+            System.out.printf("%-28s %14.2f %14.2f%n", "hit-test scan ns/item",
+                    graphScanMs * 1e6 / queries / store.itemCount, storeScanMs * 1e6 / queries / store.itemCount);
+
+            // A viewport-sized window slid across the plan, as painting culls against it
+            Rectangle viewport = new Rectangle(0, 0, 1920, 1080);
+            int windows = 200;
+            int[] counts = new int[2];
+            double graphCullMs = millisPerFrame(() -> {
+                for (int w = 0; w < windows; w++) {
+                    viewport.setLocation(w * 37 % extent, w * 53 % extent);
+                    for (Room room : plan) {
+                        for (Fixture fixture : room.getFixtures()) {
+                            if (fixture.getBounds().intersects(viewport)) {
+                                counts[0]++;
+                            }
+                        }
+                        for (Furniture furniture : room.getFurniture()) {
+                            if (furniture.getBounds().intersects(viewport)) {
+                                counts[0]++;
+                            }
+                        }
+                    }
+                }
+            }, 1, 3);
+            double storeCullMs = millisPerFrame(() -> {
+                for (int w = 0; w < windows; w++) {
+                    viewport.setLocation(w * 37 % extent, w * 53 % extent);
+                    counts[1] += store.countItemsIn(viewport);
+                }
+            }, 1, 3);
+            System.out.printf("%-28s %14.2f %14.2f%n", "viewport cull ns/item",
+                    graphCullMs * 1e6 / windows / store.itemCount, storeCullMs * 1e6 / windows / store.itemCount);
+
+            // Painting one 1920x1080 view from each: culled fills, outlines, then sprites
+            BufferedImage image = new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_RGB);
+            Rectangle view = new Rectangle(extent / 2, extent / 2, 1920, 1080);
+            SceneStore.RoomView roomView = store.new RoomView();
+            SceneStore.ItemView itemView = store.new ItemView();
+            double graphPaintMs = millisPerFrame(() -> {
+                Graphics2D g = image.createGraphics();
+                g.translate(-view.x, -view.y);
+                for (Room room : plan) {
+                    if (room.bounds.intersects(view)) {
+                        room.drawFill(g, false);
+                    }
+                }
+                for (Room room : plan) {
+                    if (room.bounds.intersects(view)) {
+                        room.drawBorder(g, false);
+                    }
+                }
+                for (Room room : plan) {
+                    for (Fixture fixture : room.getFixtures()) {
+                        if (fixture.getBounds().intersects(view)) {
+                            fixture.draw(g);
+                        }
+                    }
+                    for (Furniture furniture : room.getFurniture()) {
+                        if (furniture.getBounds().intersects(view)) {
+                            furniture.draw(g);
+                        }
+                    }
+                }
+                g.dispose();
+            }, 3, 10);
+            double storePaintMs = millisPerFrame(() -> {
+                Graphics2D g = image.createGraphics();
+                g.translate(-view.x, -view.y);
+                store.paint(g, view, roomView, itemView);
+                g.dispose();
+            }, 3, 10);
+            System.out.printf("%-28s %14.2f %14.2f%n", "paint 1920x1080 ms", graphPaintMs, storePaintMs);
+
+            // The whole plan zoomed out, as the canvas paints it with the store opted into
+            PlanRenderer renderer = new PlanRenderer();
+            renderer.scale = 1920.0 / extent;
+            double[] zoomedOutMs = new double[2];
+            for (int withStore = 0; withStore < 2; withStore++) {
+                renderer.scene = withStore == 1 ? store : null;
+                zoomedOutMs[withStore] = millisPerFrame(() -> {
+                    Graphics2D g = image.createGraphics();
+                    renderer.paint(g, plan, image.getWidth(), image.getHeight());
+                    g.dispose();
+                }, 3, 10);
+            }
+            System.out.printf("%-28s %14.2f %14.2f%n", "zoomed-out frame ms", zoomedOutMs[0], zoomedOutMs[1]);
+            System.out.printf("hits %d / %d%n", hits[0], hits[1]);
+
+            // The plan index keeping a linked store in step with edits, on a copy of the plan
+            int warmupEdits = 2_000, edits = 20_000;
+            double[] editUs = new double[2];
+            PlanIndex linked = null;
+            for (int withStore = 0; withStore < 2; withStore++) {
+                ArrayList<Room> edited = generatePlan(roomCount);
+                PlanIndex index = new PlanIndex(withStore == 1);
+                for (Room room : edited) {
+                    index.indexRoom(room);
+                }
+                editUs[withStore] = millisPerFrame(editPlan(edited, index, new java.util.Random(9)), warmupEdits, edits)
+                        * 1000;
+                if (withStore == 1) {
+                    checkScene(edited, index.scene);
+                    linked = index;
+                }
+            }
+            System.out.printf("%-28s %14.2f %14.2f%n", "plan index edit us", editUs[0], editUs[1]);
+            System.out.printf("linked store after %d edits: %d rooms, %d items, matches the plan%n",
+                    warmupEdits + edits, linked.scene.roomCount, linked.scene.itemCount);
+        }
+        // One random edit per run, through the plan index as the editor makes them: a room
+        // or an item moved, an item deleted, or a room deleted and a furnished one added
+        private static Runnable editPlan(ArrayList<Room> plan, PlanIndex index, java.util.Random random) {
+            return () -> {
+                Room room = plan.get(random.nextInt(plan.size()));
+                int step = (random.nextBoolean() ? 1 : -1) * GRID_SIZE;
+                switch (random.nextInt(4)) {
+                    case 0 -> {
+                        room.bounds.translate(step, 0);
+                        room.updateFixturePositions(step, 0);
+                        room.updateFurniturePositions(step, 0);
+                        index.indexRoom(room);
+                    }
+                    case 1 -> {
+                        if (!room.getFurniture().isEmpty()) {
+                            Furniture piece = room.getFurniture().get(0);
+                            piece.updatePosition(0, step);
+                            index.indexItem(piece);
+                        }
+                    }
+                    case 2 -> {
+                        if (!room.getFixtures().isEmpty()) {
+                            Fixture fixture = room.getFixtures().get(room.getFixtures().size() - 1);
+                            index.unindexItem(fixture);
+                            room.removeFixture(fixture);
+                        }
+                    }
+                    default -> {
+                        index.unindexRoom(room);
+                        plan.remove(room);
+                        Rectangle b = room.bounds;
+                        Room added = new Room(b.x, b.y, b.width, b.height, room.color, room.type);
+                        added.addFixture(new Fixture("Fixture", new Point(b.x, b.y), FIXTURE_IMAGES[0], added));
+                        added.addFurniture(new Furniture("Furniture", new Point(b.x, b.y + 60),
+                                FURNITURE_IMAGES[0], added));
+                        plan.add(added);
+                        index.indexRoom(added);
+                    }
+                }
+            };
+        }
+        // Every room and item of the plan has a row that holds its current values, and no other rows exist
+        private static void checkScene(List<Room> plan, SceneStore scene) {
+            int items = 0;
+            for (Room room : plan) {
+                int row = scene.rows.get(room);
+                if (scene.roomOwner[row] != room || scene.roomX[row] != room.bounds.x
+                        || scene.roomY[row] != room.bounds.y || scene.roomWidth[row] != room.bounds.width) {
+                    throw new AssertionError("scene: room row " + row + " is stale");
+                }
+                List<Object> contents = new ArrayList<>(room.getFixtures());
+                contents.addAll(room.getFurniture());
+                for (Object item : contents) {
+                    int itemRow = scene.rows.get(item);
+                    Rectangle bounds = itemBounds(item);
+                    if (scene.itemOwner[itemRow] != item || scene.itemRoom[itemRow] != row
+                            || scene.itemX[itemRow] != bounds.x || scene.itemY[itemRow] != bounds.y) {
+                        throw new AssertionError("scene: item row " + itemRow + " is stale");
+                    }
+                    items++;
+                }
+            }
+            if (scene.roomCount != plan.size() || scene.itemCount != items || scene.rows.size() != plan.size() + items) {
+                throw new AssertionError("scene: " + scene.roomCount + " rooms and " + scene.itemCount
+                        + " items stored for " + plan.size() + " and " + items);
+            }
+        }
+        private static void benchmarkDrag() {
+            System.out.println("drag: heap allocated per drag event on a furnished room or one of its items, and per repaint");
+            System.out.printf("%8s %14s %14s %14s %14s%n", "items", "room bytes", "item bytes", "paint bytes", "paint us");
+            JPanel canvas = new JPanel(); // Stands in for the canvas, whose font metrics each room event asks for
+            int events = 200_000;
+            for (int side : new int[] { 2, 6, 20 }) {
+                // side x side grid of furniture alternating with fixtures, 20px apart
+                int size = side * 60 + GRID_SIZE;
+                Room room = new Room(GRID_SIZE, GRID_SIZE, size, size, Color.decode("#90EE90"), "Add Bedroom");
+                for (int i = 0; i < side * side; i++) {
+                    Point position = new Point(2 * GRID_SIZE + i % side * 60, 2 * GRID_SIZE + i / side * 60);
+                    if ((i & 1) == 0) {
+                        room.addFurniture(new Furniture("Furniture", position, FURNITURE_IMAGES[i / 2 % 2], room));
+                    } else {
+                        room.addFixture(new Fixture("Fixture", position, FIXTURE_IMAGES[i / 2 % 2], room));
+                    }
+                }
+                BufferedImage image = new BufferedImage(size + 4 * GRID_SIZE, size + 4 * GRID_SIZE,
+                        BufferedImage.TYPE_INT_RGB);
+                Graphics2D g = image.createGraphics();
+                // The canvas's handleMouseDragged body for each kind of drag, through the same
+                // DragRegion calls, up to the repaint request that Swing queues
+                DragRegion drag = new DragRegion();
+                int planExtent = size + 4 * GRID_SIZE;
+                Runnable move = () -> {
+                    for (int i = 0; i < events; i++) {
+                        Rectangle bounds = drag.moveRoom(room, GRID_SIZE + (i & 1) * GRID_SIZE,
+                                GRID_SIZE + (i >> 1 & 1) * GRID_SIZE, planExtent, planExtent,
+                                canvas.getFontMetrics(canvas.getFont()));
+                        drag.repaintRegion(bounds, 0, 0, GRID_SIZE);
+                    }
+                };
+                Furniture piece = room.getFurniture().get(0);
+                Runnable moveItem = () -> {
+                    for (int i = 0; i < events; i++) {
+                        piece.updatePosition((i & 1) == 0 ? GRID_SIZE : -GRID_SIZE, 0);
+                        drag.repaintRegion(drag.item(piece.getBounds()), 0, 0, GRID_SIZE);
+                    }
+                };
+                // The dragged room's own layer of a frame: translucent fill, outline and contents
+                int frames = Math.max(100, events / (side * side * 10));
+                Runnable paint = () -> {
+                    for (int i = 0; i < frames; i++) {
+                        room.drawFill(g, true);
+                        room.drawBorder(g, true);
+                        for (Fixture fixture : room.getFixtures()) {
+                            fixture.draw(g);
+                        }
+                        for (Furniture furniture : room.getFurniture()) {
+                            furniture.draw(g);
+                        }
+                    }
+                };
+                move.run();
+                moveItem.run();
+                paint.run();
+                long before = allocatedBytes();
+                move.run();
+                double moveBytes = (allocatedBytes() - before) / (double) events;
+                before = allocatedBytes();
+                moveItem.run();
+                double itemBytes = (allocatedBytes() - before) / (double) events;
+                before = allocatedBytes();
+                long start = System.nanoTime();
+                paint.run();
+                double paintUs = (System.nanoTime() - start) / 1e3 / frames;
+                double paintBytes = (allocatedBytes() - before) / (double) frames;
+                g.dispose();
+                System.out.printf("%8d %14.2f %14.2f %14.2f %14.2f%n", side * side, moveBytes, itemBytes,
+                        paintBytes, paintUs);
+                if (moveBytes > 1 || itemBytes > 1) {
+                    throw new AssertionError("drag events allocate " + Math.max(moveBytes, itemBytes) + " bytes each");
+                }
+            }
+        }
+        private static void benchmarkHitTest() {
+            System.out.println("hittest: point queries, linear scan vs spatial index");
+            System.out.printf("%10s %14s %14s%n", "entities", "scan ns/query", "index ns/query");
+            java.util.Random random = new java.util.Random(42);
+            int queries = 100_000;
+            for (int count : new int[] { 1_000, 10_000, 100_000 }) {
+                // 40px entities on a 60px pitch, roughly the density of furnished rooms
+                int columns = (int) Math.ceil(Math.sqrt(count));
+                ArrayList<Room> entities = new ArrayList<>();
+                SpatialIndex<Room> index = new SpatialIndex<>(INDEX_CELL_SIZE);
+                for (int i = 0; i < count; i++) {
+                    Room entity = new Room((i % columns) * 60, (i / columns) * 60, 40, 40, Color.WHITE, "Item");
+                    entities.add(entity);
+                    index.insert(entity, entity.bounds);
+                }
+                int extent = columns * 60;
+                int[] xs = new int[queries];
+                int[] ys = new int[queries];
+                for (int i = 0; i < queries; i++) {
+                    xs[i] = random.nextInt(extent);
+                    ys[i] = random.nextInt(extent);
+                }
+                int[] found = new int[1];
+                // Linear scans are far slower, so they get proportionally fewer queries
+                int scanQueries = Math.min(queries, 5_000_000 / count);
+                double scanMs = millisPerFrame(() -> {
+                    for (int i = 0; i < scanQueries; i++) {
+                        for (Room entity : entities) {
+                            if (entity.bounds.contains(xs[i], ys[i])) {
+                                found[0]++;
                                 break;
                             }
                         }
-
-                        if (!hasOverlap) {
-                            targetRoom.addFixture(newFixture);
-                            repaint();
-                            return true;
-                        } else {
-                            JOptionPane.showMessageDialog(null,
-                                "Cannot place fixture here - overlap detected!",
-                                "Overlap Error",
-                                JOptionPane.ERROR_MESSAGE);
+                    }
+                }, 1, 3);
+                double indexMs = millisPerFrame(() -> {
+                    for (int i = 0; i < queries; i++) {
+                        if (index.findAt(xs[i], ys[i]) != null) {
+                            found[0]++;
                         }
                     }
-                        }}
-                    catch (Exception e) {
-                        e.printStackTrace();
+                }, 3, 10);
+                System.out.printf("%10d %14.1f %14.1f%n", count, scanMs * 1e6 / scanQueries, indexMs * 1e6 / queries);
+            }
+        }
+        private static void benchmarkPlacement() {
+            System.out.println("placement: first fit for a 5m x 5m room on a 3840x2160 canvas");
+            System.out.printf("%10s %8s %12s %8s%n", "fill", "rooms", "us/query", "fits");
+            int canvasWidth = 3840, canvasHeight = 2160;
+            int usable = (canvasWidth - GRID_SIZE) * (canvasHeight - GRID_SIZE);
+            java.util.Random random = new java.util.Random(7);
+            ArrayList<Room> plan = new ArrayList<>();
+            long filled = 0;
+            for (double target : new double[] { 0.25, 0.5, 0.75, 0.9, 0.95 }) {
+                // Pack rooms of random sizes in first-fit order, shrinking them once large ones stop fitting
+                int maxCells = 10;
+                while (filled < target * usable && maxCells > 0) {
+                    int width = (1 + random.nextInt(maxCells)) * GRID_SIZE;
+                    int height = (1 + random.nextInt(maxCells)) * GRID_SIZE;
+                    Point position = FreeSpaceFinder.findFirstFit(plan, canvasWidth, canvasHeight, width, height);
+                    if (position == null) {
+                        maxCells--;
+                        continue;
                     }
-                    return false;
-                }
-            });
-            MouseAdapter mouseAdapter = new MouseAdapter() {
-                @Override
-                public void mousePressed(MouseEvent e) {
-                    handleMousePressed(e);
+                    plan.add(new Room(position.x, position.y, width, height, Color.WHITE, "Room"));
+                    filled += (long) width * height;
                 }
-                @Override
-                public void mouseReleased(MouseEvent e) {
-                    handleMouseReleased();
+                Point[] fit = new Point[1];
+                double ms = millisPerFrame(() -> {
+                    fit[0] = FreeSpaceFinder.findFirstFit(plan, canvasWidth, canvasHeight, 200, 200);
+                }, 50, 200);
+                System.out.printf("%9.0f%% %8d %12.1f %8s%n", 100.0 * filled / usable, plan.size(), ms * 1000,
+                        fit[0] != null ? "yes" : "no");
+            }
+        }
+        private static void benchmarkPlanFile() {
+            System.out.println("planfile: in-memory save/load, v2 binary (rooms + items) vs v1 serialization (rooms only)");
+            System.out.printf("%8s %8s %10s %10s %10s %10s %10s %10s%n",
+                    "rooms", "format", "bytes", "save ms", "load ms", "save MB/s", "load MB/s", "loaded");
+            for (int roomCount : new int[] { 1_000, 10_000, 50_000 }) {
+                ArrayList<Room> plan = generatePlan(roomCount);
+                for (int legacy = 0; legacy < 2; legacy++) {
+                    boolean v1 = legacy == 1;
+                    java.io.ByteArrayOutputStream buffer = new java.io.ByteArrayOutputStream();
+                    double saveMs = millisPerFrame(() -> {
+                        buffer.reset();
+                        try {
+                            if (v1) {
+                                PlanFile.writeLegacy(buffer, plan);
+                            } else {
+                                PlanFile.write(buffer, plan, new ArrayList<>(), new ArrayList<>());
+                            }
+                        } catch (IOException ex) {
+                            throw new RuntimeException(ex);
+                        }
+                    }, 3, 5);
+                    byte[] bytes = buffer.toByteArray();
+                    int[] loaded = new int[1];
+                    double loadMs = millisPerFrame(() -> {
+                        try {
+                            PlanFile.Plan read = PlanFile.read(new java.io.ByteArrayInputStream(bytes));
+                            loaded[0] = 0;
+                            for (Room room : read.rooms) {
+                                loaded[0] += 1 + room.getFixtures().size() + room.getFurniture().size();
+                            }
+                        } catch (IOException ex) {
+                            throw new RuntimeException(ex);
+                        }
+                    }, 3, 5);
+                    double megabytes = bytes.length / 1e6;
+                    System.out.printf("%8d %8s %10d %10.2f %10.2f %10.1f %10.1f %10d%n", roomCount, v1 ? "v1" : "v2",
+                            bytes.length, saveMs, loadMs, megabytes / saveMs * 1000, megabytes / loadMs * 1000, loaded[0]);
                 }
-                @Override
-                public void mouseDragged(MouseEvent e) {
-                    handleMouseDragged(e);
+            }
+        }
+        private static void benchmarkLargeLoad() {
+            int roomCount = 100_000;
+            System.out.printf("bigload: %d rooms, %d elements, loaded from disk%n", roomCount, roomCount * 5);
+            try {
+                File file = File.createTempFile("bigload", ".fpl");
+                file.deleteOnExit();
+                try (OutputStream out = new FileOutputStream(file)) {
+                    PlanFile.write(out, generatePlan(roomCount), new ArrayList<>(), new ArrayList<>());
                 }
-                @Override
-                public void mouseClicked(MouseEvent e) {
-                    if (draggedRoom == null) {
-                        handleRoomSelection(e.getX(), e.getY());
+                System.out.printf("%10s %10s %12s %12s %10s%n", "loader", "ms", "model MB", "peak MB", "updates");
+                // read(File) streams through a small buffer; read(InputStream) copies the
+                // whole file onto the heap first. The first round only warms up the JIT.
+                for (int run = 0; run < 4; run++) {
+                    int chunked = run % 2;
+                    long baseline = settledHeapUsed();
+                    resetPeakHeap();
+                    int[] updates = new int[1];
+                    long start = System.nanoTime();
+                    PlanFile.Plan plan;
+                    if (chunked == 1) {
+                        plan = PlanFile.read(file, (read, total) -> updates[0]++);
+                    } else {
+                        try (InputStream in = new FileInputStream(file)) {
+                            plan = PlanFile.read(in);
+                        }
                     }
+                    double ms = (System.nanoTime() - start) / 1e6;
+                    long peak = peakHeapUsed();
+                    long model = settledHeapUsed();
+                    if (run >= 2) {
+                        System.out.printf("%10s %10.1f %12.1f %12.1f %10d%n", chunked == 1 ? "chunked" : "heap copy", ms,
+                                (model - baseline) / 1e6, (peak - baseline) / 1e6, updates[0]);
+                    }
+                    plan.rooms.clear();
                 }
-            };
-            addMouseListener(mouseAdapter);
-            addMouseMotionListener(mouseAdapter);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
         }
-        private void handleMousePressed(MouseEvent e) {
-            Point clickPoint = e.getPoint();
-        selectedFurniture = null;
-        draggedFurniture = null;
-        for (Room room : rooms) {
-            for (Furniture furniture : room.getFurniture()) {
-                if (furniture.getBounds().contains(clickPoint)) {
-                    draggedFurniture = furniture;
-                    selectedFurniture = furniture;
-                    draggedFurnitureStart = new Point(
-                        clickPoint.x - furniture.getBounds().x,
-                        clickPoint.y - furniture.getBounds().y
-                    );
-                    originalFurniturePosition = new Point(
-                        furniture.getBounds().x,
-                        furniture.getBounds().y
-                    );
-                    repaint();
-                    return;  // Exit the method after finding furniture
+        private static long settledHeapUsed() {
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+            }
+            Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+        private static void resetPeakHeap() {
+            for (java.lang.management.MemoryPoolMXBean pool : java.lang.management.ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == java.lang.management.MemoryType.HEAP) {
+                    pool.resetPeakUsage();
                 }
             }
         }
-        selectedFixture = null;
-        draggedFixture = null;
-        for (Room room : rooms) {
-            for (Fixture fixture : room.getFixtures()) {
-                if (fixture.getBounds().contains(clickPoint)) {
-                    draggedFixture = fixture;
-                    selectedFixture = fixture;
-                    draggedFixtureStart = new Point(
-                        clickPoint.x - fixture.getBounds().x,
-                        clickPoint.y - fixture.getBounds().y
-                    );
-                    originalFixturePosition = new Point(
-                        fixture.getBounds().x,
-                        fixture.getBounds().y
-                    );
-                    repaint();
-                    return;  // Exit the method after finding a fixture
+        // Upper bound: the pools may not all have peaked at the same moment
+        private static long peakHeapUsed() {
+            long peak = 0;
+            for (java.lang.management.MemoryPoolMXBean pool : java.lang.management.ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == java.lang.management.MemoryType.HEAP) {
+                    peak += pool.getPeakUsage().getUsed();
                 }
             }
+            return peak;
         }
-        for (Room room : rooms) {
-            if (room.bounds.contains(clickPoint)) {
-                draggedRoom = room;
-                dragStart = new Point(clickPoint.x - room.bounds.x, clickPoint.y - room.bounds.y);
-                originalBounds = new Rectangle(room.bounds);
-                break;
-            } }}
-        private void handleMouseDragged(MouseEvent e) {
-            if (draggedRoom != null) {
-                int newX = e.getX() - dragStart.x;
-                int newY = e.getY() - dragStart.y;
-                newX = Math.round(newX / (float) GRID_SIZE) * GRID_SIZE;
-                newY = Math.round(newY / (float) GRID_SIZE) * GRID_SIZE;
-                newX = Math.max(0, Math.min(newX, getWidth() - draggedRoom.bounds.width));
-                newY = Math.max(0, Math.min(newY, getHeight() - draggedRoom.bounds.height));
-                int dx = newX - draggedRoom.bounds.x;
-                int dy = newY - draggedRoom.bounds.y;
-                draggedRoom.bounds.setLocation(newX, newY);
-                for (Furniture furniture : draggedRoom.getFurniture()) {
-                    Point currentPos = furniture.getBounds().getLocation();
-                    furniture.setPosition(new Point(currentPos.x + dx, currentPos.y + dy));
-                }
-                draggedRoom.updateFixturePositions(dx, dy);
-                repaint();
-            } else if (draggedFurniture != null) {
-                int newX = e.getX() - draggedFurnitureStart.x;
-                int newY = e.getY() - draggedFurnitureStart.y;
-                // Snap to grid
-                newX = Math.round(newX / (float) GRID_SIZE) * GRID_SIZE;
-                newY = Math.round(newY / (float) GRID_SIZE) * GRID_SIZE;
-                // Ensure furniture stays within its parent room
-                Room parentRoom = draggedFurniture.getParentRoom();
-                if (parentRoom != null) {
-                    Rectangle roomBounds = parentRoom.bounds;
-                    newX = Math.max(roomBounds.x, Math.min(newX, 
-                        roomBounds.x + roomBounds.width - draggedFurniture.getBounds().width));
-                    newY = Math.max(roomBounds.y, Math.min(newY, 
-                        roomBounds.y + roomBounds.height - draggedFurniture.getBounds().height));
+        private static void benchmarkEgress() {
+            System.out.println("egress: moving one piece of furniture across a passage, incremental update vs full rebuild");
+            System.out.printf("%8s %10s %14s %14s %12s %8s%n", "rooms", "cells", "update us", "rebuild ms", "furthest m",
+                    "matches");
+            for (int roomCount : new int[] { 1_000, 10_000, 100_000 }) {
+                ArrayList<Room> plan = generatePlan(roomCount);
+                PlanIndex index = PlanIndex.build(plan, generateDoors(plan), List.of());
+                EgressMap map = EgressMap.build(index, plan);
+                // Nudged right, the second item closes the free column its room's doors rely on
+                Furniture moved = plan.get(roomCount / 2).getFurniture().get(1);
+                int moves = 2_000;
+                long start = System.nanoTime();
+                for (int i = 0; i < moves; i++) {
+                    Rectangle before = new Rectangle(moved.getBounds());
+                    moved.updatePosition((i & 1) == 0 ? GRID_SIZE : -GRID_SIZE, 0);
+                    index.furniture.insert(moved, moved.getBounds());
+                    map.update(index, before.union(moved.getBounds()));
                 }
-    
-                draggedFurniture.setPosition(new Point(newX, newY));
-                repaint();
-            } else if (draggedFixture != null) {
-                // Existing fixture dragging logic
-                int newX = e.getX() - draggedFixtureStart.x;
-                int newY = e.getY() - draggedFixtureStart.y;
-    
-                newX = Math.round(newX / (float) GRID_SIZE) * GRID_SIZE;
-                newY = Math.round(newY / (float) GRID_SIZE) * GRID_SIZE;
-    
-                draggedFixture.setPosition(new Point(newX, newY));
-                repaint();
-            } }
-        private void handleMouseReleased() {
-            if (draggedFixture != null) {
-                Room parentRoom = draggedFixture.getParentRoom();
-                if (!parentRoom.bounds.contains(draggedFixture.getBounds())) {
-                    draggedFixture.setPosition(originalFixturePosition);
-                } else {
-                    boolean hasOverlap = false;
-                    for (Fixture other : parentRoom.getFixtures()) {
-                        if (other != draggedFixture && draggedFixture.intersects(other)) {
-                            hasOverlap = true;
-                            break;
-                        }
+                double updateUs = (System.nanoTime() - start) / 1e3 / moves;
+                double rebuildMs = millisPerFrame(() -> EgressMap.build(index, plan), 1, 3);
+                EgressMap rebuilt = EgressMap.build(index, plan);
+                int furthest = 0;
+                for (int steps : rebuilt.distance) {
+                    if (steps != EgressMap.UNREACHABLE) {
+                        furthest = Math.max(furthest, steps);
                     }
-                    if (hasOverlap) {
-                        draggedFixture.setPosition(originalFixturePosition);
-                        JOptionPane.showMessageDialog(this,
-                            "Cannot place fixture here - overlap detected!",
-                            "Overlap Error",
-                            JOptionPane.ERROR_MESSAGE);
+                }
+                System.out.printf("%8d %10d %14.2f %14.2f %12.1f %8s%n", roomCount, map.cols * map.rows, updateUs,
+                        rebuildMs, furthest * 0.5, java.util.Arrays.equals(map.distance, rebuilt.distance));
+            }
+        }
+        private static void benchmarkFurnish() {
+            System.out.println("furnish: packing a room with fixtures at random cells, 200 ms budget, 40 trials each");
+            System.out.printf("%8s %10s %6s %8s %8s %10s %10s %12s%n", "room m", "pieces", "fill", "solved", "timeout",
+                    "median ms", "p95 ms", "nodes");
+            java.util.Random random = new java.util.Random(42);
+            int trials = 40;
+            long budget = 200_000_000L;
+            for (int side : new int[] { 10, 20, 30, 40 }) {
+                for (boolean mixed : new boolean[] { false, true }) {
+                    for (double fill : new double[] { 0.6, 0.8, 0.95 }) {
+                        int solved = 0, timeouts = 0;
+                        long nodes = 0;
+                        int pieces = 0;
+                        double[] millis = new double[trials];
+                        for (int trial = 0; trial < trials; trial++) {
+                            Rectangle room = new Rectangle(0, 0, side * GRID_SIZE, side * GRID_SIZE);
+                            ArrayList<Rectangle> obstacles = new ArrayList<>();
+                            for (int i = 0; i < side / 5; i++) {
+                                obstacles.add(new Rectangle(random.nextInt(side - 1) * GRID_SIZE,
+                                        random.nextInt(side - 1) * GRID_SIZE, 2 * GRID_SIZE, 2 * GRID_SIZE));
+                            }
+                            boolean[] taken = new boolean[side * side];
+                            for (Rectangle obstacle : obstacles) {
+                                for (int r = obstacle.y / GRID_SIZE; r < obstacle.y / GRID_SIZE + 2; r++) {
+                                    for (int c = obstacle.x / GRID_SIZE; c < obstacle.x / GRID_SIZE + 2; c++) {
+                                        taken[r * side + c] = true;
+                                    }
+                                }
+                            }
+                            int freeCells = 0;
+                            for (boolean cell : taken) {
+                                freeCells += cell ? 0 : 1;
+                            }
+                            // Square furniture as the planner has it, or with a long 2x4 piece
+                            // to every three squares so that turning matters
+                            int[] widths = mixed ? new int[] { 40, 40 } : new int[] { 40 };
+                            int[] heights = mixed ? new int[] { 40, 80 } : new int[] { 40 };
+                            int[] counts = new int[widths.length];
+                            int area = (int) (freeCells * fill);
+                            if (mixed) {
+                                counts[1] = area / 20;
+                                counts[0] = (area - counts[1] * 8) / 4;
+                            } else {
+                                counts[0] = area / 4;
+                            }
+                            pieces = counts[0] + (mixed ? counts[1] : 0);
+                            FurnitureSolver solver = new FurnitureSolver(room, obstacles, widths, heights, counts);
+                            long start = System.nanoTime();
+                            FurnitureSolver.Result result;
+                            try {
+                                result = solver.solve(budget, null);
+                            } catch (IOException ex) {
+                                throw new java.io.UncheckedIOException(ex);
+                            }
+                            millis[trial] = (System.nanoTime() - start) / 1e6;
+                            solved += result.complete ? 1 : 0;
+                            timeouts += result.timedOut ? 1 : 0;
+                            nodes += result.nodes;
+                        }
+                        java.util.Arrays.sort(millis);
+                        System.out.printf("%8s %10s %5.0f%% %7.0f%% %7.0f%% %10.2f %10.2f %12d%n",
+                                side / 2 + "x" + side / 2, pieces + (mixed ? " mixed" : ""), fill * 100,
+                                100.0 * solved / trials, 100.0 * timeouts / trials, millis[trials / 2],
+                                millis[trials * 95 / 100], nodes / trials);
                     }
                 }
-                draggedFixture = null;
-                draggedFixtureStart = null;
-                originalFixturePosition = null;
-                repaint();
             }
-            if (draggedRoom != null) {
-                boolean hasOverlap = false;
-                Room overlappingRoom = null;
-                if (!isWithinCanvas(draggedRoom.bounds)) {
-                    draggedRoom.bounds.setRect(originalBounds);
-                    JOptionPane.showMessageDialog(this,
-                            "Cannot place room outside the canvas boundaries!",
-                            "Boundary Error",
-                            JOptionPane.ERROR_MESSAGE);
-                } else {
-                    for (Room room : rooms) {
-                        if (room != draggedRoom && room.bounds.intersects(draggedRoom.bounds)) {
-                            hasOverlap = true;
-                            overlappingRoom = room;
-                            break;
+            benchmarkFurnishLargeRooms();
+        }
+        // Halls with a structural column every few cells, solved on a thread
+        // whose stack is no bigger than a SwingWorker's, where the action runs
+        private static void benchmarkFurnishLargeRooms() {
+            final int columnSpacing = 6;
+            long budget = 2_000_000_000L;
+            System.out.printf("furnish: halls with a column every %d cells, %d s budget, on a 512 KiB stack%n",
+                    columnSpacing, budget / 1_000_000_000L);
+            System.out.printf("%8s %8s %10s %6s %8s %8s %10s %12s%n", "room m", "columns", "pieces", "fill", "placed",
+                    "timeout", "ms", "nodes");
+            for (int side : new int[] { 40, 80, 120, 160 }) {
+                for (double fill : new double[] { 0.6, 0.8 }) {
+                    Rectangle room = new Rectangle(0, 0, side * GRID_SIZE, side * GRID_SIZE);
+                    ArrayList<Rectangle> obstacles = new ArrayList<>();
+                    for (int row = columnSpacing - 1; row < side; row += columnSpacing) {
+                        for (int col = columnSpacing - 1; col < side; col += columnSpacing) {
+                            obstacles.add(new Rectangle(col * GRID_SIZE, row * GRID_SIZE, GRID_SIZE, GRID_SIZE));
                         }
                     }
-                    if (hasOverlap) {
-                        String message = String.format("Cannot place %s here - it overlaps with %s!",
-                                draggedRoom.type.replace("Add ", ""),
-                                overlappingRoom.type.replace("Add ", ""));
-                        JOptionPane.showMessageDialog(this,
-                                message,
-                                "Overlap Error",
-                                JOptionPane.ERROR_MESSAGE);
-
-                        draggedRoom.bounds.setRect(originalBounds);
+                    // One long 2x4 piece to every three 2x2 squares
+                    int area = (int) ((side * side - obstacles.size()) * fill);
+                    int[] counts = { 0, area / 20 };
+                    counts[0] = (area - counts[1] * 8) / 4;
+                    FurnitureSolver solver = new FurnitureSolver(room, obstacles, new int[] { 40, 40 },
+                            new int[] { 40, 80 }, counts);
+                    FurnitureSolver.Result[] result = new FurnitureSolver.Result[1];
+                    Throwable[] failure = new Throwable[1];
+                    long start = System.nanoTime();
+                    Thread worker = new Thread(null, () -> {
+                        try {
+                            result[0] = solver.solve(budget, null);
+                        } catch (IOException | RuntimeException | StackOverflowError ex) {
+                            failure[0] = ex;
+                        }
+                    }, "Furnish", 512 * 1024);
+                    worker.start();
+                    try {
+                        worker.join();
+                    } catch (InterruptedException ex) {
+                        throw new IllegalStateException(ex);
                     }
+                    double ms = (System.nanoTime() - start) / 1e6;
+                    if (failure[0] != null) {
+                        throw new AssertionError("furnish: " + side / 2 + " m hall failed after " + (int) ms + " ms",
+                                failure[0]);
+                    }
+                    System.out.printf("%8s %8d %10d %5.0f%% %8d %8s %10.1f %12d%n", side / 2 + "x" + side / 2,
+                            obstacles.size(), counts[0] + counts[1], fill * 100, result[0].placements.size(),
+                            result[0].timedOut ? "yes" : "no", ms, result[0].nodes);
                 }
-                selectedRoom = draggedRoom;
-                updatePropertiesPanel(selectedRoom);
-                draggedRoom = null;
-                dragStart = null;
-                originalBounds = null;
-                repaint();
             }
         }
-        private void handleRoomSelection(int x, int y) {
-            selectedRoom = null;
-            for (Room room : rooms) {
-                if (room.bounds.contains(x, y)) {
-                    selectedRoom = room;
-                    break;
+        private static void benchmarkAdjacency() {
+            System.out.println("adjacency: moving one room, incremental update vs full rebuild");
+            System.out.printf("%8s %10s %14s %14s %12s%n", "rooms", "walls", "update us", "rebuild ms", "components");
+            for (int roomCount : new int[] { 1_000, 10_000, 100_000 }) {
+                ArrayList<Room> plan = generatePlan(roomCount);
+                PlanIndex index = PlanIndex.build(plan);
+                long walls = 0;
+                for (Room room : plan) {
+                    walls += index.adjacency.neighbours(room).size();
                 }
+                Room moved = plan.get(roomCount / 2);
+                int moves = 10_000;
+                long start = System.nanoTime();
+                for (int i = 0; i < moves; i++) {
+                    // Shift the room half a room sideways and back, re-indexing each time
+                    int dx = (i & 1) == 0 ? ROOM_SIZE / 2 : -ROOM_SIZE / 2;
+                    moved.bounds.translate(dx, 0);
+                    index.roomOverlaps.insert(moved);
+                    index.adjacency.insert(moved, index.roomOverlaps);
+                }
+                double updateUs = (System.nanoTime() - start) / 1e3 / moves;
+                double rebuildMs = millisPerFrame(() -> {
+                    RoomOverlapIndex overlaps = new RoomOverlapIndex();
+                    RoomAdjacency adjacency = new RoomAdjacency();
+                    for (Room room : plan) {
+                        overlaps.insert(room);
+                        adjacency.insert(room, overlaps);
+                    }
+                }, 1, 3);
+                System.out.printf("%8d %10d %14.2f %14.2f %12d%n", roomCount, walls / 2, updateUs, rebuildMs,
+                        index.adjacency.components(plan).size());
             }
-            updatePropertiesPanel(selectedRoom);
-            repaint();
         }
-        @Override
-        protected void paintComponent(Graphics g) {
-            super.paintComponent(g);
-            drawGrid(g);
-        for (Room room : rooms) {
-            drawRooms(g);
-            if (room == selectedRoom) {
-                g.setColor(Color.BLUE);
-                g.drawRect(room.bounds.x - 2, room.bounds.y - 2,
-                          room.bounds.width + 4, room.bounds.height + 4);
+        private static void benchmarkValidate() {
+            int cores = Runtime.getRuntime().availableProcessors();
+            System.out.println("validate: whole-plan validation, one thread vs fork/join on " + cores + " cores");
+            System.out.printf("%8s %10s %12s %12s %12s%n", "rooms", "items", "violations", "1 thread ms", "parallel ms");
+            java.util.concurrent.ForkJoinPool single = new java.util.concurrent.ForkJoinPool(1);
+            java.util.concurrent.ForkJoinPool parallel = new java.util.concurrent.ForkJoinPool(cores);
+            for (int roomCount : new int[] { 2_500, 25_000, 100_000 }) {
+                ArrayList<Room> plan = generatePlan(roomCount);
+                // Seed problems: a stray chair in every tenth room and an oversized room every hundredth
+                for (int i = 0; i < roomCount; i += 10) {
+                    Room room = plan.get(i);
+                    room.addFurniture(new Furniture("Furniture",
+                            new Point(room.bounds.x + 20, room.bounds.y + 20), FURNITURE_IMAGES[1], room));
+                }
+                for (int i = 0; i < roomCount; i += 100) {
+                    plan.get(i).bounds.width += GRID_SIZE;
+                }
+                int[] violations = new int[1];
+                double singleMs = millisPerFrame(
+                        () -> violations[0] = PlanValidator.validate(plan, single).size(), 3, 10);
+                double parallelMs = millisPerFrame(() -> PlanValidator.validate(plan, parallel), 3, 10);
+                System.out.printf("%8d %10d %12d %12.2f %12.2f%n",
+                        roomCount, roomCount * 4 + roomCount / 10, violations[0], singleMs, parallelMs);
+            }
+            single.shutdown();
+            parallel.shutdown();
+        }
+        private static void benchmarkZoom() {
+            System.out.println("zoom: 1920x1080 frame of a 10000-room plan, full detail vs level of detail");
+            System.out.printf("%8s %10s %14s %14s%n", "scale", "visible", "detail ms", "lod ms");
+            ArrayList<Room> plan = generatePlan(10_000);
+            BufferedImage image = new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_RGB);
+            for (int cellPixels : new int[] { 2, 5, 8, 20 }) {
+                double scale = cellPixels / (double) GRID_SIZE;
+                long visible = plan.stream()
+                        .filter(room -> room.bounds.x * scale < 1920 && room.bounds.y * scale < 1080)
+                        .count();
+                double[] results = new double[2];
+                for (int lod = 0; lod < 2; lod++) {
+                    PlanRenderer renderer = new PlanRenderer();
+                    renderer.scale = scale;
+                    renderer.levelOfDetail = lod == 1;
+                    results[lod] = millisPerFrame(() -> {
+                        Graphics2D g = image.createGraphics();
+                        renderer.paint(g, plan, 1920, 1080);
+                        g.dispose();
+                    }, 3, 10);
+                }
+                System.out.printf("%8.2f %10d %14.3f %14.3f%n", scale, visible, results[0], results[1]);
             }
-        }// Draw selection rectangle for selected furniture
-        if (selectedFurniture != null) {
-            g.setColor(Color.GREEN);
-            Rectangle bounds = selectedFurniture.getBounds();
-            g.drawRect(bounds.x - 2, bounds.y - 2,
-                      bounds.width + 4, bounds.height + 4);
-        }// Draw selection rectangle for selected fixture
-        if (selectedFixture != null) {
-            g.setColor(Color.RED);
-            Rectangle bounds = selectedFixture.getBounds();
-            g.drawRect(bounds.x - 2, bounds.y - 2,
-                      bounds.width + 4, bounds.height + 4);
         }
+        private static void benchmarkGrid() {
+            System.out.println("grid: empty plan, line-drawn grid vs cached grid tiles");
+            System.out.printf("%12s %14s %14s%n", "canvas", "lines ms", "cached ms");
+            int[][] sizes = { { 1280, 720 }, { 1920, 1080 }, { 3840, 2160 } };
+            ArrayList<Room> plan = new ArrayList<>();
+            for (int[] size : sizes) {
+                BufferedImage image = new BufferedImage(
+                        size[0], size[1], BufferedImage.TYPE_INT_RGB);
+                double[] results = new double[2];
+                for (int cached = 0; cached < 2; cached++) {
+                    PlanRenderer renderer = new PlanRenderer();
+                    renderer.cacheGrid = cached == 1;
+                    results[cached] = millisPerFrame(() -> {
+                        Graphics2D g = image.createGraphics();
+                        renderer.paint(g, plan, size[0], size[1]);
+                        g.dispose();
+                    }, 20, 100);
+                }
+                System.out.printf("%12s %14.3f %14.3f%n", size[0] + "x" + size[1], results[0], results[1]);
+            }
         }
-        private void drawGrid(Graphics g) {
-            g.setColor(GRID_COLOR);
-            for (int x = 0; x < getWidth(); x += GRID_SIZE) {
-                g.drawLine(x, 0, x, getHeight());
+    }
+    // Headless batch export, run with:
+    //   java FloorPlanner --export [--format png|svg] [--out dir] [--scale s] plan.fpl...
+    // Files are rendered in parallel, one per core; PNGs go through PlanRenderer, the
+    // same code that paints the canvas.
+    private static class Exporter {
+        // Margin of empty floor kept around the rooms, in model units
+        private static final int MARGIN = GRID_SIZE;
+        // Refuse images bigger than this many pixels rather than run out of heap
+        private static final long MAX_PIXELS = 200_000_000L;
+
+        public static int run(String[] args) {
+            String format = "png";
+            File outDir = null;
+            double scale = 1;
+            ArrayList<File> files = new ArrayList<>();
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (option.startsWith("--") && i + 1 == args.length) {
+                    return usage(option + " needs a value");
+                }
+                switch (option) {
+                    case "--format" -> format = args[++i].toLowerCase();
+                    case "--out" -> outDir = new File(args[++i]);
+                    case "--scale" -> {
+                        try {
+                            scale = Double.parseDouble(args[++i]);
+                        } catch (NumberFormatException ex) {
+                            return usage("--scale needs a number, not " + args[i]);
+                        }
+                    }
+                    default -> files.add(new File(option));
+                }
+            }
+            if (files.isEmpty() || !(format.equals("png") || format.equals("svg")) || !(scale > 0)) {
+                return usage(null);
+            }
+            if (outDir != null) {
+                outDir.mkdirs();
+            }
+            int threads = Math.min(files.size(), Runtime.getRuntime().availableProcessors());
+            java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(threads);
+            ArrayList<java.util.concurrent.Future<Boolean>> results = new ArrayList<>();
+            long start = System.nanoTime();
+            for (File file : files) {
+                File target = new File(outDir != null ? outDir : file.getAbsoluteFile().getParentFile(),
+                        baseName(file) + "." + format);
+                String outputFormat = format;
+                double outputScale = scale;
+                results.add(pool.submit(() -> export(file, target, outputFormat, outputScale)));
             }
-            for (int y = 0; y < getHeight(); y += GRID_SIZE) {
-                g.drawLine(0, y, getWidth(), y);
+            int failures = 0;
+            for (java.util.concurrent.Future<Boolean> result : results) {
+                try {
+                    if (!result.get()) {
+                        failures++;
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    failures++;
+                } catch (java.util.concurrent.ExecutionException ex) {
+                    LOG.log(java.util.logging.Level.SEVERE, "Export failed", ex.getCause());
+                    failures++;
+                }
             }
+            pool.shutdown();
+            System.out.printf("exported %d of %d files in %.1f ms on %d threads%n",
+                    files.size() - failures, files.size(), (System.nanoTime() - start) / 1e6, threads);
+            return failures == 0 ? 0 : 1;
         }
-        private void drawRooms(Graphics g) {
-            for (Room room : rooms) {
-                if (room != draggedRoom) {
-                    room.draw(g, room == selectedRoom);
+        private static int usage(String problem) {
+            if (problem != null) {
+                System.err.println(problem);
+            }
+            System.err.println("usage: java FloorPlanner --export [--format png|svg] [--out dir] [--scale s] plan.fpl...");
+            return 2;
+        }
+        private static String baseName(File file) {
+            String name = file.getName();
+            return name.toLowerCase().endsWith(".fpl") ? name.substring(0, name.length() - 4) : name;
+        }
+        // Exports one plan and reports its timings; false if it failed
+        private static boolean export(File source, File target, String format, double scale) {
+            try {
+                long start = System.nanoTime();
+                PlanFile.Plan plan = PlanFile.read(source, null);
+                long loaded = System.nanoTime();
+                Rectangle extent = extent(plan.rooms);
+                if (format.equals("svg")) {
+                    try (java.io.Writer out = Files.newBufferedWriter(target.toPath())) {
+                        writeSvg(out, plan, extent, scale);
+                    }
+                    long written = System.nanoTime();
+                    report(source, target, plan, (loaded - start) / 1e6, (written - loaded) / 1e6, 0);
+                } else {
+                    BufferedImage image = renderImage(plan, extent, scale);
+                    long rendered = System.nanoTime();
+                    javax.imageio.ImageIO.write(image, "png", target);
+                    long written = System.nanoTime();
+                    report(source, target, plan, (loaded - start) / 1e6, (rendered - loaded) / 1e6,
+                            (written - rendered) / 1e6);
                 }
+                return true;
+            } catch (IOException | RuntimeException ex) {
+                System.err.println(source + ": "
+                        + (ex instanceof java.nio.file.NoSuchFileException ? "no such file" : ex.getMessage()));
+                return false;
             }
-            if (draggedRoom != null) {
-                draggedRoom.draw(g, true);
+        }
+        private static void report(File source, File target, PlanFile.Plan plan, double loadMs, double renderMs,
+                double writeMs) {
+            System.out.printf("%s -> %s: %d rooms, load %.1f ms, render %.1f ms, write %.1f ms%n",
+                    source.getName(), target.getName(), plan.rooms.size(), loadMs, renderMs, writeMs);
+        }
+        // The area covered by the rooms, from the model origin, plus a margin
+        private static Rectangle extent(List<Room> rooms) {
+            int width = 0, height = 0;
+            for (Room room : rooms) {
+                width = Math.max(width, room.bounds.x + room.bounds.width);
+                height = Math.max(height, room.bounds.y + room.bounds.height);
             }
+            return new Rectangle(0, 0, width + MARGIN, height + MARGIN);
         }
-    }
-    private class Room implements Serializable {
-        private static final long serialVersionUID = 1L;
-        private Rectangle bounds;
-        private Color color;
-        private String type;
-        private ArrayList<Fixture> fixtures;
-        private ArrayList<Furniture> furniture;
-        public Room(int x, int y, int width, int height, Color color, String type) {
-            this.bounds = new Rectangle(x, y, width, height);
-            this.color = color;
-            this.type = type;
-            this.fixtures = new ArrayList<>();
-            this.furniture = new ArrayList<>();
+        static BufferedImage renderImage(PlanFile.Plan plan, Rectangle extent, double scale) throws IOException {
+            int width = (int) Math.ceil(extent.width * scale);
+            int height = (int) Math.ceil(extent.height * scale);
+            if ((long) width * height > MAX_PIXELS) {
+                throw new IOException("Image would be " + width + "x" + height + " pixels; use a smaller --scale");
+            }
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            PlanRenderer renderer = new PlanRenderer();
+            renderer.scale = scale;
+            renderer.levelOfDetail = false; // Previews always show the sprites
+            renderer.doors = plan.doors;
+            renderer.windows = plan.windows;
+            Graphics2D g = image.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            renderer.paint(g, plan.rooms, width, height);
+            g.dispose();
+            return image;
         }
-        public void addFurniture(Furniture furniture) {
-            this.furniture.add(furniture);
-        }public void removeFurniture(Furniture furniture) {
-            this.furniture.remove(furniture);
-        }public ArrayList<Furniture> getFurniture() {
-            return furniture;
-        }public void updateFurniturePositions(int dx, int dy) {
-            for (Furniture furniture : furniture) {
-                furniture.updatePosition(dx, dy);
+        // There is no SVG Graphics2D in the JDK, so this mirrors PlanRenderer's layers by
+        // hand: grid, room fills, outlines and labels, doors and windows, then fixtures and
+        // furniture, whose images are embedded once each and placed with <use>
+        static void writeSvg(java.io.Writer out, PlanFile.Plan plan, Rectangle extent, double scale) throws IOException {
+            List<Room> rooms = plan.rooms;
+            out.write(String.format(java.util.Locale.ROOT,
+                    "<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\""
+                    + " width=\"%.0f\" height=\"%.0f\" viewBox=\"0 0 %d %d\">%n",
+                    Math.ceil(extent.width * scale), Math.ceil(extent.height * scale), extent.width, extent.height));
+            LinkedHashMap<String, String> imageIds = new LinkedHashMap<>();
+            for (Room room : rooms) {
+                for (Fixture fixture : room.getFixtures()) {
+                    imageIds.putIfAbsent(fixture.getImagePath(), "image" + imageIds.size());
+                }
+                for (Furniture furniture : room.getFurniture()) {
+                    imageIds.putIfAbsent(furniture.getImagePath(), "image" + imageIds.size());
+                }
             }
-        }public void addFixture(Fixture fixture) {
-            fixtures.add(fixture);
-        }public void removeFixture(Fixture fixture) {
-            fixtures.remove(fixture);
-        }public ArrayList<Fixture> getFixtures() {
-            return fixtures;
-        }public void updateFixturePositions(int dx, int dy) {
-            for (Fixture fixture : fixtures) {
-                fixture.updatePosition(dx, dy);
+            out.write("<defs>\n");
+            out.write(String.format("<pattern id=\"grid\" width=\"%d\" height=\"%d\" patternUnits=\"userSpaceOnUse\">"
+                    + "<path d=\"M %d 0 L 0 0 0 %d\" fill=\"none\" stroke=\"%s\"/></pattern>%n",
+                    GRID_SIZE, GRID_SIZE, GRID_SIZE, GRID_SIZE, svgColor(GRID_COLOR)));
+            // Items whose image is missing, or of a type we cannot label, are left out,
+            // just as the PNG export draws nothing for them
+            for (java.util.Iterator<java.util.Map.Entry<String, String>> images = imageIds.entrySet().iterator();
+                    images.hasNext();) {
+                java.util.Map.Entry<String, String> image = images.next();
+                File imageFile = new File(image.getKey());
+                String mimeType = imageFile.isFile() ? imageType(imageFile) : null;
+                if (mimeType == null) {
+                    images.remove();
+                    continue;
+                }
+                String data = java.util.Base64.getEncoder().encodeToString(Files.readAllBytes(imageFile.toPath()));
+                out.write(String.format("<image id=\"%s\" width=\"40\" height=\"40\" preserveAspectRatio=\"none\""
+                        + " xlink:href=\"data:%s;base64,%s\"/>%n", image.getValue(), mimeType, data));
             }
-        }public void draw(Graphics g, boolean isSelected) {
-            if (this == draggedRoom) {
-                Color transparentColor = new Color(
-                        color.getRed(),
-                        color.getGreen(),
-                        color.getBlue(),
-                        180);
-                g.setColor(transparentColor);
-            } else {
-                g.setColor(color);
+            out.write("</defs>\n");
+            out.write(String.format("<rect width=\"%d\" height=\"%d\" fill=\"%s\"/>%n",
+                    extent.width, extent.height, svgColor(CANVAS_BACKGROUND)));
+            out.write(String.format("<rect width=\"%d\" height=\"%d\" fill=\"url(#grid)\"/>%n",
+                    extent.width, extent.height));
+            for (Room room : rooms) {
+                Rectangle b = room.bounds;
+                out.write(String.format("<rect x=\"%d\" y=\"%d\" width=\"%d\" height=\"%d\" fill=\"%s\" stroke=\"black\"/>%n",
+                        b.x, b.y, b.width, b.height, svgColor(room.color)));
             }
-            g.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
-            if (isSelected) {
-                g.setColor(Color.RED);
-                Graphics2D g2d = (Graphics2D) g;
-                g2d.setStroke(new BasicStroke(2));
-            } else {
-                g.setColor(Color.BLACK);
+            for (Room room : rooms) {
+                Rectangle b = room.bounds;
+                out.write(String.format(java.util.Locale.ROOT,
+                        "<text x=\"%.1f\" y=\"%.1f\" text-anchor=\"middle\" dominant-baseline=\"central\""
+                        + " font-family=\"sans-serif\" font-size=\"12\">%s</text>%n",
+                        b.x + b.width / 2.0, b.y + b.height / 2.0, escapeXml(room.getLabel())));
             }
-            g.drawRect(bounds.x, bounds.y, bounds.width, bounds.height);
-            g.setColor(Color.BLACK);
-            FontMetrics fm = g.getFontMetrics();
-            String label = type.replace("Add ", "");
-            int textX = bounds.x + (bounds.width - fm.stringWidth(label)) / 2;
-            int textY = bounds.y + (bounds.height + fm.getAscent()) / 2;
-            g.drawString(label, textX, textY);
-            // Draw fixtures
-            for (Fixture fixture : fixtures) {
-                fixture.draw(g);
-                // Highlight selected fixture
-                if (fixture == selectedFixture) {
-                    Graphics2D g2d = (Graphics2D) g;
-                    g2d.setColor(Color.BLUE);
-                    g2d.setStroke(new BasicStroke(2));
-                    Rectangle bounds = fixture.getBounds();
-                    g2d.drawRect(bounds.x, bounds.y, bounds.width, bounds.height);
+            for (Door door : plan.doors) {
+                Point leaf = door.leafEnd();
+                // The swing runs from the closed position to the open one; SVG's sweep flag
+                // is 1 for clockwise on screen, where y points down
+                long cross = (long) (door.end.x - door.start.x) * (leaf.y - door.start.y)
+                        - (long) (door.end.y - door.start.y) * (leaf.x - door.start.x);
+                int radius = (int) Math.round(door.start.distance(door.end));
+                out.write(String.format("<line x1=\"%d\" y1=\"%d\" x2=\"%d\" y2=\"%d\" stroke=\"%s\" stroke-width=\"4\"/>%n",
+                        door.start.x, door.start.y, door.end.x, door.end.y, svgColor(door.room1.color)));
+                out.write(String.format("<path d=\"M %d %d L %d %d A %d %d 0 0 %d %d %d\" fill=\"none\" stroke=\"%s\"/>%n",
+                        door.start.x, door.start.y, leaf.x, leaf.y, radius, radius, cross > 0 ? 0 : 1,
+                        door.end.x, door.end.y, svgColor(Door.DOOR_COLOR)));
+            }
+            for (Window window : plan.windows) {
+                Rectangle b = window.getBounds();
+                out.write(String.format("<rect x=\"%d\" y=\"%d\" width=\"%d\" height=\"%d\" fill=\"%s\" stroke=\"black\"/>%n",
+                        b.x, b.y, b.width, b.height, svgColor(Window.WINDOW_FILL)));
+            }
+            for (Room room : rooms) {
+                for (Fixture fixture : room.getFixtures()) {
+                    writeSvgItem(out, imageIds.get(fixture.getImagePath()), fixture.getBounds(), fixture.getRotation());
                 }
             }
-            for (Furniture furniture : furniture) {
-                furniture.draw(g);
-                // Highlight selected furniture
-                if (furniture == selectedFurniture) {
-                    Graphics2D g2d = (Graphics2D) g;
-                    g2d.setColor(Color.GREEN);
-                    g2d.setStroke(new BasicStroke(2));
-                    Rectangle bounds = furniture.getBounds();
-                    g2d.drawRect(bounds.x, bounds.y, bounds.width, bounds.height);
+            for (Room room : rooms) {
+                for (Furniture furniture : room.getFurniture()) {
+                    writeSvgItem(out, imageIds.get(furniture.getImagePath()), furniture.getBounds(),
+                            furniture.getRotation());
                 }
             }
+            out.write("</svg>\n");
+        }
+        private static void writeSvgItem(java.io.Writer out, String imageId, Rectangle bounds, int rotation)
+                throws IOException {
+            if (imageId == null) {
+                return; // Its image was not embedded
+            }
+            // Sprites are rotated clockwise about their centre, which is also SVG's direction
+            out.write(String.format("<use xlink:href=\"#%s\" x=\"%d\" y=\"%d\" transform=\"rotate(%d %d %d)\"/>%n",
+                    imageId, bounds.x, bounds.y, rotation,
+                    bounds.x + bounds.width / 2, bounds.y + bounds.height / 2));
+        }
+        // The MIME type of an image file, from the platform if it knows, else from the
+        // extension; null if it is not an image
+        private static String imageType(File file) throws IOException {
+            String type = Files.probeContentType(file.toPath());
+            if (type == null) {
+                String name = file.getName().toLowerCase(java.util.Locale.ROOT);
+                String extension = name.substring(name.lastIndexOf('.') + 1);
+                type = switch (extension) {
+                    case "png" -> "image/png";
+                    case "jpg", "jpeg" -> "image/jpeg";
+                    case "gif" -> "image/gif";
+                    case "bmp" -> "image/bmp";
+                    default -> null;
+                };
+            }
+            return type != null && type.startsWith("image/") ? type : null;
+        }
+        private static String svgColor(Color color) {
+            return String.format("#%06x", color.getRGB() & 0xFFFFFF);
+        }
+        private static String escapeXml(String text) {
+            return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+        }
+    }
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--bench")) {
+            System.setProperty("java.awt.headless", "true");
+            Benchmarks.run(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--export")) {
+            System.setProperty("java.awt.headless", "true");
+            System.exit(Exporter.run(java.util.Arrays.copyOfRange(args, 1, args.length)));
         }
-        
-    }   public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
             try {
                 UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
             } catch (Exception e) {
                 e.printStackTrace();
             }
-            new FloorPlanner();
+            showInWindow();
         });
     }
-}
\ No newline at end of file
+}